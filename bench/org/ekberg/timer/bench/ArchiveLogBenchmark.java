@@ -0,0 +1,58 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.utility.ArchiveLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times ArchiveLog.outputString with a line the size of a typical trace
+ * line. The archiveLog.* properties decide the buffering and rotation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveLogBenchmark {
+    /** The line written. */
+    private static final String LINE =
+                "10/17|13:57:06.283|TaskTimeElementDB|findAllByTaskDate|671|Benchmark message";
+
+    /** The log. */
+    private ArchiveLog log;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        log = ArchiveLog.getInstance("logs", "bench-archive.txt");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        log.close();
+    }
+
+
+    @Benchmark
+    public void outputString() {
+        log.outputString(LINE);
+    }
+}
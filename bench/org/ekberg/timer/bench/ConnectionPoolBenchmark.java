@@ -0,0 +1,61 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.database.AdminConnectionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times borrowing and releasing a pooled connection, alone and with more
+ * threads than database.admin.maxConnections, so that callers wait for each
+ * other.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+    //-------------------------------------------------------------------------
+    /**
+     * Borrow a connection and give it back.
+     *
+     * @return
+     *   Connection - the connection, so it is not optimized away.
+     *
+     * @throws SQLException if no connection is free in time.
+     */
+    //-------------------------------------------------------------------------
+    private static Connection borrowRelease() throws SQLException {
+        Connection connection = AdminConnectionManager.getConnection("ConnectionPoolBenchmark");
+        AdminConnectionManager.releaseConnection(connection);
+        return connection;
+    }
+
+
+    @Benchmark
+    @Threads(1)
+    public Connection uncontended() throws SQLException {
+        return borrowRelease();
+    }
+
+
+    @Benchmark
+    @Threads(8)
+    public Connection contended() throws SQLException {
+        return borrowRelease();
+    }
+}
@@ -0,0 +1,157 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.ekberg.utility.CSVTokenizer;
+import org.ekberg.utility.TString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times the TString split and join methods on lists of fields, and reading
+ * the same CSV line with a CSVTokenizer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TStringBenchmark {
+    /** Number of fields. */
+    @Param({"5", "50"})
+    public int fields;
+
+    /** Words separated by commas. */
+    private TString words;
+
+    /** Numbers separated by commas. */
+    private TString numbers;
+
+    /** A CSV line with quoted and unquoted fields. */
+    private TString csv;
+
+    /** The words, split. */
+    private String[] wordArray;
+
+    /** The numbers, split. */
+    private int[] intArray;
+
+    /** The words, split into a Collection. */
+    private Collection<String> wordCollection;
+
+    /** Reads the CSV line. */
+    private final CSVTokenizer tokenizer = new CSVTokenizer();
+
+    /** Holds the quoted values read by the tokenizer. */
+    private final StringBuilder value = new StringBuilder();
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder w = new StringBuilder();
+        StringBuilder n = new StringBuilder();
+        StringBuilder c = new StringBuilder();
+        for (int i=0; i<fields; i++) {
+            if (i > 0) {
+                w.append(',');
+                n.append(',');
+                c.append(',');
+            }
+            w.append("task").append(i);
+            n.append(i * 37);
+            if (i % 2 == 0)
+                c.append("\"Task ").append(i).append(", part\"");
+            else
+                c.append(i * 0.25);
+        }
+        words = new TString(w.toString());
+        numbers = new TString(n.toString());
+        csv = new TString(c.toString());
+        wordArray = words.splitToArray(",");
+        intArray = numbers.splitToIntArray(",");
+        wordCollection = words.splitToCollection(",");
+    }
+
+
+    @Benchmark
+    public String[] splitToArray() {
+        return words.splitToArray(",");
+    }
+
+
+    @Benchmark
+    public Collection<String> splitToCollection() {
+        return words.splitToCollection(",");
+    }
+
+
+    @Benchmark
+    public int[] splitToIntArray() {
+        return numbers.splitToIntArray(",");
+    }
+
+
+    @Benchmark
+    public Collection<String> splitCSV() {
+        return csv.splitCSV();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Read the CSV line the way an importer would: the quoted values into a
+     * reused StringBuilder, the numbers straight from the text.
+     *
+     * @return
+     *   double - the sum of the numbers, so the work is not thrown away.
+     */
+    //-------------------------------------------------------------------------
+    @Benchmark
+    public double tokenizeCSV() {
+        double sum = 0;
+        tokenizer.reset(csv.toString());
+        while (tokenizer.nextField()) {
+            if (tokenizer.isQuoted()) {
+                value.setLength(0);
+                tokenizer.appendTo(value);
+            }
+            else
+                sum += tokenizer.getDouble();
+        }
+        return sum + value.length();
+    }
+
+
+    @Benchmark
+    public String joinArray() {
+        return TString.join(",", wordArray);
+    }
+
+
+    @Benchmark
+    public String joinIntArray() {
+        return TString.join(",", intArray);
+    }
+
+
+    @Benchmark
+    public String joinCollection() {
+        return TString.join(",", wordCollection);
+    }
+}
@@ -0,0 +1,118 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.database.TaskTimeElement;
+import org.ekberg.timer.database.TaskTimeElementDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times TaskTimeElementDB create, update and findAllByTaskDate.
+ *<P>
+ * The database is whatever database.driver and database.admin.url name. The
+ * bench target in build.xml points them at an in-memory database, so the
+ * numbers are the cost of the code and the driver rather than the disk or
+ * the network. TaskTimeElementDB creates the table the first time it is used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskTimeElementBenchmark {
+    /** User the rows belong to. */
+    private static final String USER = "bench";
+
+    /** Day the findAllByTaskDate rows are on. */
+    private static final String FIND_DATE = "2000-01-01";
+
+    /** Day the created rows are on, so they do not add to FIND_DATE. */
+    private static final String CREATE_DATE = "2000-01-02";
+
+    /** Number of rows on FIND_DATE. */
+    @Param({"10", "100"})
+    public int rows;
+
+    /** The row changed by update. */
+    private TaskTimeElement updated;
+
+    /** Used to give each created row a different task name. */
+    private long counter;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create the rows to find, after removing any left by an earlier run.
+     */
+    //-------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (TaskTimeElement old: TaskTimeElementDB.findAllByTaskDate(FIND_DATE, USER))
+            TaskTimeElementDB.delete(old.getId());
+
+        TaskTimeElementDB db = new TaskTimeElementDB();
+        for (int i=0; i<rows; i++)
+            db.create(bean(FIND_DATE, "task" + i));
+        updated = bean(FIND_DATE, "updated");
+        db.create(updated);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Make a row.
+     *
+     * @param  taskDate  the day.
+     *
+     * @param  taskName  the task.
+     *
+     * @return
+     *   TaskTimeElement - the row, not yet saved.
+     */
+    //-------------------------------------------------------------------------
+    private static TaskTimeElement bean(String taskDate, String taskName) {
+        TaskTimeElement bean = new TaskTimeElement();
+        bean.setDuration(1.5);
+        bean.setTaskDate(taskDate);
+        bean.setTaskName(taskName);
+        bean.setUserName(USER);
+        bean.setEnabled(true);
+        return bean;
+    }
+
+
+    @Benchmark
+    public boolean create() {
+        return new TaskTimeElementDB().create(bean(CREATE_DATE, "created" + counter++));
+    }
+
+
+    @Benchmark
+    public boolean update() {
+        updated.setDuration(updated.getDuration() + 0.25);
+        return TaskTimeElementDB.update(updated);
+    }
+
+
+    @Benchmark
+    public List<TaskTimeElement> findAllByTaskDate() {
+        return TaskTimeElementDB.findAllByTaskDate(FIND_DATE, USER);
+    }
+}
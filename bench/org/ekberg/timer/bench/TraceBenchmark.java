@@ -0,0 +1,93 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.Trace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times Trace.info with one trace device set up in different ways.
+ *<P>
+ * Trace reads most of its configuration once, so each setup runs in its own
+ * JVM: the trace.* properties are set with Config.setProperty before Trace is
+ * first used, and override timesheet.properties. The setups are:
+ * <UL>
+ *   <LI> levelOff - the device level is below INFO, so nothing is written.
+ *   <LI> excluded - the level allows INFO but this class is excluded, so the
+ *        caller is found and then the event is dropped.
+ *   <LI> file - a text file, written on the calling thread.
+ *   <LI> fileThreaded - a text file, written on the trace thread. This times
+ *        handing the event over, not writing it.
+ *   <LI> binary - a binary device, written on the calling thread.
+ * </UL>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TraceBenchmark {
+    /** Name of the trace device. */
+    private static final String DEVICE = "trace.bench.";
+
+    /** How the device is set up. */
+    @Param({"levelOff", "excluded", "file", "fileThreaded", "binary"})
+    public String setup;
+
+    /** Added to each message so the messages are not all the same. */
+    private int counter;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Configure Trace for the setup.
+     */
+    //-------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setUp() {
+        Config.setProperty("trace.devices", "bench");
+        Config.setProperty("trace.threaded", setup.equals("fileThreaded") ? "1" : "0");
+        Config.setProperty(DEVICE + "type", setup.equals("binary") ? "binary" : "file");
+        Config.setProperty(DEVICE + "filename",
+                    setup.equals("binary") ? "logs/bench-trace.trb" : "logs/bench-trace.txt");
+        Config.setProperty(DEVICE + "level", setup.equals("levelOff") ? "" + Trace.WARNING : "20");
+        Config.setProperty(DEVICE + "fields", "timeStamp className function lineNumber message");
+        if (setup.equals("excluded"))
+            Config.setProperty(DEVICE + "exclude.class", "TraceBenchmark");
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Write out what is waiting, so it is not left for the next setup.
+     */
+    //-------------------------------------------------------------------------
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Trace.flush();
+    }
+
+
+    @Benchmark
+    public void info() {
+        Trace.info("Benchmark message " + counter++);
+    }
+}
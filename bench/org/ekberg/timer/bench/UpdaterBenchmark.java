@@ -0,0 +1,56 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.bench;
+
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.Updater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Times Updater.parseCalendarTime and formatTime. parseCalendarTime tries
+ * each format in turn, so the time is given in each of the three forms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdaterBenchmark {
+    /** The time parsed: H:MM:SS, M:SS or SS. */
+    @Param({"1:23:45", "23:45", "45"})
+    public String timeText;
+
+    /** The hours formatted. */
+    @Param({"1.3958333", "0.0125"})
+    public double hourTime;
+
+    /** The updater. Its constructor is protected. */
+    private final Updater updater = new Updater() {
+        };
+
+
+    @Benchmark
+    public Calendar parseCalendarTime() {
+        return updater.parseCalendarTime(timeText);
+    }
+
+
+    @Benchmark
+    public String formatTime() {
+        return updater.formatTime(hourTime);
+    }
+}
@@ -0,0 +1,550 @@
+//  @(#) $Id:  $
+
+package org.ekberg.utility;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+
+/**
+ * Reads CSV text one field at a time without making a String for each field.
+ * The tokenizer is a cursor: after nextField it holds the offsets of the
+ * field, and the get methods read the value straight from the text. The same
+ * tokenizer can be reset and used for any number of lines or files.
+ *<P>
+ * The text may hold many records, one per line. A field that starts with a
+ * double quote (after any spaces or tabs) is quoted: it may hold commas, line
+ * ends and doubled quotes, which stand for one quote. Doubled quotes are only
+ * undone when the value is read with getString, appendTo or contentEquals.
+ * <PRE>
+ *    CSVTokenizer csv = new CSVTokenizer(text);
+ *    do {
+ *        while (csv.nextField()) {
+ *            ... csv.getField(), csv.getString(), csv.getDouble() ...
+ *        }
+ *    } while (csv.nextRecord());
+ * </PRE>
+ */
+public class CSVTokenizer
+{
+    /** The field separator. */
+    public static final char SEPARATOR = ',';
+
+    /** The quote character. */
+    public static final char QUOTE = '"';
+
+    /** Powers of ten that are exact as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** Most significant digits that always fit exactly in a double. */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    /** The text being read. */
+    protected CharSequence chars;
+
+    /** Length of the text. */
+    protected int limit;
+
+    /** Where the next field starts. */
+    protected int position;
+
+    /** True if the current record has another field. */
+    protected boolean pending;
+
+    /** Start of the current field, after any opening quote. */
+    protected int start;
+
+    /** End of the current field, before any closing quote. */
+    protected int end;
+
+    /** True if the current field is quoted. */
+    protected boolean quoted;
+
+    /** True if the current field holds doubled quotes. */
+    protected boolean escaped;
+
+    /** Index of the current field in its record. */
+    protected int field;
+
+    /** Index of the current record. */
+    protected int record;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructs a tokenizer with no text. Call a reset method before reading.
+     */
+    // ------------------------------------------------------------------------
+    public CSVTokenizer() {
+        reset("");
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructs a tokenizer for some text.
+     *
+     * @param  chars  the text.
+     */
+    // ------------------------------------------------------------------------
+    public CSVTokenizer(CharSequence chars) {
+        reset(chars);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start reading new text, at its first record.
+     *
+     * @param  chars  the text. It is not copied, so it must not change while
+     * it is read.
+     *
+     * @return
+     *   CSVTokenizer - this tokenizer.
+     */
+    // ------------------------------------------------------------------------
+    public CSVTokenizer reset(CharSequence chars) {
+        this.chars = chars;
+        limit = chars.length();
+        position = 0;
+        pending = true;
+        start = 0;
+        end = 0;
+        quoted = false;
+        escaped = false;
+        field = -1;
+        record = 0;
+        return this;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start reading part of a char array, at its first record.
+     *
+     * @param  chars  the array. It is not copied.
+     * @param  offset  where the text starts.
+     * @param  length  number of chars of text.
+     *
+     * @return
+     *   CSVTokenizer - this tokenizer.
+     */
+    // ------------------------------------------------------------------------
+    public CSVTokenizer reset(char[] chars, int offset, int length) {
+        return reset(CharBuffer.wrap(chars, offset, length));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start reading the bytes between the position and the limit of a
+     * buffer, at the first record. Each byte is one ISO-8859-1 character;
+     * decode text in other encodings to a CharBuffer and read that instead.
+     *
+     * @param  bytes  the buffer. It is not copied, and its position is not
+     * changed.
+     *
+     * @return
+     *   CSVTokenizer - this tokenizer.
+     */
+    // ------------------------------------------------------------------------
+    public CSVTokenizer reset(ByteBuffer bytes) {
+        return reset(new ByteChars(bytes, bytes.position(), bytes.remaining()));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move to the next field of the current record.
+     *
+     * @return
+     *   boolean - true if there is one, false at the end of the record.
+     */
+    // ------------------------------------------------------------------------
+    public boolean nextField() {
+        if (!pending)
+            return false;
+
+        // Spaces before an opening quote are not part of the value.
+        int i = position;
+        while (i < limit && (chars.charAt(i) == ' ' || chars.charAt(i) == '\t'))
+            i++;
+        quoted = i < limit && chars.charAt(i) == QUOTE;
+        escaped = false;
+
+        if (quoted) {
+            start = ++i;
+            end = -1;
+            while (i < limit) {
+                if (chars.charAt(i) == QUOTE) {
+                    if (i + 1 < limit && chars.charAt(i + 1) == QUOTE) {
+                        escaped = true;
+                        i += 2;
+                        continue;
+                    }
+                    end = i++;
+                    break;
+                }
+                i++;
+            }
+            if (end < 0) {
+                // No closing quote: the field is the rest of the text.
+                end = limit;
+            }
+            // Skip anything between the closing quote and the separator.
+            i = skipToSeparator(i);
+        }
+        else {
+            start = position;
+            i = skipToSeparator(position);
+            end = i;
+        }
+
+        field++;
+        pending = i < limit && chars.charAt(i) == SEPARATOR;
+        position = pending ? i + 1 : i;
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move to the start of the next record, skipping any fields of the
+     * current record that were not read.
+     *
+     * @return
+     *   boolean - true if there is one, false at the end of the text.
+     */
+    // ------------------------------------------------------------------------
+    public boolean nextRecord() {
+        while (nextField())
+            ;
+        if (position < limit && chars.charAt(position) == '\r')
+            position++;
+        if (position < limit && chars.charAt(position) == '\n')
+            position++;
+        if (position >= limit)
+            return false;
+        pending = true;
+        field = -1;
+        record++;
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the index of the current field.
+     *
+     * @return
+     *   int - the index in its record, starting at 0.
+     */
+    // ------------------------------------------------------------------------
+    public int getField() {
+        return field;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the index of the current record.
+     *
+     * @return
+     *   int - the index in the text, starting at 0.
+     */
+    // ------------------------------------------------------------------------
+    public int getRecord() {
+        return record;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get where the current field starts.
+     *
+     * @return
+     *   int - the offset in the text, after any opening quote.
+     */
+    // ------------------------------------------------------------------------
+    public int getStart() {
+        return start;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get where the current field ends.
+     *
+     * @return
+     *   int - the offset in the text, before any closing quote.
+     */
+    // ------------------------------------------------------------------------
+    public int getEnd() {
+        return end;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Determine whether the current field is quoted.
+     *
+     * @return
+     *   boolean - true if it is.
+     */
+    // ------------------------------------------------------------------------
+    public boolean isQuoted() {
+        return quoted;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Determine whether the current field is empty.
+     *
+     * @return
+     *   boolean - true if it has no characters.
+     */
+    // ------------------------------------------------------------------------
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the value of the current field.
+     *
+     * @return
+     *   String - the value, without the quotes around it and with doubled
+     * quotes made single.
+     */
+    // ------------------------------------------------------------------------
+    public String getString() {
+        if (!escaped)
+            return chars.subSequence(start, end).toString();
+        return appendTo(new StringBuilder(end - start)).toString();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the value of the current field, as getString would return it.
+     *
+     * @param  sb  where to append it.
+     *
+     * @return
+     *   StringBuilder - sb.
+     */
+    // ------------------------------------------------------------------------
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!escaped)
+            return sb.append(chars, start, end);
+        for (int i = start; i < end; i++) {
+            char ch = chars.charAt(i);
+            sb.append(ch);
+            if (ch == QUOTE) {
+                // Skip the second quote of the pair.
+                i++;
+            }
+        }
+        return sb;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare the value of the current field to some text.
+     *
+     * @param  s  the text.
+     *
+     * @return
+     *   boolean - true if getString would return the same characters.
+     */
+    // ------------------------------------------------------------------------
+    public boolean contentEquals(CharSequence s) {
+        int length = s.length();
+        int n = 0;
+        for (int i = start; i < end; i++, n++) {
+            char ch = chars.charAt(i);
+            if (n >= length || s.charAt(n) != ch)
+                return false;
+            if (escaped && ch == QUOTE)
+                i++;
+        }
+        return n == length;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the value of the current field as an int.
+     *
+     * @return
+     *   int - the value.
+     *
+     * @exception NumberFormatException if the value is not a decimal int, as
+     * Integer.parseInt would decide.
+     */
+    // ------------------------------------------------------------------------
+    public int getInt() throws NumberFormatException {
+        return Integer.parseInt(chars, start, end, 10);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the value of the current field as a long.
+     *
+     * @return
+     *   long - the value.
+     *
+     * @exception NumberFormatException if the value is not a decimal long, as
+     * Long.parseLong would decide.
+     */
+    // ------------------------------------------------------------------------
+    public long getLong() throws NumberFormatException {
+        return Long.parseLong(chars, start, end, 10);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the value of the current field as a double. The result is always
+     * the same as Double.parseDouble(getString()). A plain decimal number of
+     * at most 15 significant digits, such as 1.25 or -0.0125, is converted
+     * from the text without making a String: the digits and the power of ten
+     * are both exact doubles, so one division rounds correctly. Anything
+     * else, such as more digits or an exponent, is given to
+     * Double.parseDouble.
+     *
+     * @return
+     *   double - the value.
+     *
+     * @exception NumberFormatException if the value is not a number.
+     */
+    // ------------------------------------------------------------------------
+    public double getDouble() throws NumberFormatException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars.charAt(i) == '-' || chars.charAt(i) == '+')) {
+            negative = chars.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;          // significant digits
+        int scale = 0;           // digits after the point
+        boolean point = false;
+        boolean any = false;
+        for (; i < end; i++) {
+            char ch = chars.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                if (mantissa != 0 || ch != '0')
+                    digits++;
+                mantissa = mantissa * 10 + (ch - '0');
+                any = true;
+                if (point)
+                    scale++;
+                if (digits > MAX_EXACT_DIGITS || scale >= POWERS_OF_TEN.length)
+                    return Double.parseDouble(getString());
+            }
+            else if (ch == '.' && !point)
+                point = true;
+            else
+                return Double.parseDouble(getString());
+        }
+        if (!any)
+            return Double.parseDouble(getString());
+
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pretty printer for CSVTokenizer.
+     *
+     * @return
+     *   String - the position of the current field.
+     */
+    // ------------------------------------------------------------------------
+    public String toString() {
+        return "CSVTokenizer[record=" + record + ",field=" + field +
+                    ",start=" + start + ",end=" + end + ",quoted=" + quoted + "]";
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the end of a field.
+     *
+     * @param  i  where to start looking.
+     *
+     * @return
+     *   int - the offset of the next separator or line end, or the length of
+     * the text.
+     */
+    // ------------------------------------------------------------------------
+    private int skipToSeparator(int i) {
+        while (i < limit) {
+            char ch = chars.charAt(i);
+            if (ch == SEPARATOR || ch == '\n' || ch == '\r')
+                break;
+            i++;
+        }
+        return i;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * The bytes of a ByteBuffer as ISO-8859-1 characters, without copying
+     * them.
+     */
+    // ------------------------------------------------------------------------
+    private static class ByteChars implements CharSequence {
+        /** The bytes. */
+        private final ByteBuffer bytes;
+
+        /** Index in bytes of the first character. */
+        private final int offset;
+
+        /** Number of characters. */
+        private final int length;
+
+
+        ByteChars(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+
+        public int length() {
+            return length;
+        }
+
+
+        public char charAt(int index) {
+            return (char)(bytes.get(offset + index) & 0xff);
+        }
+
+
+        public CharSequence subSequence(int from, int to) {
+            return new ByteChars(bytes, offset + from, to - from);
+        }
+
+
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++)
+                chars[i] = charAt(i);
+            return new String(chars);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.ekberg.utility;
 
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -105,14 +106,16 @@ public class TString extends StringMirror
     // ------------------------------------------------------------------------
     public Collection<String> splitToCollection(String separator)
     {
-        Collection<String> c = (Collection<String>)(new Vector<String>());
-        if (mirrorString != null) {
-            StringTokenizer st = new StringTokenizer(mirrorString, separator);
-            while(st.hasMoreTokens())
-            {
-                c.add(st.nextToken());
-            }
-        }
+        if (mirrorString == null)
+            return new ArrayList<String>(0);
+        Collection<String> c = new ArrayList<String>(countFields(mirrorString, separator));
+        int start = 0;
+        int end;
+        do {
+            end = fieldEnd(mirrorString, start, separator);
+            c.add(mirrorString.substring(start, end));
+            start = end + 1;
+        } while (end < mirrorString.length());
         return c;
     }
 
@@ -151,13 +154,14 @@ public class TString extends StringMirror
     // ------------------------------------------------------------------------
     public String[] splitToArray(String separator)
     {
-        StringTokenizer st = new StringTokenizer(noNull(mirrorString), separator);
-        String[] a = new String[st.countTokens()];
-        int i = 0;
-
-        while(st.hasMoreTokens())
-        {
-            a[i++] = st.nextToken();
+        String s = noNull(mirrorString);
+        String[] a = new String[countFields(s, separator)];
+        int start = 0;
+
+        for (int i=0; i<a.length; i++) {
+            int end = fieldEnd(s, start, separator);
+            a[i] = s.substring(start, end);
+            start = end + 1;
         }
         return a;
     }
@@ -177,13 +181,15 @@ public class TString extends StringMirror
     // ------------------------------------------------------------------------
     public int[] splitToIntArray(String separator)
     {
-        StringTokenizer st = new StringTokenizer(noNull(mirrorString), separator);
-        int[] a = new int[st.countTokens()];
-        int i = 0;
-
-        while(st.hasMoreTokens())
-        {
-            a[i++] = Integer.parseInt(st.nextToken());
+        String s = noNull(mirrorString);
+        int[] a = new int[countFields(s, separator)];
+        int start = 0;
+
+        // Parse each field where it is, without a substring.
+        for (int i=0; i<a.length; i++) {
+            int end = fieldEnd(s, start, separator);
+            a[i] = Integer.parseInt(s, start, end, 10);
+            start = end + 1;
         }
         return a;
     }
@@ -209,13 +215,13 @@ public class TString extends StringMirror
     		a = new long[0];
     	}
     	else {
-    		StringTokenizer st = new StringTokenizer(noNull(mirrorString), separator);
-    		a = new long[st.countTokens()];
-    		int i = 0;
+    		a = new long[countFields(mirrorString, separator)];
+    		int start = 0;
 
-    		while(st.hasMoreTokens())
-    		{
-    			a[i++] = Long.parseLong(st.nextToken());
+    		for (int i=0; i<a.length; i++) {
+    			int end = fieldEnd(mirrorString, start, separator);
+    			a[i] = Long.parseLong(mirrorString, start, end, 10);
+    			start = end + 1;
     		}
         }
         return a;
@@ -277,56 +283,81 @@ public class TString extends StringMirror
 
     // ------------------------------------------------------------------------
     /**
-     * Split a string from a CSV file. The separator is always a comma. This
+     * Split a line from a CSV file. The separator is always a comma. This
      * method differs from the other split methods in that this handles quoted
-     * strings with a CSV line.
+     * strings with a CSV line: the quotes around a value are removed and
+     * doubled quotes inside it are made single. A line end that is not in
+     * quotes ends the line. To read many lines, or to read values without
+     * making Strings, use CSVTokenizer.
      *
      * @return
-     *   Collection - the string in the form of a Collection.
+     *   Collection - the values in the form of a Collection.
      */
     // ------------------------------------------------------------------------
-    public Collection splitCSV()
+    public Collection<String> splitCSV()
     {
-        Collection<String> c = (Collection<String>)(new Vector<String>());
-        boolean inString = false; // true if the current value is a string.
-        int index;
-        int stringLength = mirrorString.length();
-        char ch;
-        int startValue = 0;
-
-        for(index=0; index < stringLength; index++) {
-            ch = mirrorString.charAt(index);
-            if (index == startValue) {
-                // Make a determination of the value based on the first
-                // character.
-                inString = ch == '"';
-            }
-            else if (inString) {
-                if (ch == '"') {
-                    if ((index+1 < stringLength) && (mirrorString.charAt(index+1) == '"')) {
-                        // Have two adjacent double quotes. These are
-                        // data. Skip over both of them.
-                        index++;
-                    }
-                    else {
-                        // Have found the matching trailing double quote.
-                        inString = false;
-                    }
-                }
-
-            }
-            if ( !inString && (ch == ',')) {
-                // Have hit the end of the current field.
-                c.add(mirrorString.substring(startValue, index));
-                startValue = index + 1;
-            }
+        Collection<String> c = new ArrayList<String>();
+        CSVTokenizer csv = new CSVTokenizer(noNull(mirrorString));
+        while (csv.nextField()) {
+            c.add(csv.getString());
         }
-        // Get the last value.
-        c.add(mirrorString.substring(startValue, stringLength));
         return c;
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Count the fields that a split method finds.
+     *
+     * @param  s  the string to split.
+     *
+     * @param  separator  the separator characters.
+     *
+     * @return
+     *   int - one more than the number of separators in s.
+     */
+    // ------------------------------------------------------------------------
+    private static int countFields(String s, String separator)
+    {
+        int count = 1;
+        int length = s.length();
+        for (int i=0; i<length; i++) {
+            if (separator.indexOf(s.charAt(i)) >= 0)
+                count++;
+        }
+        return count;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the end of a field that a split method finds.
+     *
+     * @param  s  the string to split.
+     *
+     * @param  start  where the field starts.
+     *
+     * @param  separator  the separator characters.
+     *
+     * @return
+     *   int - the index of the next separator, or the length of s.
+     */
+    // ------------------------------------------------------------------------
+    private static int fieldEnd(String s, int start, String separator)
+    {
+        int length = s.length();
+        if (separator.length() == 1) {
+            int end = s.indexOf(separator.charAt(0), start);
+            return end < 0 ? length : end;
+        }
+        for (int i=start; i<length; i++) {
+            if (separator.indexOf(s.charAt(i)) >= 0)
+                return i;
+        }
+        return length;
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * Join elements of a Collection together.
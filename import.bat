@@ -0,0 +1,13 @@
+@REM Load old timesheet files into the database. See HistoryImporter.
+@REM
+@REM Usage:
+@REM   import [-user NAME] [-state FILE] [-restart] [-dryRun] directory
+@REM
+@REM ------------------------------------------------------------------------------
+
+@set TIMER_HOME=/Home/TIMESHEET
+@set MYSQL_JAR=mysql-connector-java-5.0.4-bin.jar
+
+@set CLASSPATH=%TIMER_HOME%/lib/%MYSQL_JAR%;%TIMER_HOME%/Ekberg-TIMESHEET-1.0.jar;%TIMER_HOME%/lib/xstream-1.1.3.jar;%TIMER_HOME%/lib/xpp3-1.1.3.4d_b4_min.jar
+@REM XStream 1.1.3 needs java.util opened to it on Java 9 and later.
+@java --add-opens java.base/java.util=ALL-UNNAMED -DTIMER_HOME=%TIMER_HOME% org.ekberg.timer.HistoryImporter %*
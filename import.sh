@@ -0,0 +1,16 @@
+#!/bin/sh
+#
+# Load old timesheet files into the database. See HistoryImporter.
+#
+# Usage:
+#   import.sh [-user NAME] [-state FILE] [-restart] [-dryRun] directory
+#
+#------------------------------------------------------------------------------
+
+export TIMER_HOME="${TIMER_HOME:-TIMESHEET}"
+export MYSQL_JAR=mysql-connector-java-5.0.4-bin.jar
+
+export CLASSPATH="$TIMER_HOME/lib/$MYSQL_JAR:$TIMER_HOME/Ekberg-TIMESHEET-1.0.jar:$TIMER_HOME/lib/xstream-1.1.3.jar:$TIMER_HOME/lib/xpp3-1.1.3.4d_b4_min.jar"
+# XStream 1.1.3 sets up converters that reach into java.util, which Java 9
+# and later only allow when the package is opened.
+exec java --add-opens java.base/java.util=ALL-UNNAMED -DTIMER_HOME="$TIMER_HOME" org.ekberg.timer.HistoryImporter "$@"
@@ -0,0 +1,945 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer;
+
+
+import com.thoughtworks.xstream.XStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import org.ekberg.timer.database.TaskTimeElement;
+import org.ekberg.timer.database.TaskTimeElementDB;
+import org.ekberg.timer.database.TaskTimeElementHandler;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.Trace;
+import org.ekberg.utility.CSVTokenizer;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * Loads old timesheet files into the database. The files are found by
+ * walking a directory tree:
+ * <UL>
+ *   <LI> timesheet-YYYY-MM-DD.csv (see Timesheet.getTimesheetFile) - one
+ *        line per timer: the timer name, then its hours.
+ *   <LI> button-names.xml - the list of timer names, as written by XStream.
+ *        It becomes the task catalog: every name gets a row on the user's
+ *        latest imported day, and rows of that day that are not in the list
+ *        are disabled, as Timesheet.dumpButtonNames does.
+ * </UL>
+ * Files are owned by the user named by -user or, without it, by the
+ * directory under the root that holds them, so a team can be loaded from one
+ * directory per person. Files directly in the root belong to the user
+ * running the import.
+ *<P>
+ * The CSV files are parsed in parallel on a fork-join pool, import.roundFiles
+ * files at a time; the next round is parsed while the last one is loaded.
+ * Rows whose (USERNAME, TASKDATE, TASKNAME) is already in the database, or
+ * earlier in the import, are skipped. The rest are saved with
+ * TaskTimeElementDB.upsertAll, import.chunkSize rows per batch and
+ * transaction, and progress is printed after each one.
+ *<P>
+ * After each transaction, the files whose rows have all been saved are added
+ * to a state file, by default .timesheet-import in the root. A run that is
+ * stopped, or that fails, can be started again: the files in the state file
+ * are skipped, and rows of a half-loaded file are skipped as duplicates.
+ *<P>
+ * Usage: HistoryImporter [options] directory
+ * <UL>
+ *   <LI> -user NAME - the owner of all of the files.
+ *   <LI> -state FILE - the state file.
+ *   <LI> -restart - forget the state file and look at every file again.
+ *   <LI> -dryRun - parse and count, but do not save anything.
+ * </UL>
+ * Import while no one is using the timesheet program for the imported
+ * users, as rows it saves during the import are not seen by the duplicate
+ * check. On Java 9 and later, XStream 1.1.3 needs the JVM option
+ * --add-opens java.base/java.util=ALL-UNNAMED; import.sh passes it.
+ */
+// ----------------------------------------------------------------------------
+public class HistoryImporter {
+    /** The name of this class. */
+    private static final String ME = HistoryImporter.class.getName();
+
+    /** Start of the import properties. */
+    private static final String CONFIG_PREFIX = "import.";
+
+    /** Property: rows per batch and transaction. */
+    private static final String CONFIG_CHUNK_SIZE = "chunkSize";
+
+    /** Property: CSV files parsed per fork-join round. */
+    private static final String CONFIG_ROUND_FILES = "roundFiles";
+
+    /** Property: threads that parse, 0 for one per processor. */
+    private static final String CONFIG_PARALLELISM = "parallelism";
+
+    /** Property: character set of the CSV files, empty for the platform
+     * default. */
+    private static final String CONFIG_ENCODING = "encoding";
+
+    /** Default for CONFIG_CHUNK_SIZE. */
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /** Default for CONFIG_ROUND_FILES. */
+    private static final int DEFAULT_ROUND_FILES = 512;
+
+    /** Most files a fork-join task parses without splitting. */
+    private static final int LEAF_FILES = 8;
+
+    /** Name of the button names file. */
+    public static final String BUTTON_NAMES_FILE = "button-names.xml";
+
+    /** Default name of the state file, in the root. */
+    public static final String STATE_FILE = ".timesheet-import";
+
+    /** Format of the date in a timesheet file name. */
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    /** The directory tree. */
+    private final Path root;
+
+    /** The owner of every file, or null to use the directories. */
+    private final String userName;
+
+    /** Owner of the files directly in the root. */
+    private final String defaultUserName;
+
+    /** Where finished files are recorded. */
+    private final File stateFile;
+
+    /** True to save nothing. */
+    private final boolean dryRun;
+
+    /** Rows per transaction. */
+    private final int chunkSize;
+
+    /** Files per parse round. */
+    private final int roundFiles;
+
+    /** Character set of the CSV files. */
+    private final Charset charset;
+
+    /** Parses the files. */
+    private final ForkJoinPool pool;
+
+    /** Finished files from earlier runs, relative to the root. */
+    private final Set<String> finished = new HashSet<String>();
+
+    /** Keys of the rows in the database or already queued. */
+    private final Set<String> existing = new HashSet<String>();
+
+    /** CSV files to import, in path order. */
+    private final List<Path> csvFiles = new ArrayList<Path>();
+
+    /** Button names by user. */
+    private final Map<String, Catalog> catalogs = new HashMap<String, Catalog>();
+
+    /** The latest day of each user, from the CSV file names. */
+    private final Map<String, String> latestDates = new HashMap<String, String>();
+
+    /** Rows waiting for the next transaction. */
+    private final List<TaskTimeElement> chunk = new ArrayList<TaskTimeElement>();
+
+    /** Files whose rows are all in chunk or saved. */
+    private final List<String> chunkFiles = new ArrayList<String>();
+
+    /** Appends to the state file. */
+    private FileOutputStream stateStream;
+
+    /** Writes to stateStream. */
+    private Writer stateWriter;
+
+    /** Number of files to look at in this run. */
+    private int filesTotal;
+
+    /** Number of files looked at so far. */
+    private int filesDone;
+
+    /** Number of files skipped because an earlier run finished them. */
+    private int filesSkipped;
+
+    /** Number of rows read. */
+    private long rowsRead;
+
+    /** Number of rows saved. */
+    private long rowsSaved;
+
+    /** Number of rows skipped because they were already there. */
+    private long duplicates;
+
+    /** Number of lines and files that could not be read. */
+    private long errors;
+
+    /** When the import started, from System.currentTimeMillis. */
+    private long startTime;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * The rows of one timesheet file.
+     */
+    // ------------------------------------------------------------------------
+    private static class Day {
+        /** The file, relative to the root. */
+        final String name;
+
+        /** The rows. */
+        final List<TaskTimeElement> rows = new ArrayList<TaskTimeElement>();
+
+        /** Number of lines that could not be read. */
+        int errors;
+
+        /** True if the file could not be read at all. */
+        boolean failed;
+
+        Day(String name) {
+            this.name = name;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * The button names of one user.
+     */
+    // ------------------------------------------------------------------------
+    private static class Catalog {
+        /** The file, relative to the root. */
+        final String name;
+
+        /** The button names. */
+        final Set<String> buttonNames;
+
+        Catalog(String name, Set<String> buttonNames) {
+            this.name = name;
+            this.buttonNames = buttonNames;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parses a range of the CSV files, splitting it in half until it is
+     * small.
+     */
+    // ------------------------------------------------------------------------
+    private class Parser extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** Where the parsed files go, by index in csvFiles. */
+        private final Day[] days;
+
+        /** Index of the first file. */
+        private final int from;
+
+        /** Index after the last file. */
+        private final int to;
+
+        Parser(Day[] days, int from, int to) {
+            this.days = days;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= LEAF_FILES) {
+                for (int i = from; i < to; i++)
+                    days[i] = parseDay(csvFiles.get(i));
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Parser(days, from, middle), new Parser(days, middle, to));
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set up an import.
+     *
+     * @param  root  the directory tree.
+     *
+     * @param  userName  owner of every file, or null to use the directories.
+     *
+     * @param  stateFile  where finished files are recorded, or null for
+     * STATE_FILE in the root.
+     *
+     * @param  dryRun  true to save nothing.
+     */
+    // ------------------------------------------------------------------------
+    public HistoryImporter(File root, String userName, File stateFile, boolean dryRun) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.userName = userName;
+        this.stateFile = stateFile == null ? new File(root, STATE_FILE) : stateFile;
+        this.dryRun = dryRun;
+        String user = System.getenv("USERNAME"); // Windows
+        if (user == null)
+            user = System.getenv("USER");        // Linux
+        defaultUserName = user;
+        chunkSize = Math.max(1, Config.getInt(CONFIG_PREFIX + CONFIG_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        roundFiles = Math.max(1, Config.getInt(CONFIG_PREFIX + CONFIG_ROUND_FILES, DEFAULT_ROUND_FILES));
+        String encoding = Config.getString(CONFIG_PREFIX + CONFIG_ENCODING, "");
+        charset = encoding.length() == 0 ? Charset.defaultCharset() : Charset.forName(encoding);
+        int parallelism = Config.getInt(CONFIG_PREFIX + CONFIG_PARALLELISM, 0);
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget the files finished by earlier runs.
+     *
+     * @throws IOException if the state file can not be deleted.
+     */
+    // ------------------------------------------------------------------------
+    public void restart() throws IOException {
+        Files.deleteIfExists(stateFile.toPath());
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the import.
+     *
+     * @return
+     *   boolean - true if every file was read and every row saved. Rows with
+     * errors are reported and counted, and do not make this false.
+     *
+     * @throws IOException if the directory tree or the state file can not be
+     * read or written.
+     */
+    // ------------------------------------------------------------------------
+    public boolean run() throws IOException {
+        startTime = System.currentTimeMillis();
+        readState();
+        scan();
+        filesTotal = csvFiles.size() + catalogs.size();
+        progress("Found " + filesTotal + " files to import, skipped " + filesSkipped +
+                    " finished by an earlier run");
+        if (filesTotal == 0)
+            return true;
+        if (!loadExisting())
+            return false;
+
+        boolean ret = true;
+        if (!dryRun)
+            openState();
+        try {
+            ret = loadCSVFiles() && loadCatalogs() && flush();
+        }
+        finally {
+            pool.shutdown();
+            if (stateWriter != null)
+                stateWriter.close();
+        }
+        progress(ret ? "Done" : "Stopped");
+        return ret;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the names of the files finished by earlier runs.
+     *
+     * @throws IOException if the state file can not be read.
+     */
+    // ------------------------------------------------------------------------
+    private void readState() throws IOException {
+        if (stateFile.exists()) {
+            for (String line: Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8)) {
+                if (line.length() > 0)
+                    finished.add(line);
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the files to import and read the button names files.
+     *
+     * @throws IOException if the tree can not be read.
+     */
+    // ------------------------------------------------------------------------
+    private void scan() throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setLenient(false);
+        final List<Path> buttonFiles = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    String name = file.getFileName().toString();
+                    if (name.equals(BUTTON_NAMES_FILE)) {
+                        buttonFiles.add(file);
+                    }
+                    else {
+                        String date = getDate(name, format);
+                        if (date != null) {
+                            String user = getUserName(file);
+                            String latest = latestDates.get(user);
+                            if (latest == null || latest.compareTo(date) < 0)
+                                latestDates.put(user, date);
+                            if (finished.contains(getName(file)))
+                                filesSkipped++;
+                            else
+                                csvFiles.add(file);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    Trace.error("Can not read " + file, e);
+                    errors++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        Collections.sort(csvFiles);
+        Collections.sort(buttonFiles);
+
+        for (Path file: buttonFiles) {
+            String name = getName(file);
+            if (finished.contains(name)) {
+                filesSkipped++;
+                continue;
+            }
+            Set<String> buttonNames = readButtonNames(file);
+            if (buttonNames == null)
+                continue;
+            String user = getUserName(file);
+            Catalog old = catalogs.put(user, new Catalog(name, buttonNames));
+            if (old != null)
+                Trace.warning("Using " + name + " rather than " + old.name + " for " + user);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the date from the name of a timesheet file.
+     *
+     * @param  name  the file name.
+     *
+     * @param  format  parses the date.
+     *
+     * @return
+     *   String - the date, or null if this is not a timesheet file.
+     */
+    // ------------------------------------------------------------------------
+    private static String getDate(String name, SimpleDateFormat format) {
+        if (!name.startsWith(Timesheet.TIMESHEET_FILE_PREFIX) ||
+                    !name.endsWith(Timesheet.TIMESHEET_FILE_SUFFIX))
+            return null;
+        String date = name.substring(Timesheet.TIMESHEET_FILE_PREFIX.length(),
+                    name.length() - Timesheet.TIMESHEET_FILE_SUFFIX.length());
+        if (date.length() != DATE_FORMAT.length())
+            return null;
+        try {
+            format.parse(date);
+            return date;
+        }
+        catch (ParseException e) {
+            return null;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the name of a file, as kept in the state file.
+     *
+     * @param  file  the file.
+     *
+     * @return
+     *   String - the path relative to the root, with / between the names.
+     */
+    // ------------------------------------------------------------------------
+    private String getName(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the owner of a file.
+     *
+     * @param  file  the file.
+     *
+     * @return
+     *   String - the -user name, or else the directory under the root that
+     * holds the file, or else the user running the import.
+     */
+    // ------------------------------------------------------------------------
+    private String getUserName(Path file) {
+        if (userName != null)
+            return userName;
+        Path relative = root.relativize(file);
+        if (relative.getNameCount() > 1)
+            return relative.getName(0).toString();
+        return defaultUserName;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a button names file.
+     *
+     * @param  file  the file.
+     *
+     * @return
+     *   Set<String> - the names, or null if the file can not be read.
+     */
+    // ------------------------------------------------------------------------
+    private Set<String> readButtonNames(Path file) {
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8);
+            Object names = new XStream().fromXML(reader);
+            Collection<?> list = null;
+            if (names instanceof Collection)
+                list = (Collection<?>)names;
+            else if (names instanceof Object[])
+                list = Arrays.asList((Object[])names);
+            else
+                throw new IOException("not a list: " + (names == null ? null : names.getClass().getName()));
+            Set<String> buttonNames = new HashSet<String>();
+            for (Object name: list) {
+                if (name != null)
+                    buttonNames.add(name.toString());
+            }
+            return buttonNames;
+        }
+        catch (Exception e) {
+            Trace.error("Can not read " + file, e);
+            errors++;
+            return null;
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {}
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the keys of the rows in the database.
+     *
+     * @return
+     *   boolean - true if they were read.
+     */
+    // ------------------------------------------------------------------------
+    private boolean loadExisting() {
+        long count = TaskTimeElementDB.findAllKeys(new TaskTimeElementHandler() {
+                public boolean handle(TaskTimeElement row) {
+                    existing.add(key(row));
+                    return true;
+                }
+            }, userName);
+        if (count < 0) {
+            progress("Can not read the rows in the database");
+            return false;
+        }
+        progress("Read " + count + " rows from the database");
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the CSV files a round at a time and load them.
+     *
+     * @return
+     *   boolean - false if a transaction failed.
+     */
+    // ------------------------------------------------------------------------
+    private boolean loadCSVFiles() throws IOException {
+        Day[] days = new Day[csvFiles.size()];
+        ForkJoinTask<Void> round = null;
+        if (days.length > 0)
+            round = pool.submit(new Parser(days, 0, Math.min(roundFiles, days.length)));
+        for (int start = 0; start < days.length; start += roundFiles) {
+            int end = Math.min(start + roundFiles, days.length);
+            round.join();
+            // Parse the next round while this one is loaded.
+            if (end < days.length)
+                round = pool.submit(new Parser(days, end, Math.min(end + roundFiles, days.length)));
+            for (int i = start; i < end; i++) {
+                if (!load(days[i]))
+                    return false;
+                days[i] = null;
+            }
+        }
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a timesheet file. This runs on the fork-join pool.
+     *
+     * @param  file  the file.
+     *
+     * @return
+     *   Day - the rows.
+     */
+    // ------------------------------------------------------------------------
+    private Day parseDay(Path file) {
+        Day day = new Day(getName(file));
+        String user = getUserName(file);
+        String name = file.getFileName().toString();
+        String date = name.substring(Timesheet.TIMESHEET_FILE_PREFIX.length(),
+                    name.length() - Timesheet.TIMESHEET_FILE_SUFFIX.length());
+        Catalog catalog = catalogs.get(user);
+        boolean latest = catalog != null && date.equals(latestDates.get(user));
+        try {
+            CharBuffer text = charset.decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+            CSVTokenizer csv = new CSVTokenizer(text);
+            do {
+                csv.nextField();
+                String taskName = csv.getString();
+                boolean haveHours = csv.nextField();
+                if (taskName.length() == 0 && !haveHours)
+                    continue;     // A blank line.
+                if (taskName.length() == 0) {
+                    lineError(day, csv, "no timer name");
+                    continue;
+                }
+                if (!haveHours) {
+                    lineError(day, csv, "no hours");
+                    continue;
+                }
+                double hours;
+                try {
+                    hours = csv.getDouble();
+                }
+                catch (NumberFormatException e) {
+                    lineError(day, csv, "bad hours " + csv.getString());
+                    continue;
+                }
+                TaskTimeElement row = new TaskTimeElement();
+                row.setDuration(hours);
+                row.setTaskDate(date);
+                row.setTaskName(taskName);
+                row.setUserName(user);
+                // On the latest day, timers no longer in the catalog were
+                // deleted.
+                row.setEnabled(!latest || catalog.buttonNames.contains(taskName));
+                day.rows.add(row);
+            } while (csv.nextRecord());
+        }
+        catch (IOException e) {
+            Trace.error("Can not read " + file, e);
+            day.failed = true;
+        }
+        return day;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Report a line that can not be imported.
+     *
+     * @param  day  the file.
+     *
+     * @param  csv  at the line.
+     *
+     * @param  message  what is wrong.
+     */
+    // ------------------------------------------------------------------------
+    private static void lineError(Day day, CSVTokenizer csv, String message) {
+        Trace.warning(day.name + ":" + (csv.getRecord() + 1) + ": " + message);
+        day.errors++;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue the new rows of a parsed file, saving them a chunk at a time.
+     *
+     * @param  day  the file.
+     *
+     * @return
+     *   boolean - false if a transaction failed.
+     */
+    // ------------------------------------------------------------------------
+    private boolean load(Day day) throws IOException {
+        errors += day.errors;
+        if (day.failed) {
+            // Not recorded as finished, so the next run tries it again.
+            errors++;
+            filesDone++;
+            return true;
+        }
+        for (TaskTimeElement row: day.rows) {
+            rowsRead++;
+            if (!queue(row))
+                return false;
+        }
+        finish(day.name);
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a row for each button name that does not have one on the user's
+     * latest day.
+     *
+     * @return
+     *   boolean - false if a transaction failed.
+     */
+    // ------------------------------------------------------------------------
+    private boolean loadCatalogs() throws IOException {
+        String today = new SimpleDateFormat(DATE_FORMAT).format(new Date());
+        for (Map.Entry<String, Catalog> entry: catalogs.entrySet()) {
+            String user = entry.getKey();
+            String date = latestDates.get(user);
+            for (String buttonName: entry.getValue().buttonNames) {
+                TaskTimeElement row = new TaskTimeElement();
+                row.setDuration(0);
+                row.setTaskDate(date == null ? today : date);
+                row.setTaskName(buttonName);
+                row.setUserName(user);
+                row.setEnabled(true);
+                rowsRead++;
+                if (!queue(row))
+                    return false;
+            }
+            finish(entry.getValue().name);
+        }
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a row unless it is already there, and save the chunk when it is
+     * full.
+     *
+     * @param  row  the row.
+     *
+     * @return
+     *   boolean - false if a transaction failed.
+     */
+    // ------------------------------------------------------------------------
+    private boolean queue(TaskTimeElement row) throws IOException {
+        if (!existing.add(key(row))) {
+            duplicates++;
+            return true;
+        }
+        chunk.add(row);
+        return chunk.size() < chunkSize || flush();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Note that all of the rows of a file are queued. The file is recorded
+     * as finished once the chunk they are in is saved.
+     *
+     * @param  name  the file, relative to the root.
+     */
+    // ------------------------------------------------------------------------
+    private void finish(String name) {
+        filesDone++;
+        chunkFiles.add(name);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save the queued rows in one transaction, then record the files that
+     * are finished.
+     *
+     * @return
+     *   boolean - false if the transaction failed.
+     */
+    // ------------------------------------------------------------------------
+    private boolean flush() throws IOException {
+        if (!chunk.isEmpty()) {
+            if (!dryRun && !TaskTimeElementDB.upsertAll(chunk)) {
+                progress("Could not save " + chunk.size() + " rows; run again to resume");
+                return false;
+            }
+            rowsSaved += chunk.size();
+            chunk.clear();
+        }
+        if (stateWriter != null && !chunkFiles.isEmpty()) {
+            for (String name: chunkFiles)
+                stateWriter.write(name + "\n");
+            stateWriter.flush();
+            // Make sure the record survives a crash before going on.
+            stateStream.getFD().sync();
+        }
+        chunkFiles.clear();
+        progress(null);
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the state file to add to it.
+     *
+     * @throws IOException if it can not be opened.
+     */
+    // ------------------------------------------------------------------------
+    private void openState() throws IOException {
+        stateStream = new FileOutputStream(stateFile, true);
+        stateWriter = new OutputStreamWriter(stateStream, StandardCharsets.UTF_8);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the progress.
+     *
+     * @param  message  printed first, or null.
+     */
+    // ------------------------------------------------------------------------
+    private void progress(String message) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        StringBuffer sb = new StringBuffer();
+        if (message != null)
+            sb.append(message).append(": ");
+        sb.append("files ").append(filesDone).append("/").append(filesTotal);
+        sb.append(", rows read ").append(rowsRead);
+        sb.append(", ").append(dryRun ? "new " : "saved ").append(rowsSaved);
+        sb.append(", duplicates ").append(duplicates);
+        sb.append(", errors ").append(errors);
+        sb.append(", ").append(rowsSaved * 1000 / elapsed).append(" rows/s");
+        if (filesDone > 0 && filesDone < filesTotal) {
+            long left = elapsed * (filesTotal - filesDone) / filesDone / 1000;
+            sb.append(", ").append(left).append(" s left");
+        }
+        System.out.println(sb.toString());
+        Trace.notice(sb.toString());
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the key that identifies a row.
+     *
+     * @param  row  the row.
+     *
+     * @return
+     *   String - user name, task date and task name.
+     */
+    // ------------------------------------------------------------------------
+    private static String key(TaskTimeElement row) {
+        return row.getUserName() + "\t" + row.getTaskDate() + "\t" + row.getTaskName();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pretty printer for HistoryImporter.
+     *
+     * @return
+     *   String - the root and the counts.
+     */
+    // ------------------------------------------------------------------------
+    public String toString() {
+        return "HistoryImporter[root=" + root + ",filesDone=" + filesDone +
+                    ",rowsSaved=" + rowsSaved + ",duplicates=" + duplicates +
+                    ",errors=" + errors + "]";
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the usage message and exit.
+     **/
+    // ------------------------------------------------------------------------
+    private static void usage() {
+        System.err.println("Usage: HistoryImporter [-user NAME] [-state FILE] " +
+                    "[-restart] [-dryRun] directory");
+        System.exit(1);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Import a directory tree. See the class comment.
+     *
+     * @param  args  the options and directory.
+     **/
+    // ------------------------------------------------------------------------
+    public static void main(String[] args) {
+        String user = null;
+        File state = null;
+        boolean restart = false;
+        boolean dryRun = false;
+        File directory = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-restart"))
+                restart = true;
+            else if (arg.equals("-dryRun"))
+                dryRun = true;
+            else if (arg.startsWith("-") && i + 1 >= args.length)
+                usage();
+            else if (arg.equals("-user"))
+                user = args[++i];
+            else if (arg.equals("-state"))
+                state = new File(args[++i]);
+            else if (arg.startsWith("-") || directory != null)
+                usage();
+            else
+                directory = new File(arg);
+        }
+        if (directory == null || !directory.isDirectory())
+            usage();
+
+        int status = 0;
+        try {
+            HistoryImporter importer = new HistoryImporter(directory, user, state, dryRun);
+            if (restart)
+                importer.restart();
+            if (!importer.run())
+                status = 1;
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            Trace.error(ME, e);
+            status = 1;
+        }
+        System.out.flush();
+        System.exit(status);
+    }
+}
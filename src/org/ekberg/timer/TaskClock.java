@@ -0,0 +1,179 @@
+//  @(#) $Id:  $
+
+//  *********************************************************************
+//
+//    Copyright (c) 2008 Tom Ekberg.
+//    All Rights Reserved
+//
+//    The information contained herein is confidential to and the
+//    property of Tom Ekberg. and is not to be disclosed
+//    to any third party without prior express written permission
+//    of Tom Ekberg.  Tom Ekberg., as the
+//    author and owner under 17 U.S.C. Sec. 201(b) of this work made
+//    for hire, claims copyright in this material as an unpublished
+//    work under 17 U.S.C. Sec.s 102 and 104(a)
+//
+//  *******************************************************************
+
+
+package org.ekberg.timer;
+
+
+/**
+ * The elapsed time for one task. Time is kept as a count of nanoseconds that
+ * is added to from System.nanoTime() while the clock is running, so it does
+ * not depend on how often, or how late, anybody looks at it. Nothing here
+ * allocates.
+ */
+public class TaskClock {
+    /** Number of nanoseconds in one second. */
+    public static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** Number of nanoseconds in one hour. */
+    public static final double NANOS_PER_HOUR = 3600.0D * NANOS_PER_SECOND;
+
+    /** Time accumulated by earlier runs, in nanoseconds. */
+    private long accumulated;
+
+    /** System.nanoTime() when the current run started. Only meaningful when
+     * running is true. */
+    private long startedAt;
+
+    /** True while the clock is counting. */
+    private boolean running;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Start counting. Does nothing if the clock is already running.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void start() {
+        if (!running) {
+            startedAt = System.nanoTime();
+            running = true;
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop counting. The time so far is kept.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void stop() {
+        if (running) {
+            accumulated += System.nanoTime() - startedAt;
+            running = false;
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine if the clock is counting.
+     *
+     * @return
+     *   boolean - true if running.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the elapsed time.
+     *
+     * @return
+     *   long - the elapsed time in nanoseconds.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized long getElapsedNanos() {
+        return running
+                    ? accumulated + (System.nanoTime() - startedAt)
+                    : accumulated;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the elapsed time in whole seconds, which is what the GUI shows.
+     *
+     * @return
+     *   long - the elapsed time in seconds.
+     */
+    //-------------------------------------------------------------------------
+    public long getElapsedSeconds() {
+        return getElapsedNanos() / NANOS_PER_SECOND;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the elapsed time in hours. This is the value that is stored in the
+     * database.
+     *
+     * @return
+     *   double - the elapsed time in hours.
+     */
+    //-------------------------------------------------------------------------
+    public double getHours() {
+        return getElapsedNanos() / NANOS_PER_HOUR;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Set the elapsed time, for example from a value saved in the
+     * database. A running clock keeps running from the new value.
+     *
+     * @param  hours  the elapsed time in hours.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void setHours(double hours) {
+        accumulated = Math.round(hours * NANOS_PER_HOUR);
+        if (running)
+            startedAt = System.nanoTime();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Add time that System.nanoTime() did not see, such as time the computer
+     * spent suspended. Only a running clock is credited.
+     *
+     * @param  nanos  the time to add.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void credit(long nanos) {
+        if (running && nanos > 0)
+            accumulated += nanos;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Set the elapsed time back to zero.
+     */
+    //-------------------------------------------------------------------------
+    public void reset() {
+        setHours(0.0D);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for TaskClock. Mostly used for debugging.
+     *
+     * @return
+     *   String - nicely formatted TaskClock object.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "TaskClock[seconds=" + getElapsedSeconds() +
+                    ", running=" + isRunning() +
+                    "]";
+    }
+}
@@ -36,6 +36,7 @@ import java.util.*;
 import javax.swing.*;
 import org.ekberg.timer.database.TaskTimeElement;
 import org.ekberg.timer.database.TaskTimeElementDB;
+import org.ekberg.timer.database.WriteBehindQueue;
 import org.ekberg.timer.utility.Config;
 import org.ekberg.timer.utility.Trace;
 
@@ -57,6 +58,12 @@ public class Timesheet {
     /** Date formatter for the generated timesheet file. */
     protected final static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 
+    /** Start of the name of a timesheet file, before the date. */
+    public final static String TIMESHEET_FILE_PREFIX = "timesheet-";
+
+    /** End of the name of a timesheet file, after the date. */
+    public final static String TIMESHEET_FILE_SUFFIX = ".csv";
+
     protected final static String HELP_MESSAGE = "Timesheet Program\n" +
                 "\n" +
                 "This program can be used to record the amount of time used at various tasks. A\n" +
@@ -115,6 +122,9 @@ public class Timesheet {
     /** Instance to use to access the database. */
     protected static TaskTimeElementDB database = null;
 
+    /** Saves times in the background. */
+    protected static WriteBehindQueue writer = null;
+
     /** The name of the user retrieved via getenv. */
     protected static String userName;
 
@@ -127,6 +137,9 @@ public class Timesheet {
         /** This shows the number of hours for this timer. */
         public JLabel time;
 
+        /** The time for this timer. time only displays it. */
+        public TaskClock clock;
+
         /** Needed by outputTimes when rewriting times to the file. When this
          * is true, it means that this timer wasn't in the file and still needs
          * to be written. When this is false, it was found in the file, and
@@ -144,6 +157,7 @@ public class Timesheet {
         public Button(String name) {
             button = new JRadioButton(name);
             time = new JLabel("0");
+            clock = new TaskClock();
             needsToBeWritten = true;
         }
 
@@ -220,7 +234,8 @@ public class Timesheet {
             // Start a timer when its button is clicked.
             b.button.addActionListener(new ActionListener() {
                     public void actionPerformed(ActionEvent ev) {
-                        updater.setTimerGUI(findButton().time);
+                        Button selected = findButton();
+                        updater.setActive(selected.clock, selected.time);
                     }
                 });
 
@@ -289,14 +304,15 @@ public class Timesheet {
 
         start.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ev) {
-                    updater.setTimerGUI(findButton().time);
+                    Button selected = findButton();
+                    updater.setActive(selected.clock, selected.time);
                 }
             });
 
         pause.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ev) {
                     outputTimes(new Date());
-                    updater.setTimerGUI(null);
+                    updater.setActive(null, null);
                 }
             });
 
@@ -370,21 +386,14 @@ public class Timesheet {
      */
     //-------------------------------------------------------------------------
     public static void dumpButtonNames(List<String> buttonNames) {
-        String today = null;
-        List<TaskTimeElement> beans = null;
-        Calendar cal = Calendar.getInstance();
-        if (database.findAll().size() > 0) {
-            // Loop backward through days until we find something.
-            do {
-                today = sdf.format(cal.getTime());
-                beans = database.findAllByTaskDate(today);
-                Trace.info("TWE dumpButtonNames: today=" + today + ", buttonNames=" + buttonNames);
-                Trace.info("TWE dumpButtonNames: beans=" + beans);
-                cal.add(Calendar.DAY_OF_WEEK, -1);
-            } while (beans.size() == 0);
-        } else {
-            beans = new ArrayList<TaskTimeElement>();
+        String today = sdf.format(new Date());
+        // The most recent day, up to today, that has any timers.
+        List<TaskTimeElement> beans = database.findAllByLatestTaskDate(today);
+        if (beans.size() > 0) {
+            today = beans.get(0).getTaskDate();
         }
+        Trace.infof("TWE dumpButtonNames: today={}, buttonNames={}", today, buttonNames);
+        Trace.infof("TWE dumpButtonNames: beans={}", beans);
         int loc;
         for(TaskTimeElement bean: beans) {
             if ((loc = buttonNames.indexOf(bean.getTaskName())) < 0) {
@@ -392,7 +401,7 @@ public class Timesheet {
                 // A buttonName was deleted.
                 bean.setEnabled(false); // Preserve duration value.
                 database.update(bean);
-                Trace.info("TWE dumpButtonNames: disabled " + bean);
+                Trace.infof("TWE dumpButtonNames: disabled {}", bean);
                 break;
             }
         }
@@ -410,7 +419,7 @@ public class Timesheet {
                 TaskTimeElement oldBean = database.findByTaskNameAndTaskDate(buttonName, today);
                 if (oldBean != null) {
                     // Found an existing (diabled) bean. Reenable it.
-                    Trace.info("TWE dumpButtonNames: oldBean " + oldBean);
+                    Trace.infof("TWE dumpButtonNames: oldBean {}", oldBean);
                     oldBean.setEnabled(true);
                     database.update(oldBean);
                 } else {
@@ -421,7 +430,7 @@ public class Timesheet {
                     newBean.setUserName(userName);
                     newBean.setEnabled(true);
                     if (database.create(newBean)) {
-                        Trace.info("TWE dumpButtonNames: created " + newBean);
+                        Trace.infof("TWE dumpButtonNames: created {}", newBean);
                     } else {
                         Trace.error("Unable to create bean " + newBean);
                     }
@@ -443,19 +452,12 @@ public class Timesheet {
     //-------------------------------------------------------------------------
     @SuppressWarnings("unchecked")
     public static List<String> loadButtonNames() {
-        List<String> names = null;
-        List<TaskTimeElement> beans = database.findAll();
-        // Use the date of the last one to retrieve all for this date.
-        if (beans.size() == 0) {
-            // No names, and no error - return empty list.
-            names = new ArrayList<String>();
-        } else {
-            String lastDate = beans.get(beans.size() - 1).getTaskDate();
-            beans = database.findAllByTaskDate(lastDate);
-            names = new ArrayList<String>(beans.size());
-            for(TaskTimeElement bean: beans) {
-                names.add(bean.getTaskName());
-            }
+        // The names used on the most recent day. If there are none, and no
+        // error, this is an empty list.
+        List<TaskTimeElement> beans = database.findAllByLatestTaskDate(null);
+        List<String> names = new ArrayList<String>(beans.size());
+        for(TaskTimeElement bean: beans) {
+            names.add(bean.getTaskName());
         }
         return names;
     }
@@ -468,6 +470,7 @@ public class Timesheet {
     //-------------------------------------------------------------------------
     protected void resetButtons() {
         for(Button b: buttons) {
+            b.clock.reset();
             b.time.setText("0");
         }
     }
@@ -482,9 +485,9 @@ public class Timesheet {
         List<TaskTimeElement> beans = database.findAllByTaskDate(sdf.format(new Date()));
         for(TaskTimeElement bean: beans) {
             Button b = findButton(bean.getTaskName());
-            try {
+            if (b != null) {
+                b.clock.setHours(bean.getDuration());
                 b.time.setText(updater.formatTime(bean.getDuration()));
-            } catch (NumberFormatException e) {
             }
         }
     }
@@ -504,7 +507,7 @@ public class Timesheet {
      */
     //-------------------------------------------------------------------------
     protected File getTimesheetFile(File directory, Date date) {
-        return new File(directory, "timesheet-" + sdf.format(date) + ".csv");
+        return new File(directory, TIMESHEET_FILE_PREFIX + sdf.format(date) + TIMESHEET_FILE_SUFFIX);
     }
 
 
@@ -553,57 +556,57 @@ public class Timesheet {
 
     //-------------------------------------------------------------------------
     /**
-     * Output the current times for this day.
+     * Output the current times for this day. The times are handed to the
+     * write-behind queue, so this does not wait for the database.
      *
-     * @param  date  used to construct the timesheet file name.
+     * @param  date  the day the times are for.
      */
     //-------------------------------------------------------------------------
     public void outputTimes(Date date) {
+        Trace.pmStart("Timesheet.outputTimes");
+        try {
+            outputTimesNow(date);
+        }
+        finally {
+            Trace.pmStop("Timesheet.outputTimes");
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Does the work of outputTimes.
+     *
+     * @param  date  the day the times are for.
+     */
+    //-------------------------------------------------------------------------
+    private void outputTimesNow(Date date) {
         boolean haveData = false;
 
         for(Button b: buttons) {
-            if (!b.time.getText().equals("0")) {
+            if (b.clock.getElapsedSeconds() > 0) {
                 haveData = true;
                 break;
             }
         }
-        Trace.info("TWE haveData=" + haveData);
+        Trace.infof("TWE haveData={}", haveData);
 
         if (haveData) {
             String today = sdf.format(date);
-            List<TaskTimeElement> beans = database.findAllByTaskDate(today);
-            Trace.info("TWE buttons=" + buttons);
-            Trace.info("TWE beans=" + beans);
+            Trace.infof("TWE buttons={}", buttons);
+            // Collect the whole day. The writer finds the ids of rows that
+            // were already saved.
+            List<TaskTimeElement> changed = new ArrayList<TaskTimeElement>(buttons.size());
             for(Button b: buttons) {
-                boolean foundBean = false;
-                double hours = updater.parseTime(b.time.getText());
-                for(TaskTimeElement bean: beans) {
-                    if (b.button.getText().equals(bean.getTaskName())) {
-                        Trace.info("TWE outputTimes: saved time=" + (updater.parseTime(b.time.getText())));
-                        bean.setDuration(hours);
-                        if (!database.update(bean)) {
-                            Trace.error("Got an error updating bean: " + bean);
-                        }
-                        foundBean = true;
-                        break;
-                    }
-                }
-                if (!foundBean) {
-                    // Didn't find an existing bean. Create one.
-                    TaskTimeElement newBean = new TaskTimeElement();
-                    newBean.setDuration(hours);
-                    newBean.setTaskDate(today);
-                    newBean.setTaskName(b.button.getText());
-                    newBean.setUserName(userName);
-                    newBean.setEnabled(true);
-                    if (database.create(newBean)) {
-                        Trace.info("TWE dumpButtonNames: created " + newBean);
-                    } else {
-                        Trace.error("Unable to create bean " + newBean);
-                    }
-                    
-                }
+                TaskTimeElement bean = new TaskTimeElement();
+                bean.setDuration(b.clock.getHours());
+                bean.setTaskDate(today);
+                bean.setTaskName(b.button.getText());
+                bean.setUserName(userName);
+                bean.setEnabled(true);
+                changed.add(bean);
             }
+            writer.submit(changed);
         }
     }
 
@@ -655,6 +658,7 @@ public class Timesheet {
     //-------------------------------------------------------------------------
     public static void allDone() {
         _instance.outputTimes(new Date());
+        writer.close();
         System.exit(0);
     }
 
@@ -678,6 +682,8 @@ public class Timesheet {
             database = new TaskTimeElementDB(userName);
         }
 
+        writer = new WriteBehindQueue();
+
         topFrame = new JFrame("Timesheet");
         buttonNames = Timesheet.loadButtonNames();
 
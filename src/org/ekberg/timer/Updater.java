@@ -28,6 +28,11 @@ import javax.swing.*;
  * This class updates a specific timer, once every second.
  * New day listeners can express interest in a new day by calling
  * addNewDayListener() with a NewDayListener object.
+ *<P>
+ * The time itself is kept by the active TaskClock, not by the JLabel. Each
+ * tick only reads the clock and, when the number of seconds has changed,
+ * rewrites the label. A late or missed tick therefore never loses time, and
+ * a tick does not allocate anything other than the new label text.
  */
 public class Updater extends TimerTask {
     /** The time formatted to show hours. */
@@ -43,34 +48,65 @@ public class Updater extends TimerTask {
     protected static final SimpleDateFormat[] sdfs = {
         HOUR_FORMAT, MINUTE_FORMAT, SECOND_FORMAT};
 
+    /** Minute listeners are called each time this many seconds have been
+     * added to the active timer. */
+    protected static final long MINUTE_LISTENER_SECONDS = 3 * 60;
+
+    /** If the wall clock moves this many milliseconds more than
+     * System.nanoTime() between two ticks, the computer was suspended. */
+    protected static final long SUSPEND_THRESHOLD = 2000L;
+
+    /** Number of milliseconds in one day. */
+    protected static final long ONE_DAY = 24L * 60L * 60L * 1000L;
+
     /** The GUI to update with the new time. This is the time to be updated. */
     JLabel timerGUI;
 
+    /** The clock for the task being timed, or null when no timer is running. */
+    TaskClock clock;
+
+    /** The number of seconds currently shown in timerGUI, or -1 when nothing
+     * has been shown yet. */
+    long displayedSeconds = -1;
+
     /** Time at which this task last ran. */
     long scheduledTime = 0L;
 
+    /** System.nanoTime() at the last run. */
+    long lastTickNanos = 0L;
+
+    /** Used to work out the local day without creating a Calendar. */
+    TimeZone zone = TimeZone.getDefault();
+
     /** NewDayListener objects. */
     List<NewDayListener> dayListeners = new ArrayList<NewDayListener>();
 
     /** MinutesChangedListener objects. */
     List<MinutesChangedListener> minuteListeners = new ArrayList<MinutesChangedListener>();
 
-    /** The day of year the previous time run() was invoked. */
-    int previousDay;
-
-    /** The year the previous time time run() was invoked. */
-    int previousYear;
+    /** The local day, counted from 1970, the previous time run() was
+     * invoked. */
+    long previousDay;
 
 
     //-------------------------------------------------------------------------
     /**
-     * Specify the JLLabel to update.
+     * Specify the timer to run. The clock that was running is stopped and the
+     * new one is started.
+     *
+     * @param  clock  the clock of the new timer, or null to stop timing.
      *
-     * @param  timerGUI  the new timer to update.
+     * @param  timerGUI  the JLabel that shows the clock.
      */
     //-------------------------------------------------------------------------
-    public void setTimerGUI(JLabel timerGUI) {
-        this.timerGUI = timerGUI;
+    public synchronized void setActive(TaskClock clock, JLabel timerGUI) {
+        if (this.clock != null && this.clock != clock)
+            this.clock.stop();
+        this.clock = clock;
+        this.timerGUI = clock == null ? null : timerGUI;
+        displayedSeconds = -1;
+        if (clock != null)
+            clock.start();
     }
 
 
@@ -82,8 +118,8 @@ public class Updater extends TimerTask {
     protected Updater() {
         super();
         timerGUI = null;
+        clock = null;
         previousDay = -1;
-        previousYear = -1;
     }
 
 
@@ -93,47 +129,44 @@ public class Updater extends TimerTask {
      */
     //-------------------------------------------------------------------------
     public void run() {
+        long previousTime = scheduledTime;
+        long previousNanos = lastTickNanos;
         scheduledTime = System.currentTimeMillis();
+        lastTickNanos = System.nanoTime();
 
-        Calendar today = new GregorianCalendar();
-        int currentDay = today.get(Calendar.DAY_OF_YEAR);
-        if ((previousDay != currentDay) && (timerGUI == null)) {
+        TaskClock clock;
+        JLabel timerGUI;
+        synchronized (this) {
+            clock = this.clock;
+            timerGUI = this.timerGUI;
+        }
+
+        if (previousNanos != 0 && clock != null) {
+            // System.nanoTime() may not advance while the computer is
+            // suspended. Count that time the way the wall clock does.
+            long suspended = (scheduledTime - previousTime) - (lastTickNanos - previousNanos) / 1000000L;
+            if (suspended > SUSPEND_THRESHOLD)
+                clock.credit(suspended * 1000000L);
+        }
+
+        long currentDay = (scheduledTime + zone.getOffset(scheduledTime)) / ONE_DAY;
+        if ((previousDay != currentDay) && (clock == null)) {
             if (previousDay != -1) {
                 // Have a new day and there it no active GUI.  Inform those who
-                // wanted to be notified.
-                GregorianCalendar yesterday = new GregorianCalendar();
-                yesterday.set(Calendar.DAY_OF_YEAR, previousDay);
-                yesterday.set(Calendar.YEAR, previousYear);
-                invokeDayListeners(yesterday.getTime());
+                // wanted to be notified. previousTime was on the old day.
+                invokeDayListeners(new Date(previousTime));
             }
             previousDay = currentDay;
-            previousYear = today.get(Calendar.YEAR);
         }
-        if (timerGUI != null) {
-            Calendar oldTime = parseCalendarTime(timerGUI.getText());
-            int minutes;
-            if (oldTime != null) {
-                Calendar time = (Calendar)oldTime.clone();
-                time.add(Calendar.SECOND, 1);
-                if (time.get(Calendar.DAY_OF_YEAR) != oldTime.get(Calendar.DAY_OF_YEAR)) {
-                    invokeDayListeners(oldTime.getTime());
-                }
-                // Pick the right output formatter.
-                SimpleDateFormat sdf = SECOND_FORMAT;
-                if ((minutes = time.get(Calendar.MINUTE)) > 0) {
-                    sdf = MINUTE_FORMAT;
-                    if ((minutes / 3 * 3 == minutes) &&
-                                (time.get(Calendar.SECOND) == 0)) {
-                        invokeMinuteListeners(new Date());
-                    }
+        if (clock != null) {
+            long seconds = clock.getElapsedSeconds();
+            if (seconds != displayedSeconds) {
+                if ((displayedSeconds >= 0) &&
+                            (seconds / MINUTE_LISTENER_SECONDS != displayedSeconds / MINUTE_LISTENER_SECONDS)) {
+                    invokeMinuteListeners(new Date(scheduledTime));
                 }
-                if (time.get(Calendar.HOUR_OF_DAY) > 0)
-                    sdf = HOUR_FORMAT;
-                timerGUI.setText(sdf.format(time.getTime()));
-            }
-            else {
-
-                System.err.println("Unable to parse " + timerGUI.getText());
+                displayedSeconds = seconds;
+                timerGUI.setText(formatSeconds(seconds));
             }
         }
     }
@@ -208,25 +241,55 @@ public class Updater extends TimerTask {
      */
     //-------------------------------------------------------------------------
     public String formatTime(double hourTime) {
-        String ret = "";
-        long secondTime = Math.round(hourTime * 3600.0D);
+        return formatSeconds(Math.round(hourTime * 3600.0D));
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format a number of seconds the way the GUI shows it: H:MM:SS, M:SS or
+     * S.
+     *
+     * @param  secondTime  the time in seconds.
+     *
+     * @return
+     *   String - the formatted time.
+     */
+    //-------------------------------------------------------------------------
+    public static String formatSeconds(long secondTime) {
+        StringBuilder sb = new StringBuilder(10);
 
         if (secondTime >= 3600) {
             // Have hours. Format as H:MM:SS.
-            ret = (secondTime / 3600) + ":";
-            secondTime = secondTime - (secondTime / 3600) * 3600;
-            ret = ret + pad2("" + (secondTime / 60)) + ":" +
-                        pad2("" + (secondTime % 60));
+            sb.append(secondTime / 3600).append(':');
+            appendPad2(sb, (secondTime / 60) % 60);
+            sb.append(':');
+            appendPad2(sb, secondTime % 60);
         }
         else if (secondTime >= 60) {
             // Have minutes. Format as M:SS.
-            ret = (secondTime / 60) + ":" + pad2("" + (secondTime % 60));
+            sb.append(secondTime / 60).append(':');
+            appendPad2(sb, secondTime % 60);
         }
         else {
             // Only have seconds. Format as S.
-            ret = "" + (secondTime % 60);
+            sb.append(secondTime % 60);
         }
-        return ret;
+        return sb.toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Append a value from 0 to 99 as two digits.
+     *
+     * @param  sb  where to append.
+     *
+     * @param  value  the value.
+     */
+    //-------------------------------------------------------------------------
+    private static void appendPad2(StringBuilder sb, long value) {
+        sb.append((char)('0' + value / 10)).append((char)('0' + value % 10));
     }
 
 
@@ -5,6 +5,7 @@ package org.ekberg.timer.database;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Properties;
 import org.ekberg.timer.utility.Config;
@@ -13,11 +14,21 @@ import org.ekberg.timer.utility.Trace;
 
 /**
  * Provides a simple database connection pooling mechanism.
+ *<P>
+ * When the dialect allows only one writer at a time (SQLite), writes use
+ * getWriteConnection, which borrows from a second pool holding a single
+ * connection, and the connections of the main pool are read only. Otherwise
+ * getWriteConnection is the same as getConnection.
  */
 public class AdminConnectionManager extends DatabaseConnectionManager {
 
     private static AdminConnectionManager _instance = new AdminConnectionManager();
 
+    /** The pool of the only connection that writes, or null when any
+     * connection may write. */
+    private static AdminConnectionManager _writer =
+                _instance.getDialect().isSingleWriter() ? new Writer() : null;
+
     /** Use Config.getString with this property name to get the
      * username for this connection. */ 
     private final static String USERNAME_CONFIG = "database.admin.username";
@@ -29,7 +40,28 @@ public class AdminConnectionManager extends DatabaseConnectionManager {
     /** Property that defines where the database is located. */
     private static final String URL_CONFIG = "database.admin.url";
 
-    /** Maximum number of connections to create for this database. */
+    /** Property for the number of connections opened at startup. */
+    private static final String MIN_CONNECTIONS_CONFIG = "database.admin.minConnections";
+
+    /** Property for the maximum number of connections. */
+    private static final String MAX_CONNECTIONS_CONFIG = "database.admin.maxConnections";
+
+    /** Property for the number of milliseconds to wait for a connection. */
+    private static final String BORROW_TIMEOUT_CONFIG = "database.admin.borrowTimeout";
+
+    /** Property for the number of milliseconds between connection checks. */
+    private static final String VALIDATION_INTERVAL_CONFIG = "database.admin.validationInterval";
+
+    /** Property for the number of milliseconds before an unused connection
+     * is closed. */
+    private static final String IDLE_TIMEOUT_CONFIG = "database.admin.idleTimeout";
+
+    /** Property for the number of milliseconds before a connection is
+     * replaced. */
+    private static final String MAX_LIFETIME_CONFIG = "database.admin.maxLifetime";
+
+    /** Maximum number of connections to create for this database, when
+     * MAX_CONNECTIONS_CONFIG is not set. */
     protected static final int MAX_CONNECTIONS = 3;
 
     /** Cache for the properties. */
@@ -43,6 +75,34 @@ public class AdminConnectionManager extends DatabaseConnectionManager {
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * The pool of the single writing connection.
+     */
+    //-------------------------------------------------------------------------
+    private static class Writer extends AdminConnectionManager {
+        protected int getMaxConnections() {
+            return 1;
+        }
+
+
+        protected boolean isReadOnly() {
+            return false;
+        }
+
+
+        // Keeps its init state apart from the main pool's.
+        protected String getUserName() {
+            return super.getUserName() + ".writer";
+        }
+
+
+        protected String getPoolName() {
+            return "AdminConnectionManager.writer";
+        }
+    }
+
+
     //-------------------------------------------------------------------------
     /**
      * Get a connection to the database.
@@ -56,13 +116,140 @@ public class AdminConnectionManager extends DatabaseConnectionManager {
      * @throws SQLException 
      */
     //-------------------------------------------------------------------------
-    public static synchronized Connection getConnection(String info) throws SQLException {
+    public static Connection getConnection(String info) throws SQLException {
         return _instance.getNext(info);
     }
 
 
-    public static synchronized void releaseConnection(Connection connection) {
-        _instance.release(connection);
+    //-------------------------------------------------------------------------
+    /**
+     * Get a connection that may write to the database.
+     *
+     * @param  info  information regarding the caller requesting the
+     * connection. This is used to isolate database problems.
+     *
+     * @return
+     *   Connection - the connection.
+     *
+     * @throws SQLException 
+     */
+    //-------------------------------------------------------------------------
+    public static Connection getWriteConnection(String info) throws SQLException {
+        return _writer == null ? _instance.getNext(info) : _writer.getNext(info);
+    }
+
+
+    public static void releaseConnection(Connection connection) {
+        owner(connection).release(connection);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Find the pool a connection was borrowed from.
+     *
+     * @param  connection  the connection.
+     *
+     * @return
+     *   AdminConnectionManager - the writer pool if it is the writing
+     * connection, otherwise the main pool.
+     */
+    //-------------------------------------------------------------------------
+    private static AdminConnectionManager owner(Connection connection) {
+        if (_writer != null && _writer.indexOf(connection) >= 0)
+            return _writer;
+        return _instance;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the SQL dialect of the database.
+     *
+     * @return
+     *   Dialect - the dialect.
+     */
+    //-------------------------------------------------------------------------
+    public static Dialect getDatabaseDialect() {
+        return _instance.getDialect();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the cached prepared statement for an operation on a connection
+     * returned by getConnection.
+     *
+     * @param  connection  the connection.
+     *
+     * @param  key  identifies the operation.
+     *
+     * @param  sql  the SQL to prepare if it is not already cached.
+     *
+     * @return
+     *   PreparedStatement - the statement. Do not close it.
+     *
+     * @throws SQLException 
+     */
+    //-------------------------------------------------------------------------
+    public static PreparedStatement prepareStatement(Connection connection, String key, String sql) throws SQLException {
+        return owner(connection).prepare(connection, key, sql);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the cached prepared statement for an insert whose generated ids
+     * are read with getGeneratedKeys.
+     *
+     * @param  connection  the connection.
+     *
+     * @param  key  identifies the operation.
+     *
+     * @param  sql  the SQL to prepare if it is not already cached.
+     *
+     * @return
+     *   PreparedStatement - the statement. Do not close it.
+     *
+     * @throws SQLException 
+     */
+    //-------------------------------------------------------------------------
+    public static PreparedStatement prepareInsert(Connection connection, String key, String sql) throws SQLException {
+        return owner(connection).prepare(connection, key, sql, true);
+    }
+
+
+    public static void discardStatement(Connection connection, String key) {
+        owner(connection).discard(connection, key);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the start time for a database operation whose latency should be
+     * recorded with endQuery.
+     *
+     * @return
+     *   long - System.nanoTime(), or 0 when metrics are off.
+     */
+    //-------------------------------------------------------------------------
+    public static long startQuery() {
+        return PoolMetrics.ENABLED ? System.nanoTime() : 0L;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Record the latency of a database operation.
+     *
+     * @param  operation  identifies the operation.
+     *
+     * @param  startNanos  the value returned by startQuery.
+     */
+    //-------------------------------------------------------------------------
+    public static void endQuery(String operation, long startNanos) {
+        if (startNanos != 0)
+            _instance.recordQuery(operation, startNanos);
     }
 
 
@@ -89,8 +276,13 @@ public class AdminConnectionManager extends DatabaseConnectionManager {
     protected Properties getConnectionProperties() {
         if (properties == null) {
             properties = new Properties();
-            properties.setProperty("user",     Config.getString(USERNAME_CONFIG));
-            properties.setProperty("password", Config.getString(PASSWORD_CONFIG));
+            // Embedded databases may have neither.
+            String user = Config.getString(USERNAME_CONFIG);
+            String password = Config.getString(PASSWORD_CONFIG);
+            if (user != null)
+                properties.setProperty("user", user);
+            if (password != null)
+                properties.setProperty("password", password);
         }
         return properties;
     }
@@ -121,6 +313,60 @@ public class AdminConnectionManager extends DatabaseConnectionManager {
      */
     //-------------------------------------------------------------------------
     protected int getMaxConnections() {
-        return MAX_CONNECTIONS;
+        return Math.max(1, Config.getInt(MAX_CONNECTIONS_CONFIG, MAX_CONNECTIONS));
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of connections to open when the pool is created.
+     *
+     * @return
+     *   int - minimum connection count.
+     */
+    //-------------------------------------------------------------------------
+    protected int getMinConnections() {
+        return Config.getInt(MIN_CONNECTIONS_CONFIG, DEFAULT_MIN_CONNECTIONS);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether the connections of this pool are only used to read.
+     *
+     * @return
+     *   boolean - true when the writes go through the writer pool.
+     */
+    //-------------------------------------------------------------------------
+    protected boolean isReadOnly() {
+        return getDialect().isSingleWriter();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of milliseconds to wait for a free connection.
+     *
+     * @return
+     *   long - the timeout in milliseconds.
+     */
+    //-------------------------------------------------------------------------
+    protected long getBorrowTimeout() {
+        return Config.getLong(BORROW_TIMEOUT_CONFIG, DEFAULT_BORROW_TIMEOUT);
+    }
+
+
+    protected long getValidationInterval() {
+        return Config.getLong(VALIDATION_INTERVAL_CONFIG, DEFAULT_VALIDATION_INTERVAL);
+    }
+
+
+    protected long getIdleTimeout() {
+        return Config.getLong(IDLE_TIMEOUT_CONFIG, DEFAULT_IDLE_TIMEOUT);
+    }
+
+
+    protected long getMaxLifetime() {
+        return Config.getLong(MAX_LIFETIME_CONFIG, DEFAULT_MAX_LIFETIME);
     }
 }
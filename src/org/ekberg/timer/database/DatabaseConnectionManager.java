@@ -8,19 +8,50 @@ import java.io.*;
 import java.net.*;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Properties;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import org.ekberg.timer.utility.Config;
 import org.ekberg.timer.utility.Trace;
 
 
 /**
  * Provides a simple database connection pooling mechanism.
+ *<P>
+ * Slots are claimed and released with compareAndSet on an
+ * AtomicIntegerArray, so borrowing and releasing a connection never takes a
+ * lock. A Semaphore counts the free slots, which lets a caller wait a bounded
+ * amount of time for a connection instead of failing as soon as every
+ * connection is busy. The pool opens getMinConnections() connections up
+ * front and opens more, up to getMaxConnections(), only when they are
+ * needed.
+ *<P>
+ * A background housekeeper runs every getValidationInterval() milliseconds.
+ * It borrows each free connection in turn and closes it if it has been idle
+ * longer than getIdleTimeout() (keeping getMinConnections() open), replaces
+ * it if it is older than getMaxLifetime(), and otherwise probes it with
+ * Connection.isValid, replacing it if the probe fails. getNext probes a
+ * connection that has not been used for a validation interval, or whose last
+ * statement failed, before handing it out, so a dead connection is replaced
+ * rather than returned.
+ *<P>
+ * When database.metrics.enabled is true, borrow wait and hold times are
+ * recorded in a PoolMetrics object. See PoolMetrics.
  */
 public abstract class DatabaseConnectionManager {
 
@@ -37,13 +68,90 @@ public abstract class DatabaseConnectionManager {
     /** Maximum number of "calling from here" messages saved for each connection. */
     protected static final int MAX_INFOS = 10;
 
+    /** Value in busy for a slot that is free. */
+    protected static final int FREE = 0;
+
+    /** Value in busy for a slot that has been borrowed. */
+    protected static final int BUSY = 1;
+
+    /** Default number of connections opened when the pool is created. */
+    protected static final int DEFAULT_MIN_CONNECTIONS = 1;
+
+    /** Default number of milliseconds to wait for a free connection. */
+    protected static final long DEFAULT_BORROW_TIMEOUT = 5000L;
+
+    /** Default number of milliseconds between housekeeper runs. */
+    protected static final long DEFAULT_VALIDATION_INTERVAL = 60000L;
+
+    /** Default number of milliseconds a connection can sit unused before it
+     * is closed. */
+    protected static final long DEFAULT_IDLE_TIMEOUT = 600000L;
+
+    /** Default number of milliseconds a connection is kept before it is
+     * replaced. MySQL closes connections after wait_timeout (8 hours by
+     * default), so this must be shorter than that. */
+    protected static final long DEFAULT_MAX_LIFETIME = 1800000L;
+
+    /** Number of seconds to wait for Connection.isValid. */
+    protected static final int VALIDATION_TIMEOUT = 2;
+
+    /** The connections. A slot is null until its connection is opened. Only
+     * the caller that holds a slot writes to it. */
     protected Connection[] pool;
 
-    protected boolean[] busy;
+    /** FREE or BUSY for each slot in pool. */
+    protected AtomicIntegerArray busy;
+
+    /** The last MAX_INFOS info strings passed to getNext for each slot.
+     * Used as a ring, see infoCount. */
+    protected String[][] infos;
+
+    /** When each of the infos was recorded, in milliseconds. */
+    protected long[][] infoTimes;
+
+    /** Number of infos recorded for each slot. */
+    protected int[] infoCount;
+
+    /** Pool and query statistics, or null when metrics are off. */
+    protected PoolMetrics metrics;
+
+    /** System.nanoTime() when each slot was borrowed. Only set when metrics
+     * are on. */
+    protected long[] borrowedAt;
+
+    /** Prepared statements for each connection, keyed by the operation that
+     * uses them. A connection is only used by one caller at a time, so only
+     * that caller touches its map. */
+    protected List<Map<String,PreparedStatement>> statements;
+
+    /** Time each connection was opened, in milliseconds. */
+    protected long[] created;
+
+    /** Time each connection was last released, in milliseconds. */
+    protected long[] lastUsed;
 
-    protected List<String>[] infos;
+    /** True for a connection whose last statement failed, so getNext
+     * validates it before it is used again. */
+    protected boolean[] suspect;
 
-    private int ConnectionNumber = 0;
+    /** Runs the Housekeeper. */
+    private Timer housekeeper;
+
+    /** Maps each open connection to its slot so release is O(1). */
+    protected Map<Connection,Integer> slots = new ConcurrentHashMap<Connection,Integer>();
+
+    /** One permit for each free slot. */
+    protected Semaphore available;
+
+    /** Where the next search for a free slot starts. Spreads the work over
+     * the open connections. */
+    private AtomicInteger ConnectionNumber = new AtomicInteger(0);
+
+    /** Set once createPool has been called. */
+    private volatile boolean poolCreated = false;
+
+    /** The SQL dialect of the database, see getDialect. */
+    private volatile Dialect dialect;
 
     /* Maximum number of attempts to get a good connection after one attempt
      * fails. */
@@ -60,8 +168,22 @@ public abstract class DatabaseConnectionManager {
     //-------------------------------------------------------------------------
     protected DatabaseConnectionManager() {
         pool = new Connection[getMaxConnections()];
-        busy = new boolean[getMaxConnections()];
-        infos = (List<String>[])(new ArrayList[getMaxConnections()]);
+        busy = new AtomicIntegerArray(getMaxConnections());
+        available = new Semaphore(getMaxConnections());
+        infos = new String[getMaxConnections()][MAX_INFOS];
+        infoTimes = new long[getMaxConnections()][MAX_INFOS];
+        infoCount = new int[getMaxConnections()];
+        if (PoolMetrics.ENABLED) {
+            metrics = new PoolMetrics(this);
+            borrowedAt = new long[getMaxConnections()];
+        }
+        statements = new ArrayList<Map<String,PreparedStatement>>(getMaxConnections());
+        created = new long[getMaxConnections()];
+        lastUsed = new long[getMaxConnections()];
+        suspect = new boolean[getMaxConnections()];
+        for (int i=0; i<pool.length; i++) {
+            statements.add(new HashMap<String,PreparedStatement>());
+        }
         String driver = Config.getString(DRIVER_CONFIG);
         boolean ok = true;
 
@@ -86,7 +208,8 @@ public abstract class DatabaseConnectionManager {
 
     //-------------------------------------------------------------------------
     /**
-     * Get the next available connection object.
+     * Get the next available connection object. If all of them are busy,
+     * wait up to getBorrowTimeout() milliseconds for one to be released.
      *
      * @param  info  information regarding the caller requesting the
      * connection. This is used to isolate database problems.
@@ -98,37 +221,257 @@ public abstract class DatabaseConnectionManager {
      */
     //-------------------------------------------------------------------------
     protected Connection getNext(String info) throws SQLException {
-	int i = ConnectionNumber;
-        int lastIndex = i;
-
         if (getInitFailed()) throw new SQLException(INIT_ERROR_MESSAGE);
 
-        // Position to the next one that is not busy.
-        do {
-            if (!busy[i])
-                break;
-            i++;
-            // Wrap around to first one.
-            if (i == pool.length)
-		i = 0;
+        long waitStart = metrics == null ? 0L : System.nanoTime();
+        try {
+            if (!available.tryAcquire(getBorrowTimeout(), TimeUnit.MILLISECONDS)) {
+                if (metrics != null)
+                    metrics.borrowTimeouts.incrementAndGet();
+                throw new SQLException(BUSY_ERROR_MESSAGE);
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(BUSY_ERROR_MESSAGE);
+        }
+
+        // Holding a permit means at least one slot is free. Prefer a slot
+        // that already has an open connection, then take any free slot.
+        int start = Math.abs(ConnectionNumber.getAndIncrement() % pool.length);
+        int i = claim(start, true);
+        while (i < 0)
+            i = claim(start, false);
+
+        try {
+            if (pool[i] == null)
+                open(i);
+            else if (needsValidation(i)) {
+                if (!isValid(pool[i]))
+                    reopen(i);
+                suspect[i] = false;
+            }
+        }
+        catch (SQLException sqle) {
+            busy.set(i, FREE);
+            available.release();
+            throw sqle;
+        }
+        int n = infoCount[i]++ % MAX_INFOS;
+        infos[i][n] = info;
+        infoTimes[i][n] = System.currentTimeMillis();
+        if (metrics != null) {
+            borrowedAt[i] = System.nanoTime();
+            metrics.borrowWait.record(borrowedAt[i] - waitStart);
+        }
+        return pool[i];
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Claim a free slot by changing it from FREE to BUSY.
+     *
+     * @param  start  the slot to start looking at.
+     *
+     * @param  openOnly  when true, only slots with an open connection are
+     * considered.
+     *
+     * @return
+     *   int - the slot that was claimed, or -1 if none could be claimed.
+     */
+    //-------------------------------------------------------------------------
+    private int claim(int start, boolean openOnly) {
+        for (int n=0; n<pool.length; n++) {
+            int i = (start + n) % pool.length;
+            if (openOnly && pool[i] == null)
+                continue;
+            if (busy.get(i) == FREE && busy.compareAndSet(i, FREE, BUSY))
+                return i;
+        }
+        return -1;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Open the connection for a slot, trying up to MAX_CONNECTION_RETRIES
+     * more times if the first attempt fails. The caller must hold the slot.
+     *
+     * @param  i  the slot.
+     *
+     * @throws SQLException  the last failure if no attempt succeeded.
+     */
+    //-------------------------------------------------------------------------
+    protected void open(int i) throws SQLException {
+        SQLException failure = null;
+        for (int attempt=0; attempt<=MAX_CONNECTION_RETRIES; attempt++) {
+            try {
+                pool[i] = newConnection();
+                slots.put(pool[i], i);
+                created[i] = System.currentTimeMillis();
+                lastUsed[i] = created[i];
+                suspect[i] = false;
+                return;
+            }
+            catch (SQLException sqle) {
+                Trace.error("Unable to open database connection " + i + ", attempt " + (attempt + 1), sqle);
+                failure = sqle;
+            }
+        }
+        throw failure;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Close the connection in a slot, along with its prepared statements.
+     * The slot is left empty. The caller must hold the slot.
+     *
+     * @param  i  the slot.
+     */
+    //-------------------------------------------------------------------------
+    protected void close(int i) {
+        Connection connection = pool[i];
+        if (connection == null)
+            return;
+        slots.remove(connection);
+        pool[i] = null;
+        for (PreparedStatement statement: statements.get(i).values()) {
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {}
+        }
+        statements.get(i).clear();
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {}
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Replace the connection in a slot with a new one. The caller must hold
+     * the slot.
+     *
+     * @param  i  the slot.
+     *
+     * @throws SQLException  if a new connection could not be opened. The slot
+     * is left empty.
+     */
+    //-------------------------------------------------------------------------
+    protected void reopen(int i) throws SQLException {
+        Trace.info("Replacing database connection " + i);
+        close(i);
+        open(i);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether getNext should probe a connection before handing it
+     * out.
+     *
+     * @param  i  the slot.
+     *
+     * @return
+     *   boolean - true if its last statement failed, or it has not been used
+     * for a validation interval.
+     */
+    //-------------------------------------------------------------------------
+    protected boolean needsValidation(int i) {
+        long interval = getValidationInterval();
+        return suspect[i] ||
+                    (interval > 0 && System.currentTimeMillis() - lastUsed[i] > interval);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Cheap check that a connection still works. Drivers that predate
+     * Connection.isValid are checked with a trivial query instead.
+     *
+     * @param  connection  the connection to check.
+     *
+     * @return
+     *   boolean - true if the connection answered within VALIDATION_TIMEOUT.
+     */
+    //-------------------------------------------------------------------------
+    protected boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT);
         }
-        while(i != lastIndex);
-
-        // Start here the next time a connection is needed.
-        ConnectionNumber = i + 1;
-        if (ConnectionNumber == pool.length)
-		ConnectionNumber = 0;
-
-        if (!busy[i]) {
-            busy[i] = true;
-            infos[i].add((new Date()) + " " + info);
-            if (infos[i].size() > MAX_INFOS) {
-                infos[i].remove(0);
+        catch (AbstractMethodError ame) {
+            Statement statement = null;
+            try {
+                statement = connection.createStatement();
+                statement.setQueryTimeout(VALIDATION_TIMEOUT);
+                statement.execute("select 1");
+                return true;
+            }
+            catch (SQLException e) {
+                return false;
+            }
+            finally {
+                if (statement != null) {
+                    try {
+                        statement.close();
+                    }
+                    catch (SQLException e) {}
+                }
+            }
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Check every free connection. This is run by the housekeeper timer. A
+     * slot is only examined when a permit and the slot itself can be taken
+     * without waiting, so callers of getNext are never held up.
+     */
+    //-------------------------------------------------------------------------
+    protected void housekeep() {
+        long now = System.currentTimeMillis();
+        int open = 0;
+        for (int i=0; i<pool.length; i++) {
+            if (pool[i] != null)
+                open++;
+        }
+        for (int i=0; i<pool.length; i++) {
+            if (pool[i] == null || !available.tryAcquire())
+                continue;
+            if (!busy.compareAndSet(i, FREE, BUSY)) {
+                available.release();
+                continue;
+            }
+            try {
+                if (pool[i] == null) {
+                    // Closed while we were looking.
+                }
+                else if (now - lastUsed[i] > getIdleTimeout() && open > getMinConnections()) {
+                    Trace.info("Closing idle database connection " + i);
+                    close(i);
+                    open--;
+                }
+                else if (now - created[i] > getMaxLifetime() || !isValid(pool[i])) {
+                    reopen(i);
+                }
+            }
+            catch (SQLException sqle) {
+                Trace.error("Unable to replace database connection " + i, sqle);
+                open--;
+            }
+            finally {
+                busy.set(i, FREE);
+                available.release();
             }
-            return pool[i];
         }
-        // If we get to this point then all connection objects were busy.
-        throw new SQLException(BUSY_ERROR_MESSAGE);
     }
 
 
@@ -150,8 +493,18 @@ public abstract class DatabaseConnectionManager {
         Connection connection = DriverManager.getConnection(getUrl(),
                     user, password);
 
-        // Set the transaction isolation level to the maximum.
-        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        try {
+            // Set the transaction isolation level to the maximum.
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            getDialect().configure(connection, isReadOnly());
+        }
+        catch (SQLException sqle) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {}
+            throw sqle;
+        }
         return connection;
     }
 
@@ -165,12 +518,120 @@ public abstract class DatabaseConnectionManager {
      */
     //-------------------------------------------------------------------------
     public void release(Connection connection) {
-	  for (int i=0; i<pool.length; i++) {
-              if (pool[i] == connection) {
-                  busy[i] = false;
-                  break;
-              }
-          }
+        int i = indexOf(connection);
+        if (i >= 0) {
+            lastUsed[i] = System.currentTimeMillis();
+            if (metrics != null && busy.get(i) == BUSY)
+                metrics.recordHold(infos[i][(infoCount[i] - 1) % MAX_INFOS],
+                            System.nanoTime() - borrowedAt[i]);
+            if (busy.compareAndSet(i, BUSY, FREE))
+                available.release();
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the prepared statement for an operation on a pooled connection. The
+     * statement is prepared the first time the operation is used on that
+     * connection and is reused after that. The caller must not close it.
+     *
+     * @param  connection  a connection obtained from getNext.
+     *
+     * @param  key  identifies the operation, for example
+     * "TaskTimeElementDB.findAll".
+     *
+     * @param  sql  the SQL for the operation, with ? for each parameter.
+     *
+     * @return
+     *   PreparedStatement - the cached statement.
+     *
+     * @throws SQLException 
+     */
+    //-------------------------------------------------------------------------
+    protected PreparedStatement prepare(Connection connection, String key, String sql) throws SQLException {
+        return prepare(connection, key, sql, false);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the prepared statement for an operation on a pooled connection,
+     * optionally one whose getGeneratedKeys returns the ids the database
+     * assigned.
+     *
+     * @param  connection  a connection obtained from getNext.
+     *
+     * @param  key  identifies the operation.
+     *
+     * @param  sql  the SQL for the operation, with ? for each parameter.
+     *
+     * @param  returnKeys  true to prepare with
+     * Statement.RETURN_GENERATED_KEYS.
+     *
+     * @return
+     *   PreparedStatement - the cached statement.
+     *
+     * @throws SQLException 
+     */
+    //-------------------------------------------------------------------------
+    protected PreparedStatement prepare(Connection connection, String key, String sql, boolean returnKeys) throws SQLException {
+        int i = indexOf(connection);
+        if (i < 0)
+            throw new SQLException("Connection is not from this pool");
+
+        PreparedStatement statement = statements.get(i).get(key);
+        if (statement == null) {
+            if (returnKeys)
+                statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            else
+                statement = connection.prepareStatement(sql);
+            statements.get(i).put(key, statement);
+        }
+        return statement;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Remove a prepared statement from the cache and close it. This is used
+     * when a statement fails so the next use prepares it again.
+     *
+     * @param  connection  a connection obtained from getNext.
+     *
+     * @param  key  identifies the operation.
+     */
+    //-------------------------------------------------------------------------
+    protected void discard(Connection connection, String key) {
+        int i = indexOf(connection);
+        if (i >= 0) {
+            // The failure may mean the connection itself is broken. Have
+            // getNext check it before it is handed out again.
+            suspect[i] = true;
+            PreparedStatement statement = statements.get(i).remove(key);
+            if (statement != null) {
+                try {
+                    statement.close();
+                }
+                catch (SQLException e) {}
+            }
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Find the pool slot of a connection.
+     *
+     * @param  connection  the connection to look for.
+     *
+     * @return
+     *   int - the index in pool, or -1 if it is not in the pool.
+     */
+    //-------------------------------------------------------------------------
+    protected int indexOf(Connection connection) {
+        Integer i = connection == null ? null : slots.get(connection);
+        return i == null ? -1 : i.intValue();
     }
 
 
@@ -184,40 +645,142 @@ public abstract class DatabaseConnectionManager {
     //-------------------------------------------------------------------------
     protected synchronized String getInfos() {
         StringBuffer sb = new StringBuffer();
-        List info;
 
         sb.append("ConnectionNumber=" + ConnectionNumber);
         sb.append("\n");
+        sb.append("available=" + available.availablePermits());
+        sb.append("\n");
         for(int i=0; i<infos.length; i++) {
-            info = infos[i];
-            sb.append("Connection " + i + " info.size()=" + info.size());
+            int count = infoCount[i];
+            int size = Math.min(count, MAX_INFOS);
+            sb.append("Connection " + i + " info.size()=" + size);
             sb.append("\n");
-            sb.append("busy[" + i + "]=" + busy[i]);
+            sb.append("busy[" + i + "]=" + (busy.get(i) == BUSY));
             sb.append("\n");
-            for(int j=0; j<info.size(); j++) {
-                sb.append(info.get(j));
+            // Oldest first.
+            for(int j=count-size; j<count; j++) {
+                sb.append(new Date(infoTimes[i][j % MAX_INFOS]));
+                sb.append(" ");
+                sb.append(infos[i][j % MAX_INFOS]);
                 sb.append("\n");
             }
         }
+        if (metrics != null)
+            sb.append(metrics.getReport());
         return sb.toString();
     }
 
 
     //-------------------------------------------------------------------------
     /**
-     * Create a pool of connection objects.
+     * Count the connections that are borrowed.
+     *
+     * @return
+     *   int - number of busy slots.
+     */
+    //-------------------------------------------------------------------------
+    protected int getActiveCount() {
+        int ret = 0;
+        for (int i=0; i<pool.length; i++) {
+            if (busy.get(i) == BUSY)
+                ret++;
+        }
+        return ret;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the number of slots in the pool. This is getMaxConnections() as it
+     * was when the pool was created; a later change to the setting does not
+     * resize the pool.
+     *
+     * @return
+     *   int - number of slots.
+     */
+    //-------------------------------------------------------------------------
+    protected int getPoolSize() {
+        return pool.length;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Count the connections that are open.
+     *
+     * @return
+     *   int - number of slots with a connection.
+     */
+    //-------------------------------------------------------------------------
+    protected int getOpenCount() {
+        int ret = 0;
+        for (int i=0; i<pool.length; i++) {
+            if (pool[i] != null)
+                ret++;
+        }
+        return ret;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the statistics for this pool.
+     *
+     * @return
+     *   PoolMetrics - the statistics, or null if metrics are off.
+     */
+    //-------------------------------------------------------------------------
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Record the latency of a database operation that started at
+     * startNanos. Does nothing when metrics are off.
+     *
+     * @param  operation  identifies the operation.
+     *
+     * @param  startNanos  System.nanoTime() when the operation started, or 0
+     * when metrics are off.
+     */
+    //-------------------------------------------------------------------------
+    protected void recordQuery(String operation, long startNanos) {
+        if (metrics != null && startNanos != 0)
+            metrics.recordQuery(operation, System.nanoTime() - startNanos);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create a pool of connection objects. Only getMinConnections() are
+     * opened here. The rest are opened by getNext when they are needed.
      */
     //-------------------------------------------------------------------------
     protected void createPool() {
+        int min = Math.min(getMinConnections(), pool.length);
 	try {
-	  for (int i=0; i<pool.length; i++) {
-	  	pool[i] = newConnection();
-                busy[i] = false;
-                infos[i] = new ArrayList<String>();
+	  for (int i=0; i<min; i++) {
+	  	open(i);
+                busy.set(i, FREE);
 	  }
 	} catch (SQLException sqle) {
             Trace.error("Unable to start database connection");
         }
+
+        if (metrics != null)
+            metrics.start(getPoolName());
+
+        long interval = getValidationInterval();
+        if (interval > 0) {
+            housekeeper = new Timer("DatabaseConnectionManager housekeeper", true);
+            housekeeper.schedule(new TimerTask() {
+                    public void run() {
+                        housekeep();
+                    }
+                }, interval, interval);
+        }
     }
 
 
@@ -232,17 +795,26 @@ public abstract class DatabaseConnectionManager {
      */
     //-------------------------------------------------------------------------
     protected boolean getInitFailed() {
-        Boolean initFailed = (Boolean)_initFailed.get(getUserName());
-        if (initFailed == null) {
-            // Defaults to false - init went OK.
-            initFailed = new Boolean(false);
-            _initFailed.put(getUserName(), initFailed);
-
-	    // Create connection pool. Note that the pool will only be created
-	    // if the above get() call returned null.
-	    createPool();
+        if (!poolCreated) {
+            // Only the first caller creates the pool. After that this test
+            // is a single volatile read.
+            synchronized (this) {
+                if (!poolCreated) {
+                    Boolean initFailed = _initFailed.get(getUserName());
+                    if (initFailed == null) {
+                        // Defaults to false - init went OK.
+                        _initFailed.put(getUserName(), new Boolean(false));
+
+                        // Create connection pool. Note that the pool will only
+                        // be created if the above get() call returned null.
+                        createPool();
+                    }
+                    poolCreated = true;
+                }
+            }
         }
-        return initFailed.booleanValue();
+        Boolean initFailed = _initFailed.get(getUserName());
+        return initFailed != null && initFailed.booleanValue();
     }
 
 
@@ -259,6 +831,8 @@ public abstract class DatabaseConnectionManager {
         sb.append("DatabaseConnectionManager[");
         sb.append("ConnectionNumber=");
         sb.append(ConnectionNumber);
+        sb.append(", available=");
+        sb.append(available.availablePermits());
         sb.append(", pool[open,busy]=[");
         for(int i=0; i<pool.length; i++) {
             Connection connection = pool[i];
@@ -277,7 +851,7 @@ public abstract class DatabaseConnectionManager {
                 }
             }
             sb.append(",");
-            sb.append(busy[i]);
+            sb.append(busy.get(i) == BUSY);
             sb.append("]");
         }
         sb.append("]");
@@ -295,7 +869,122 @@ public abstract class DatabaseConnectionManager {
      */
     //-------------------------------------------------------------------------
     protected String getUserName() {
-        return getConnectionProperties().getProperty("user");
+        String user = getConnectionProperties().getProperty("user");
+        // Embedded databases may not have users.
+        return user == null ? getUrl() : user;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the name this pool's metrics are registered under.
+     *
+     * @return
+     *   String - the class name.
+     */
+    //-------------------------------------------------------------------------
+    protected String getPoolName() {
+        return getClass().getSimpleName();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the SQL dialect of the database. It is chosen the first time it is
+     * needed, see Dialect.getInstance.
+     *
+     * @return
+     *   Dialect - the dialect.
+     */
+    //-------------------------------------------------------------------------
+    protected Dialect getDialect() {
+        if (dialect == null)
+            dialect = Dialect.getInstance(getUrl());
+        return dialect;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether the connections of this pool are only used to read.
+     * Passed to Dialect.configure for each new connection.
+     *
+     * @return
+     *   boolean - false: by default connections read and write.
+     */
+    //-------------------------------------------------------------------------
+    protected boolean isReadOnly() {
+        return false;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of connections to open when the pool is created.
+     * Subclasses override this to make it configurable.
+     *
+     * @return
+     *   int - minimum connection count.
+     */
+    //-------------------------------------------------------------------------
+    protected int getMinConnections() {
+        return DEFAULT_MIN_CONNECTIONS;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of milliseconds getNext waits for a free connection
+     * before giving up with BUSY_ERROR_MESSAGE.
+     *
+     * @return
+     *   long - the timeout in milliseconds.
+     */
+    //-------------------------------------------------------------------------
+    protected long getBorrowTimeout() {
+        return DEFAULT_BORROW_TIMEOUT;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of milliseconds between housekeeper runs. A value of
+     * zero or less turns the housekeeper off.
+     *
+     * @return
+     *   long - the interval in milliseconds.
+     */
+    //-------------------------------------------------------------------------
+    protected long getValidationInterval() {
+        return DEFAULT_VALIDATION_INTERVAL;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of milliseconds a connection can sit unused before
+     * the housekeeper closes it.
+     *
+     * @return
+     *   long - the idle timeout in milliseconds.
+     */
+    //-------------------------------------------------------------------------
+    protected long getIdleTimeout() {
+        return DEFAULT_IDLE_TIMEOUT;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Return the number of milliseconds a connection is used before the
+     * housekeeper replaces it.
+     *
+     * @return
+     *   long - the maximum lifetime in milliseconds.
+     */
+    //-------------------------------------------------------------------------
+    protected long getMaxLifetime() {
+        return DEFAULT_MAX_LIFETIME;
     }
 
 
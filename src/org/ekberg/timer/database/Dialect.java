@@ -0,0 +1,160 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.ekberg.timer.utility.Config;
+
+
+/**
+ * The SQL that differs from one database to another. This class is the
+ * standard SQL version, used for databases that have no subclass; the
+ * subclasses are MySQLDialect and SQLiteDialect.
+ *<P>
+ * The dialect is chosen from database.dialect (mysql, sqlite or generic). If
+ * that is not set it is chosen from the start of the database URL.
+ */
+public class Dialect {
+    /** Property that names the dialect. */
+    private static final String DIALECT_CONFIG = "database.dialect";
+
+    /** Name of this dialect. */
+    public static final String GENERIC = "generic";
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the dialect for a database.
+     *
+     * @param  url  the JDBC URL of the database.
+     *
+     * @return
+     *   Dialect - the dialect named by database.dialect, or else the one
+     * that matches the URL.
+     */
+    //-------------------------------------------------------------------------
+    public static Dialect getInstance(String url) {
+        String name = Config.getString(DIALECT_CONFIG, null);
+        if (name == null && url != null) {
+            if (url.startsWith("jdbc:mysql:"))
+                name = MySQLDialect.MYSQL;
+            else if (url.startsWith("jdbc:sqlite:"))
+                name = SQLiteDialect.SQLITE;
+        }
+        if (MySQLDialect.MYSQL.equalsIgnoreCase(name))
+            return new MySQLDialect();
+        if (SQLiteDialect.SQLITE.equalsIgnoreCase(name))
+            return new SQLiteDialect();
+        return new Dialect();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the name of this dialect.
+     *
+     * @return
+     *   String - the value of database.dialect that selects it.
+     */
+    //-------------------------------------------------------------------------
+    public String getName() {
+        return GENERIC;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the column definition of an id that the database assigns.
+     *
+     * @return
+     *   String - the type and constraints, without the column name.
+     */
+    //-------------------------------------------------------------------------
+    public String getIdentityColumn() {
+        return "BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY";
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get what to add to an insert so that a row whose key is already there
+     * is updated instead.
+     *
+     * @param  key  the primary key column.
+     *
+     * @param  columns  the columns to update.
+     *
+     * @return
+     *   String - the clause, or null if the database has no native upsert.
+     */
+    //-------------------------------------------------------------------------
+    public String getUpsertClause(String key, String[] columns) {
+        return null;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Set up a statement so its result set is read a few rows at a time
+     * rather than all at once.
+     *
+     * @param  statement  the statement, before it is executed.
+     *
+     * @param  fetchSize  the configured number of rows per round trip.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    public void setStreaming(Statement statement, int fetchSize) throws SQLException {
+        statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+        statement.setFetchSize(fetchSize);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether only one connection at a time should write. When
+     * true, AdminConnectionManager keeps a separate pool with one connection
+     * for writes, and the other connections only read.
+     *
+     * @return
+     *   boolean - true if writes must go through one connection.
+     */
+    //-------------------------------------------------------------------------
+    public boolean isSingleWriter() {
+        return false;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Set up a connection that has just been opened.
+     *
+     * @param  connection  the new connection.
+     *
+     * @param  readOnly  true if the connection will only be used to read.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    public void configure(Connection connection, boolean readOnly) throws SQLException {
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for Dialect.
+     *
+     * @return
+     *   String - the dialect name.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "Dialect[name=" + getName() + "]";
+    }
+}
@@ -0,0 +1,58 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * MySQL: auto_increment ids, "on duplicate key update", and result sets that
+ * are only streamed when the fetch size is Integer.MIN_VALUE.
+ */
+public class MySQLDialect extends Dialect {
+    /** Name of this dialect. */
+    public static final String MYSQL = "mysql";
+
+
+    public String getName() {
+        return MYSQL;
+    }
+
+
+    public String getIdentityColumn() {
+        return "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY";
+    }
+
+
+    public String getUpsertClause(String key, String[] columns) {
+        StringBuffer sb = new StringBuffer(" on duplicate key update ");
+        for (int i=0; i<columns.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(columns[i]).append("=values(").append(columns[i]).append(")");
+        }
+        return sb.toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * MySQL Connector/J only streams when the fetch size is
+     * Integer.MIN_VALUE; any other value reads the whole result into memory.
+     *
+     * @param  statement  the statement, before it is executed.
+     *
+     * @param  fetchSize  ignored.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    public void setStreaming(Statement statement, int fetchSize) throws SQLException {
+        statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+        statement.setFetchSize(Integer.MIN_VALUE);
+    }
+}
@@ -0,0 +1,291 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.LatencyHistogram;
+import org.ekberg.timer.utility.Trace;
+
+
+/**
+ * Statistics for one DatabaseConnectionManager: how long callers wait for a
+ * connection, how long they hold it (overall and by caller), how many
+ * connections are active or idle, and how long each TaskTimeElementDB
+ * operation takes.
+ *<P>
+ * Metrics are only collected when database.metrics.enabled is true. When it
+ * is false no PoolMetrics object is created and the pool and query code
+ * only test a null reference or a constant. When enabled, the statistics
+ * are registered with the platform MBeanServer and, if
+ * database.metrics.dumpInterval is set, written with Trace.notice every
+ * dumpInterval milliseconds.
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+    /** Property that turns metrics on. */
+    private static final String ENABLED_CONFIG = "database.metrics.enabled";
+
+    /** Property for the number of milliseconds between Trace dumps. */
+    private static final String DUMP_INTERVAL_CONFIG = "database.metrics.dumpInterval";
+
+    /** True when metrics are collected. Read once so the JIT can remove the
+     * disabled code. */
+    public static final boolean ENABLED = Config.getBoolean(ENABLED_CONFIG, false);
+
+    /** The pool being measured. */
+    private final DatabaseConnectionManager manager;
+
+    /** Time spent in getNext waiting for a connection. */
+    final LatencyHistogram borrowWait = new LatencyHistogram();
+
+    /** Time between getNext and release. */
+    final LatencyHistogram hold = new LatencyHistogram();
+
+    /** Hold time, keyed by the info string the caller passed to getNext. */
+    private final ConcurrentHashMap<String,LatencyHistogram> holdByCaller = new ConcurrentHashMap<String,LatencyHistogram>();
+
+    /** Query latency, keyed by operation. */
+    private final ConcurrentHashMap<String,LatencyHistogram> queries = new ConcurrentHashMap<String,LatencyHistogram>();
+
+    /** Number of times getNext gave up waiting. */
+    final AtomicLong borrowTimeouts = new AtomicLong();
+
+    /** Writes the periodic dump. */
+    private Timer dumper;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create the metrics for a pool.
+     *
+     * @param  manager  the pool being measured.
+     */
+    //-------------------------------------------------------------------------
+    PoolMetrics(DatabaseConnectionManager manager) {
+        this.manager = manager;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Register with JMX and start the periodic dump.
+     *
+     * @param  name  name of the pool, used in the ObjectName and the dump.
+     */
+    //-------------------------------------------------------------------------
+    void start(final String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        new ObjectName("org.ekberg.timer.database:type=ConnectionPool,name=" + name));
+        }
+        catch (Exception e) {
+            Trace.warning("Unable to register pool metrics for " + name, e);
+        }
+
+        long interval = Config.getLong(DUMP_INTERVAL_CONFIG, 0L);
+        if (interval > 0) {
+            dumper = new Timer("PoolMetrics " + name, true);
+            dumper.schedule(new TimerTask() {
+                    public void run() {
+                        Trace.notice("Pool metrics " + name + "\n" + getReport());
+                    }
+                }, interval, interval);
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Record how long a caller held a connection.
+     *
+     * @param  caller  the info string passed to getNext.
+     *
+     * @param  nanos  the hold time.
+     */
+    //-------------------------------------------------------------------------
+    void recordHold(String caller, long nanos) {
+        hold.record(nanos);
+        histogram(holdByCaller, caller).record(nanos);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Record the latency of one database operation.
+     *
+     * @param  operation  identifies the operation, for example
+     * "TaskTimeElementDB.findAll".
+     *
+     * @param  nanos  the elapsed time.
+     */
+    //-------------------------------------------------------------------------
+    void recordQuery(String operation, long nanos) {
+        histogram(queries, operation).record(nanos);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the histogram for a key, creating it the first time.
+     *
+     * @param  map  the histograms.
+     *
+     * @param  key  the key.
+     *
+     * @return
+     *   LatencyHistogram - the histogram for key.
+     */
+    //-------------------------------------------------------------------------
+    private static LatencyHistogram histogram(ConcurrentHashMap<String,LatencyHistogram> map, String key) {
+        LatencyHistogram histogram = map.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = map.putIfAbsent(key, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format a set of histograms, one line per key, sorted by key.
+     *
+     * @param  map  the histograms.
+     *
+     * @return
+     *   String[] - "key: histogram" lines.
+     */
+    //-------------------------------------------------------------------------
+    private static String[] lines(Map<String,LatencyHistogram> map) {
+        Map<String,LatencyHistogram> sorted = new TreeMap<String,LatencyHistogram>(map);
+        String[] ret = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String,LatencyHistogram> entry: sorted.entrySet()) {
+            ret[i++] = entry.getKey() + ": " + entry.getValue();
+        }
+        return ret;
+    }
+
+
+    public int getActiveConnections() {
+        return manager.getActiveCount();
+    }
+
+
+    public int getIdleConnections() {
+        return manager.getOpenCount() - manager.getActiveCount();
+    }
+
+
+    public int getMaxConnections() {
+        return manager.getPoolSize();
+    }
+
+
+    public long getBorrowCount() {
+        return borrowWait.getCount();
+    }
+
+
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.get();
+    }
+
+
+    public long getBorrowWaitMeanMicros() {
+        return borrowWait.getMeanMicros();
+    }
+
+
+    public long getBorrowWaitP99Micros() {
+        return borrowWait.getPercentileMicros(99.0D);
+    }
+
+
+    public long getBorrowWaitMaxMicros() {
+        return borrowWait.getMaxMicros();
+    }
+
+
+    public long getHoldMeanMicros() {
+        return hold.getMeanMicros();
+    }
+
+
+    public long getHoldP99Micros() {
+        return hold.getPercentileMicros(99.0D);
+    }
+
+
+    public long getHoldMaxMicros() {
+        return hold.getMaxMicros();
+    }
+
+
+    public String[] getHoldByCaller() {
+        return lines(holdByCaller);
+    }
+
+
+    public String[] getQueryLatencies() {
+        return lines(queries);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format all of the statistics.
+     *
+     * @return
+     *   String - one statistic per line.
+     */
+    //-------------------------------------------------------------------------
+    public String getReport() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("active=").append(getActiveConnections());
+        sb.append(", idle=").append(getIdleConnections());
+        sb.append(", max=").append(getMaxConnections());
+        sb.append(", borrowTimeouts=").append(getBorrowTimeouts());
+        sb.append("\n");
+        sb.append("borrowWait: ").append(borrowWait).append("\n");
+        sb.append("hold: ").append(hold).append("\n");
+        for (String line: getHoldByCaller())
+            sb.append("hold ").append(line).append("\n");
+        for (String line: getQueryLatencies())
+            sb.append("query ").append(line).append("\n");
+        return sb.toString();
+    }
+
+
+    public void reset() {
+        borrowWait.reset();
+        hold.reset();
+        holdByCaller.clear();
+        queries.clear();
+        borrowTimeouts.set(0);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for PoolMetrics.
+     *
+     * @return
+     *   String - the report.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "PoolMetrics[" + getReport() + "]";
+    }
+}
@@ -0,0 +1,55 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+/**
+ * JMX view of a connection pool's statistics. See PoolMetrics.
+ */
+public interface PoolMetricsMBean {
+    /** @return the number of connections currently borrowed. */
+    public int getActiveConnections();
+
+    /** @return the number of open connections that are not borrowed. */
+    public int getIdleConnections();
+
+    /** @return the largest number of connections the pool will open. */
+    public int getMaxConnections();
+
+    /** @return the number of successful borrows. */
+    public long getBorrowCount();
+
+    /** @return the number of borrows that gave up waiting. */
+    public long getBorrowTimeouts();
+
+    /** @return the average time spent waiting for a connection. */
+    public long getBorrowWaitMeanMicros();
+
+    /** @return the 99th percentile of the time spent waiting for a connection. */
+    public long getBorrowWaitP99Micros();
+
+    /** @return the longest time spent waiting for a connection. */
+    public long getBorrowWaitMaxMicros();
+
+    /** @return the average time a connection is held. */
+    public long getHoldMeanMicros();
+
+    /** @return the 99th percentile of the time a connection is held. */
+    public long getHoldP99Micros();
+
+    /** @return the longest time a connection was held. */
+    public long getHoldMaxMicros();
+
+    /** @return hold time for each caller, one line per caller. */
+    public String[] getHoldByCaller();
+
+    /** @return query latency for each operation, one line per operation. */
+    public String[] getQueryLatencies();
+
+    /** @return everything above as one multi-line string. */
+    public String getReport();
+
+    /** Throw away all collected samples. */
+    public void reset();
+}
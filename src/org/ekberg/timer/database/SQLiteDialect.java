@@ -0,0 +1,144 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.Trace;
+
+
+/**
+ * SQLite, an embedded database in a single file. The URL is
+ * jdbc:sqlite:FILE, where FILE is relative to the directory the program is
+ * started in.
+ *<P>
+ * Each connection is put in WAL mode, so readers do not block the writer or
+ * each other. SQLite still allows only one writer at a time, so writes go
+ * through a single connection and the other connections are made read only
+ * (pragma query_only). The pragmas are set from these properties:
+ * <UL>
+ *   <LI> database.sqlite.journalMode - default WAL.
+ *   <LI> database.sqlite.synchronous - default NORMAL. With WAL this only
+ *        syncs at checkpoints: a crash can lose the last commits, but never
+ *        corrupts the file.
+ *   <LI> database.sqlite.cacheSize - pages, or KiB if negative. Default
+ *        -16384, 16 MiB.
+ *   <LI> database.sqlite.mmapSize - bytes of the file read through memory
+ *        mapping. Default 268435456.
+ *   <LI> database.sqlite.busyTimeout - milliseconds to wait for a lock.
+ *        Default 5000.
+ * </UL>
+ */
+public class SQLiteDialect extends Dialect {
+    /** Name of this dialect. */
+    public static final String SQLITE = "sqlite";
+
+    /** Start of the pragma properties. */
+    private static final String CONFIG_PREFIX = "database.sqlite.";
+
+    /** Default journal mode. */
+    private static final String DEFAULT_JOURNAL_MODE = "WAL";
+
+    /** Default synchronous setting. */
+    private static final String DEFAULT_SYNCHRONOUS = "NORMAL";
+
+    /** Default cache size, negative for KiB. */
+    private static final int DEFAULT_CACHE_SIZE = -16384;
+
+    /** Default memory mapped size in bytes. */
+    private static final long DEFAULT_MMAP_SIZE = 268435456L;
+
+    /** Default busy timeout in milliseconds. */
+    private static final int DEFAULT_BUSY_TIMEOUT = 5000;
+
+
+    public String getName() {
+        return SQLITE;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * An INTEGER PRIMARY KEY is the rowid, so it is assigned without the
+     * extra table AUTOINCREMENT needs.
+     *
+     * @return
+     *   String - the column definition.
+     */
+    //-------------------------------------------------------------------------
+    public String getIdentityColumn() {
+        return "INTEGER PRIMARY KEY";
+    }
+
+
+    public String getUpsertClause(String key, String[] columns) {
+        StringBuffer sb = new StringBuffer(" on conflict(").append(key).append(") do update set ");
+        for (int i=0; i<columns.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(columns[i]).append("=excluded.").append(columns[i]);
+        }
+        return sb.toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Nothing to do: SQLite steps through a result one row at a time. The
+     * driver also fails setFetchDirection before a result set is open.
+     *
+     * @param  statement  the statement.
+     *
+     * @param  fetchSize  ignored.
+     */
+    //-------------------------------------------------------------------------
+    public void setStreaming(Statement statement, int fetchSize) {
+    }
+
+
+    public boolean isSingleWriter() {
+        return true;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Set the pragmas.
+     *
+     * @param  connection  the new connection.
+     *
+     * @param  readOnly  true to turn on query_only.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    public void configure(Connection connection, boolean readOnly) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            // busy_timeout first, so the others wait for locks too.
+            statement.execute("pragma busy_timeout=" +
+                        Config.getInt(CONFIG_PREFIX + "busyTimeout", DEFAULT_BUSY_TIMEOUT));
+            statement.execute("pragma journal_mode=" +
+                        Config.getString(CONFIG_PREFIX + "journalMode", DEFAULT_JOURNAL_MODE));
+            statement.execute("pragma synchronous=" +
+                        Config.getString(CONFIG_PREFIX + "synchronous", DEFAULT_SYNCHRONOUS));
+            statement.execute("pragma cache_size=" +
+                        Config.getInt(CONFIG_PREFIX + "cacheSize", DEFAULT_CACHE_SIZE));
+            statement.execute("pragma mmap_size=" +
+                        Config.getLong(CONFIG_PREFIX + "mmapSize", DEFAULT_MMAP_SIZE));
+            if (readOnly)
+                statement.execute("pragma query_only=1");
+        }
+        finally {
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {}
+        }
+        Trace.info("Configured SQLite " + (readOnly ? "reader" : "writer") + " connection");
+    }
+}
@@ -17,13 +17,17 @@ package org.ekberg.timer.database;
 
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import org.ekberg.database.DatabaseBase;
+import org.ekberg.timer.utility.Config;
 import org.ekberg.timer.utility.Trace;
 
 
@@ -38,14 +42,27 @@ import org.ekberg.timer.utility.Trace;
  *   <LI> get/set methods on all data items.
  *   <LI> Create this instance in the database.
  *   <LI> Static findByID to find a particular TaskTimeElement in the database.
- *   <LI> Static findAll to get all TaskTimeElement objects in the database.
+ *   <LI> Static findAll to get all TaskTimeElement objects in the database,
+ *        either as a List or streamed to a TaskTimeElementHandler.
+ *   <LI> Static findAllKeys to stream the id, user name, task date and task
+ *        name of every object, or of one day's, disabled ones included.
  *   <LI> Static findAllByTaskDate to find all TaskTimeElement objects with the same taskDate in the database.
+ *   <LI> Static findAllByLatestTaskDate to find the task catalog: the
+ *        TaskTimeElement objects of the most recent taskDate that has any.
  *   <LI> Update the instance in the database.
+ *   <LI> Static upsertAll to save a whole day's objects in one batch.
  *   <LI> Static delete method to delete a particular TaskTimeElement from the
  *        database.
  *   <LI> toString.
  * </UL>
  *<P>
+ * Each operation uses a PreparedStatement that is cached with the pooled
+ * connection it runs on (see AdminConnectionManager.prepareStatement), so
+ * the SQL is parsed once per connection and only the parameters change.
+ *<P>
+ * The SQL that differs between databases comes from the Dialect. The
+ * TaskTimeElement table and its indexes are created the first time the
+ * database is used, if they are not there.
  */
 public class TaskTimeElementDB extends DatabaseBase {
     /** Running counter to try and avoid having objects generated at the same
@@ -63,6 +80,182 @@ public class TaskTimeElementDB extends DatabaseBase {
     /** The user's login id. */
     private static String userName = null;
 
+    /** SQL for create. */
+    private final static String INSERT_SQL =
+                "insert into TaskTimeElement (" +
+                "DURATION" +  // 1
+                ",TASKDATE" + // 2
+                ",TASKNAME" + // 3
+                ",USERNAME" + // 4
+                ") values (?,?,?,?)";
+
+    /** SQL for findByID. */
+    private final static String FIND_BY_ID_SQL =
+                "select " +
+                "DURATION" +
+                ",TASKDATE" +
+                ",TASKNAME" +
+                ",USERNAME" +
+                " from TaskTimeElement where id = ?";
+
+    /** SQL for findByTaskNameAndTaskDate. The USERNAME test is appended when
+     * a userName has been specified. */
+    private final static String FIND_BY_TASK_NAME_AND_TASK_DATE_SQL =
+                "select " +
+                "ID" +
+                ",DURATION" +
+                ",ENABLED" +
+                " from TaskTimeElement" +
+                " where taskName = ?" +
+                " and taskDate = ?";
+
+    /** SQL for findAll. */
+    private final static String FIND_ALL_SQL =
+                "SELECT ID" +
+                ",DURATION" +
+                ",TASKDATE" +
+                ",TASKNAME" +
+                ",USERNAME" +
+                " FROM TASKTIMEELEMENT" +
+                " WHERE ENABLED IS TRUE";
+
+    /** Ordering for findAll. */
+    private final static String FIND_ALL_ORDER = " ORDER BY TASKDATE,TASKNAME";
+
+    /** SQL for findAllKeys. Disabled objects are included. */
+    private final static String FIND_ALL_KEYS_SQL =
+                "SELECT ID" +
+                ",TASKDATE" +
+                ",TASKNAME" +
+                ",USERNAME" +
+                ",ENABLED" +
+                " FROM TaskTimeElement";
+
+    /** Restricts findAllKeys to one user. */
+    private final static String FIND_ALL_KEYS_USER_TEST = "USERNAME=?";
+
+    /** Restricts findAllKeys to one day. */
+    private final static String FIND_ALL_KEYS_DATE_TEST = "TASKDATE=?";
+
+    /** SQL for findAllByTaskDate. */
+    private final static String FIND_ALL_BY_TASK_DATE_SQL =
+                "SELECT " +
+                "ID" +
+                ",DURATION" +
+                ",TASKNAME" +
+                ",USERNAME" +
+                " FROM TaskTimeElement" +
+                " WHERE TASKDATE=?" +
+                " AND ENABLED IS TRUE";
+
+    /** Ordering for findAllByTaskDate. */
+    private final static String FIND_ALL_BY_TASK_DATE_ORDER = " ORDER BY TASKNAME";
+
+    /** SQL for findAllByLatestTaskDate. The subquery picks the latest
+     * taskDate, which the (USERNAME, TASKDATE) index finds by reading back
+     * from the user's newest entry. SUBQUERY_END closes the subquery, after the optional
+     * USER_CLAUSE and ON_OR_BEFORE_CLAUSE for it. */
+    private final static String FIND_ALL_BY_LATEST_TASK_DATE_SQL =
+                "SELECT " +
+                "ID" +
+                ",DURATION" +
+                ",TASKDATE" +
+                ",TASKNAME" +
+                ",USERNAME" +
+                " FROM TaskTimeElement" +
+                " WHERE ENABLED IS TRUE" +
+                " AND TASKDATE=(SELECT MAX(TASKDATE) FROM TaskTimeElement" +
+                " WHERE ENABLED IS TRUE";
+
+    /** Limits findAllByLatestTaskDate to dates up to a given day. */
+    private final static String ON_OR_BEFORE_CLAUSE = " AND TASKDATE<=?";
+
+    /** Closes the subquery of findAllByLatestTaskDate. */
+    private final static String SUBQUERY_END = ")";
+
+    /** Name of the index used by findAllByLatestTaskDate. */
+    private final static String USER_DATE_INDEX = "TASKTIMEELEMENT_USER_DATE";
+
+    /** SQL to create USER_DATE_INDEX. */
+    private final static String CREATE_USER_DATE_INDEX_SQL =
+                "CREATE INDEX " + USER_DATE_INDEX +
+                " ON TaskTimeElement (USERNAME, TASKDATE)";
+
+    /** Rows per round trip for streaming queries, when the driver allows it. */
+    private final static int DEFAULT_FETCH_SIZE = 500;
+
+    /** SQL to create the table, after the dialect's id column. */
+    private final static String CREATE_TABLE_SQL =
+                "CREATE TABLE IF NOT EXISTS TaskTimeElement (" +
+                "ID ";
+
+    /** The columns after ID in CREATE_TABLE_SQL. */
+    private final static String CREATE_TABLE_COLUMNS =
+                ",DURATION DOUBLE NOT NULL" +
+                ",TASKDATE VARCHAR(10) NOT NULL" +
+                ",TASKNAME VARCHAR(255) NOT NULL" +
+                ",USERNAME VARCHAR(64)" +
+                ",ENABLED BOOLEAN NOT NULL DEFAULT TRUE" +
+                ")";
+
+    /** True once the table and indexes have been checked. */
+    private static volatile boolean schemaChecked = false;
+
+    /** Milliseconds to wait after a failed schema check before trying
+     * again. */
+    private final static long SCHEMA_RETRY_INTERVAL = 60000L;
+
+    /** When the schema check may be tried again after a failure. */
+    private static volatile long schemaRetryTime = 0L;
+
+    /** Restricts a query to the current userName. */
+    private final static String USER_CLAUSE = " AND USERNAME=?";
+
+    /** SQL for update. */
+    private final static String UPDATE_SQL =
+                "update TaskTimeElement set " +
+                "DURATION=?" +
+                ",TASKDATE=?" +
+                ",TASKNAME=?" +
+                ",USERNAME=?" +
+                ",ENABLED=?" +
+                " where ID = ?";
+
+    /** SQL for upsertAll when the database has a native upsert, before the
+     * dialect's upsert clause. A null ID lets the database assign one. */
+    private final static String UPSERT_SQL =
+                "insert into TaskTimeElement (" +
+                "ID" +        // 1
+                ",DURATION" + // 2
+                ",TASKDATE" + // 3
+                ",TASKNAME" + // 4
+                ",USERNAME" + // 5
+                ",ENABLED" +  // 6
+                ") values (?,?,?,?,?,?)";
+
+    /** The columns an upsert changes. */
+    private final static String[] UPSERT_COLUMNS = {
+        "DURATION", "TASKDATE", "TASKNAME", "USERNAME", "ENABLED"
+    };
+
+    /** UPSERT_SQL with the dialect's clause, or null if there is no native
+     * upsert. Set by checkSchema. */
+    private static String upsertSql = null;
+
+    /** SQL used by upsertAll for new objects when there is no native
+     * upsert. */
+    private final static String BATCH_INSERT_SQL =
+                "insert into TaskTimeElement (" +
+                "DURATION" +  // 1
+                ",TASKDATE" + // 2
+                ",TASKNAME" + // 3
+                ",USERNAME" + // 4
+                ",ENABLED" +  // 5
+                ") values (?,?,?,?,?)";
+
+    /** SQL for delete. */
+    private final static String DELETE_SQL = "delete from TaskTimeElement where ID = ?";
+
 
     //-------------------------------------------------------------------------
     /**
@@ -156,10 +349,12 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public boolean create(TaskTimeElement bean) {
+        long queryStart = AdminConnectionManager.startQuery();
         boolean ret = true;
+        String key = null;
         String sql = null;
         TaskTimeElement object;
-        Statement theStatement = null;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
         ResultSet rs = null;
 
@@ -175,34 +370,26 @@ public class TaskTimeElementDB extends DatabaseBase {
                 if (userName != null) {
                     bean.setUserName(userName);
                 }
-                theConnection = AdminConnectionManager.getConnection(ME + ".create");
-                theStatement = theConnection.createStatement();
-                sql = "insert into TaskTimeElement (" +
-                            "DURATION" +  // 1
-                            ",TASKDATE" + // 2
-                            ",TASKNAME" + // 3
-                            ",USERNAME" + // 4
-                            ") " +
-                            "values (" +
-                            bean.getDuration() + // 1
-                            "," + "'" + DatabaseBase.encodeToSql(bean.getTaskDate()) + "'" + // 2
-                            "," + "'" + DatabaseBase.encodeToSql(bean.getTaskName()) + "'" + // 3
-                            "," + "'" + DatabaseBase.encodeToSql(bean.getUserName()) + "'" + // 4
-                            ")";
-                theStatement.executeUpdate(sql);
-                theStatement.close();
-                theStatement = null;
-                // Get the auto_increment primary key.
-                theStatement = theConnection.createStatement();
-                sql = "select last_insert_id()";
-                theStatement.executeQuery(sql);
-                rs = theStatement.getResultSet();
+                theConnection = getWriteConnection(ME + ".create");
+                key = ME + ".create";
+                sql = INSERT_SQL;
+                theStatement = AdminConnectionManager.prepareInsert(theConnection, key, sql);
+                int i = 1;
+                theStatement.setDouble(i++, bean.getDuration());
+                theStatement.setString(i++, bean.getTaskDate());
+                theStatement.setString(i++, bean.getTaskName());
+                theStatement.setString(i++, bean.getUserName());
+                theStatement.executeUpdate();
+                // Get the id the database assigned.
+                rs = theStatement.getGeneratedKeys();
                 if (rs.next()) {
                     bean.setId(rs.getLong(1));
                 }
             }
             catch (SQLException e) {
                 Trace.error("sql=" + sql, e);
+                if (theConnection != null)
+                    AdminConnectionManager.discardStatement(theConnection, key);
                 ret = false;
             }
             finally {
@@ -212,16 +399,11 @@ public class TaskTimeElementDB extends DatabaseBase {
                     }
                     catch (SQLException e) {}
                 }
-                if (theStatement != null) {
-                    try {
-                        theStatement.close();
-                    }
-                    catch (SQLException e) {}
-                }
                 if (theConnection != null)
                     AdminConnectionManager.releaseConnection(theConnection);
             }
         }
+        AdminConnectionManager.endQuery(ME + ".create", queryStart);
         return ret;
     }
 
@@ -238,22 +420,19 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public static TaskTimeElement findByID(long id) {
-        String sql = null;
+        long queryStart = AdminConnectionManager.startQuery();
+        final String key = ME + ".findByID";
+        String sql = FIND_BY_ID_SQL;
         TaskTimeElement ret = null;
-        Statement theStatement = null;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
         ResultSet rs = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".findByID");
-            theStatement = theConnection.createStatement();
-            sql = "select " +
-                        "DURATION" + 
-                        ",TASKDATE" + 
-                        ",TASKNAME" + 
-                        ",USERNAME" +
-                        " from TaskTimeElement where id = " + id;
-            rs = theStatement.executeQuery(sql);
+            theConnection = getConnection(key);
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            theStatement.setLong(1, id);
+            rs = theStatement.executeQuery();
             if (rs.next()) {
                 int i = 1;
                 ret = new TaskTimeElement();
@@ -266,6 +445,8 @@ public class TaskTimeElementDB extends DatabaseBase {
         }
         catch (SQLException e) {
             Trace.error("sql=" + sql, e);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
         }
         finally {
             if (rs != null) {
@@ -274,15 +455,10 @@ public class TaskTimeElementDB extends DatabaseBase {
                 }
                 catch (SQLException e) {}
             }
-            if (theStatement != null) {
-                try {
-                    theStatement.close();
-                }
-                catch (SQLException e) {}
-            }
             if (theConnection != null)
                 AdminConnectionManager.releaseConnection(theConnection);
         }
+        AdminConnectionManager.endQuery(ME + ".findByID", queryStart);
         return ret;
     }
 
@@ -299,26 +475,24 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public static TaskTimeElement findByTaskNameAndTaskDate(String taskName, String taskDate) {
-        String sql = null;
+        long queryStart = AdminConnectionManager.startQuery();
+        final String key = ME + ".findByTaskNameAndTaskDate" + (userName == null ? "" : ".user");
+        String sql = userName == null
+                    ? FIND_BY_TASK_NAME_AND_TASK_DATE_SQL
+                    : FIND_BY_TASK_NAME_AND_TASK_DATE_SQL + USER_CLAUSE;
         TaskTimeElement object = null;
-        Statement theStatement = null;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
         ResultSet rs = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".findByTaskNameAndTaskDate");
-            theStatement = theConnection.createStatement();
-            sql = "select " +
-                        "ID" +
-                        ",DURATION" + 
-                        ",ENABLED" +
-                        " from TaskTimeElement" +
-                        " where taskName = " + "'" + DatabaseBase.encodeToSql(taskName) + "'" +
-                        " and taskDate = "   + "'" + DatabaseBase.encodeToSql(taskDate) + "'" +
-                        (userName == null
-                                    ? ""
-                                    : (" and USERNAME='" + DatabaseBase.encodeToSql(userName) + "'"));
-            rs = theStatement.executeQuery(sql);
+            theConnection = getConnection(ME + ".findByTaskNameAndTaskDate");
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            theStatement.setString(1, taskName);
+            theStatement.setString(2, taskDate);
+            if (userName != null)
+                theStatement.setString(3, userName);
+            rs = theStatement.executeQuery();
             if (rs.next()) {
                 object = new TaskTimeElement();
                 object.setTaskDate(taskDate);
@@ -334,6 +508,8 @@ public class TaskTimeElementDB extends DatabaseBase {
         }
         catch (SQLException e) {
             Trace.error("sql=" + sql, e);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
         }
         finally {
             if (rs != null) {
@@ -342,15 +518,10 @@ public class TaskTimeElementDB extends DatabaseBase {
                 }
                 catch (SQLException e) {}
             }
-            if (theStatement != null) {
-                try {
-                    theStatement.close();
-                }
-                catch (SQLException e) {}
-            }
             if (theConnection != null)
                 AdminConnectionManager.releaseConnection(theConnection);
         }
+        AdminConnectionManager.endQuery(ME + ".findByTaskNameAndTaskDate", queryStart);
         return object;
     }
 
@@ -369,30 +540,82 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public static List<TaskTimeElement> findAll() {
-        List<TaskTimeElement> ret = new ArrayList<TaskTimeElement>();
-        String sql = null;
-        Statement theStatement = null;
+        final List<TaskTimeElement> ret = new ArrayList<TaskTimeElement>();
+        long count = findAll(new TaskTimeElementHandler() {
+                public boolean handle(TaskTimeElement row) {
+                    ret.add(row);
+                    return true;
+                }
+            }, false, userName);
+        return count < 0 ? null : ret;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stream all TaskTimeElement objects in the database to a handler,
+     * without collecting them. If a userName has been specified then only
+     * TaskTimeElement objects for that userName are handled. The order is the
+     * same as findAll.
+     *
+     * @param  handler  called once per row.
+     *
+     * @param  reuseRow  if true, the same TaskTimeElement object is passed
+     * for every row, so no garbage is created per row.
+     *
+     * @return
+     *   long - the number of rows handled, or -1 if a failure is detected,
+     * in which case a message will be written to the Trace file.
+     */
+    // ------------------------------------------------------------------------
+    public static long findAll(TaskTimeElementHandler handler, boolean reuseRow) {
+        return findAll(handler, reuseRow, userName);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stream all TaskTimeElement objects of a particular user to a handler,
+     * without collecting them. The result set is forward only and read only.
+     * With MySQL and SQLite the rows are streamed one at a time; with other
+     * databases database.fetchSize rows are fetched per round trip. Either
+     * way the memory used does not grow with the number of rows.
+     *
+     * @param  handler  called once per row.
+     *
+     * @param  reuseRow  if true, the same TaskTimeElement object is passed
+     * for every row, so no garbage is created per row.
+     *
+     * @param  userName  only handle objects for this user. If null, objects
+     * for all users are handled.
+     *
+     * @return
+     *   long - the number of rows handled, or -1 if a failure is detected,
+     * in which case a message will be written to the Trace file.
+     */
+    // ------------------------------------------------------------------------
+    public static long findAll(TaskTimeElementHandler handler, boolean reuseRow, String userName) {
+        long queryStart = AdminConnectionManager.startQuery();
+        long ret = 0;
+        final String key = ME + ".findAll" + (userName == null ? "" : ".user");
+        String sql = userName == null
+                    ? FIND_ALL_SQL + FIND_ALL_ORDER
+                    : FIND_ALL_SQL + USER_CLAUSE + FIND_ALL_ORDER;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
         ResultSet rs = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".findAll");
-            theStatement = theConnection.createStatement();
-            sql = "SELECT ID" +
-                        ",DURATION" + 
-                        ",TASKDATE" + 
-                        ",TASKNAME" + 
-                        ",USERNAME" +
-                        " FROM TASKTIMEELEMENT" +
-                        " WHERE ENABLED IS TRUE" +
-                        (userName == null
-                                    ? ""
-                                    : (" AND USERNAME='" + DatabaseBase.encodeToSql(userName) + "'")) +
-                        " ORDER BY TASKDATE,TASKNAME";
-            rs = theStatement.executeQuery(sql);
-            TaskTimeElement object;
+            theConnection = getConnection(ME + ".findAll");
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            AdminConnectionManager.getDatabaseDialect().setStreaming(theStatement, getFetchSize());
+            if (userName != null)
+                theStatement.setString(1, userName);
+            rs = theStatement.executeQuery();
+            TaskTimeElement object = reuseRow ? new TaskTimeElement() : null;
             while(rs.next()) {
-                object = new TaskTimeElement();
+                if (!reuseRow)
+                    object = new TaskTimeElement();
                 int i = 1;
                 object.setId(rs.getLong(i++));
                 object.setDuration(rs.getDouble(i++));
@@ -400,16 +623,20 @@ public class TaskTimeElementDB extends DatabaseBase {
                 object.setTaskName(rs.getString(i++));
                 object.setUserName(rs.getString(i++));
                 object.setEnabled(true);
-                ret.add(object);
+                ret++;
+                if (!handler.handle(object))
+                    break;
             }
         }
         catch (SQLException e) {
             Trace.error("sql=" + sql, e);
-            ret = null;
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
+            ret = -1;
         }
         catch (Exception ex) {
             Trace.error("Exception", ex);
-            ret = null;
+            ret = -1;
         }
         finally {
             if (rs != null) {
@@ -418,19 +645,132 @@ public class TaskTimeElementDB extends DatabaseBase {
                 }
                 catch (SQLException e) {}
             }
-            if (theStatement != null) {
+            if (theConnection != null)
+                AdminConnectionManager.releaseConnection(theConnection);
+        }
+        AdminConnectionManager.endQuery(ME + ".findAll", queryStart);
+        return ret;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stream the keys of the TaskTimeElement objects to a handler: the id,
+     * user name, task date and task name, and whether the object is enabled.
+     * Unlike findAll, disabled objects are included, so this tells which
+     * timers already have a row on a day. The rows are streamed as by
+     * findAll, in no particular order, and the same row object is passed
+     * each time; its duration is not set.
+     *
+     * @param  handler  called once per row.
+     *
+     * @param  userName  only handle objects for this user. If null, objects
+     * for all users are handled.
+     *
+     * @return
+     *   long - the number of rows handled, or -1 if a failure is detected,
+     * in which case a message will be written to the Trace file.
+     */
+    // ------------------------------------------------------------------------
+    public static long findAllKeys(TaskTimeElementHandler handler, String userName) {
+        return findAllKeys(handler, userName, null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stream the keys of the TaskTimeElement objects of one day to a
+     * handler, as findAllKeys(handler, userName) does.
+     *
+     * @param  handler  called once per row.
+     *
+     * @param  userName  only handle objects for this user. If null, objects
+     * for all users are handled.
+     *
+     * @param  taskDate  only handle objects for this day. If null, objects
+     * for all days are handled.
+     *
+     * @return
+     *   long - the number of rows handled, or -1 if a failure is detected,
+     * in which case a message will be written to the Trace file.
+     */
+    // ------------------------------------------------------------------------
+    public static long findAllKeys(TaskTimeElementHandler handler, String userName, String taskDate) {
+        long queryStart = AdminConnectionManager.startQuery();
+        long ret = 0;
+        final String key = ME + ".findAllKeys" + (userName == null ? "" : ".user") +
+                    (taskDate == null ? "" : ".date");
+        String sql = FIND_ALL_KEYS_SQL;
+        if (userName != null)
+            sql += " WHERE " + FIND_ALL_KEYS_USER_TEST;
+        if (taskDate != null)
+            sql += (userName == null ? " WHERE " : " AND ") + FIND_ALL_KEYS_DATE_TEST;
+        PreparedStatement theStatement = null;
+        Connection theConnection = null;
+        ResultSet rs = null;
+
+        try {
+            theConnection = getConnection(ME + ".findAllKeys");
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            AdminConnectionManager.getDatabaseDialect().setStreaming(theStatement, getFetchSize());
+            int p = 1;
+            if (userName != null)
+                theStatement.setString(p++, userName);
+            if (taskDate != null)
+                theStatement.setString(p++, taskDate);
+            rs = theStatement.executeQuery();
+            TaskTimeElement object = new TaskTimeElement();
+            while(rs.next()) {
+                int i = 1;
+                object.setId(rs.getLong(i++));
+                object.setTaskDate(rs.getString(i++));
+                object.setTaskName(rs.getString(i++));
+                object.setUserName(rs.getString(i++));
+                object.setEnabled(rs.getBoolean(i++));
+                ret++;
+                if (!handler.handle(object))
+                    break;
+            }
+        }
+        catch (SQLException e) {
+            Trace.error("sql=" + sql, e);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
+            ret = -1;
+        }
+        catch (Exception ex) {
+            Trace.error("Exception", ex);
+            ret = -1;
+        }
+        finally {
+            if (rs != null) {
                 try {
-                    theStatement.close();
+                    rs.close();
                 }
                 catch (SQLException e) {}
             }
             if (theConnection != null)
                 AdminConnectionManager.releaseConnection(theConnection);
         }
+        AdminConnectionManager.endQuery(ME + ".findAllKeys", queryStart);
         return ret;
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * Get the fetch size for streaming queries, database.fetchSize. The
+     * dialect decides how it is used; see Dialect.setStreaming.
+     *
+     * @return
+     *   int - the fetch size.
+     */
+    //-------------------------------------------------------------------------
+    protected static int getFetchSize() {
+        return Config.getInt("database.fetchSize", DEFAULT_FETCH_SIZE);
+    }
+
+
     //-------------------------------------------------------------------------
     /**
      * Retrieve a List of TaskTimeElement objects based on taskDate.
@@ -443,29 +783,75 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     //-------------------------------------------------------------------------
     public static List<TaskTimeElement> findAllByTaskDate(String taskDate) {
-        String sql = null;
-        List<TaskTimeElement> ret = new ArrayList<TaskTimeElement>();
-        Statement theStatement = null;
+        return findAllByTaskDate(taskDate, userName);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Retrieve a List of TaskTimeElement objects based on taskDate for a
+     * particular user. This is used when one process serves many users, so
+     * the userName given to the constructor cannot be used.
+     *
+     * @param  taskDate  taskDate of objects to retrieve.
+     *
+     * @param  userName  only return objects for this user. If null, objects
+     * for all users are returned.
+     *
+     * @return
+     *   List<TaskTimeElement> - TaskTimeElement objects associated with a
+     * taskDate.
+     */
+    //-------------------------------------------------------------------------
+    public static List<TaskTimeElement> findAllByTaskDate(String taskDate, String userName) {
+        final List<TaskTimeElement> ret = new ArrayList<TaskTimeElement>();
+        findAllByTaskDate(new TaskTimeElementHandler() {
+                public boolean handle(TaskTimeElement row) {
+                    ret.add(row);
+                    return true;
+                }
+            }, taskDate, userName);
+        return ret;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pass the TaskTimeElement objects of a taskDate for a particular user
+     * to a handler, one new object per row. Unlike the List form, this
+     * tells a day with no objects from a query that failed.
+     *
+     * @param  handler  called once per row.
+     *
+     * @param  taskDate  taskDate of objects to retrieve.
+     *
+     * @param  userName  only handle objects for this user. If null, objects
+     * for all users are handled.
+     *
+     * @return
+     *   long - the number of rows handled, or -1 if a failure is detected,
+     * in which case a message will be written to the Trace file.
+     */
+    //-------------------------------------------------------------------------
+    public static long findAllByTaskDate(TaskTimeElementHandler handler, String taskDate,
+                                         String userName) {
+        long queryStart = AdminConnectionManager.startQuery();
+        long ret = 0;
+        final String key = ME + ".findAllByTaskDate" + (userName == null ? "" : ".user");
+        String sql = userName == null
+                    ? FIND_ALL_BY_TASK_DATE_SQL + FIND_ALL_BY_TASK_DATE_ORDER
+                    : FIND_ALL_BY_TASK_DATE_SQL + USER_CLAUSE + FIND_ALL_BY_TASK_DATE_ORDER;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
         ResultSet rs = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".findAllByTaskDate");
-            theStatement = theConnection.createStatement();
-            sql = "SELECT " +
-                    "ID" +
-                    ",DURATION" +
-                    ",TASKNAME" +
-                    ",USERNAME" +
-                    " FROM TaskTimeElement" +
-                        " WHERE TASKDATE=" + 
-                        "'" + DatabaseBase.encodeToSql(taskDate) + "'" +
-                        " AND ENABLED IS TRUE" +
-                        (userName == null
-                                    ? ""
-                                    : (" AND USERNAME='" + DatabaseBase.encodeToSql(userName) + "'")) +
-                        " ORDER BY TASKNAME";
-            rs = theStatement.executeQuery(sql);
+            theConnection = getConnection(ME + ".findAllByTaskDate");
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            theStatement.setString(1, taskDate);
+            if (userName != null)
+                theStatement.setString(2, userName);
+            rs = theStatement.executeQuery();
             TaskTimeElement object = null;
             while (rs.next()) {
                 object = new TaskTimeElement();
@@ -476,10 +862,15 @@ public class TaskTimeElementDB extends DatabaseBase {
                 object.setDuration(rs.getDouble(i++));
                 object.setTaskName(rs.getString(i++));
                 object.setUserName(rs.getString(i++));
-                ret.add(object);
+                ret++;
+                if (!handler.handle(object))
+                    break;
             }
         } catch (SQLException sqle) {
             Trace.error("sql = " + sql, sqle);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
+            ret = -1;
         }
         finally {
             if (rs != null) {
@@ -488,19 +879,269 @@ public class TaskTimeElementDB extends DatabaseBase {
                 }
                 catch (SQLException e) {}
             }
-            if (theStatement != null) {
+            if (theConnection != null)
+                AdminConnectionManager.releaseConnection(theConnection);
+        }
+        AdminConnectionManager.endQuery(ME + ".findAllByTaskDate", queryStart);
+        return ret;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Retrieve the task catalog: the TaskTimeElement objects of the most
+     * recent taskDate, on or before a given day, that has any enabled
+     * objects. Uses the userName given to the constructor.
+     *
+     * @param  onOrBefore  latest taskDate to consider. If null, any taskDate.
+     *
+     * @return
+     *   List<TaskTimeElement> - the objects, ordered by taskName. Empty if
+     * there are none at all.
+     */
+    //-------------------------------------------------------------------------
+    public static List<TaskTimeElement> findAllByLatestTaskDate(String onOrBefore) {
+        return findAllByLatestTaskDate(onOrBefore, userName);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Retrieve the task catalog for a particular user: the TaskTimeElement
+     * objects of the most recent taskDate, on or before a given day, that
+     * has any enabled objects. This is a single query on the (USERNAME,
+     * TASKDATE) index, so its cost does not depend on how many days have
+     * been recorded, or on how long ago the last one was.
+     *
+     * @param  onOrBefore  latest taskDate to consider. If null, any taskDate.
+     *
+     * @param  userName  only return objects for this user. If null, objects
+     * for all users are considered.
+     *
+     * @return
+     *   List<TaskTimeElement> - the objects, ordered by taskName. Empty if
+     * there are none at all.
+     */
+    //-------------------------------------------------------------------------
+    public static List<TaskTimeElement> findAllByLatestTaskDate(String onOrBefore, String userName) {
+        long queryStart = AdminConnectionManager.startQuery();
+        final String key = ME + ".findAllByLatestTaskDate" +
+                    (userName == null ? "" : ".user") +
+                    (onOrBefore == null ? "" : ".onOrBefore");
+        String userClause = userName == null ? "" : USER_CLAUSE;
+        String sql = FIND_ALL_BY_LATEST_TASK_DATE_SQL + userClause +
+                    (onOrBefore == null ? "" : ON_OR_BEFORE_CLAUSE) +
+                    SUBQUERY_END + userClause + FIND_ALL_BY_TASK_DATE_ORDER;
+        List<TaskTimeElement> ret = new ArrayList<TaskTimeElement>();
+        PreparedStatement theStatement = null;
+        Connection theConnection = null;
+        ResultSet rs = null;
+
+        try {
+            theConnection = getConnection(ME + ".findAllByLatestTaskDate");
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            int p = 1;
+            if (userName != null)
+                theStatement.setString(p++, userName);
+            if (onOrBefore != null)
+                theStatement.setString(p++, onOrBefore);
+            if (userName != null)
+                theStatement.setString(p++, userName);
+            rs = theStatement.executeQuery();
+            TaskTimeElement object = null;
+            while (rs.next()) {
+                object = new TaskTimeElement();
+                object.setEnabled(true);
+                int i = 1;
+                object.setId(rs.getLong(i++));
+                object.setDuration(rs.getDouble(i++));
+                object.setTaskDate(rs.getString(i++));
+                object.setTaskName(rs.getString(i++));
+                object.setUserName(rs.getString(i++));
+                ret.add(object);
+            }
+        } catch (SQLException sqle) {
+            Trace.error("sql = " + sql, sqle);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
+        }
+        finally {
+            if (rs != null) {
                 try {
-                    theStatement.close();
+                    rs.close();
                 }
                 catch (SQLException e) {}
             }
             if (theConnection != null)
                 AdminConnectionManager.releaseConnection(theConnection);
         }
+        AdminConnectionManager.endQuery(ME + ".findAllByLatestTaskDate", queryStart);
         return ret;
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * Get a connection for reading, after making sure the schema is there.
+     *
+     * @param  info  identifies the caller.
+     *
+     * @return
+     *   Connection - the connection.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    private static Connection getConnection(String info) throws SQLException {
+        checkSchema();
+        return AdminConnectionManager.getConnection(info);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get a connection for writing, after making sure the schema is there.
+     *
+     * @param  info  identifies the caller.
+     *
+     * @return
+     *   Connection - the connection.
+     *
+     * @throws SQLException
+     */
+    //-------------------------------------------------------------------------
+    private static Connection getWriteConnection(String info) throws SQLException {
+        checkSchema();
+        return AdminConnectionManager.getWriteConnection(info);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create the TaskTimeElement table and the (USERNAME, TASKDATE) index if
+     * they are not there yet, and pick the upsert SQL for the dialect. This
+     * is done once per run, on the writing connection, before the caller
+     * borrows its own connection. The table is looked up first, so an
+     * account without the CREATE privilege works as long as the table
+     * exists. A failure is traced and otherwise ignored, and the check is
+     * tried again after SCHEMA_RETRY_INTERVAL: the operations that follow
+     * report their own errors.
+     */
+    //-------------------------------------------------------------------------
+    protected static void checkSchema() {
+        if (schemaChecked || System.currentTimeMillis() < schemaRetryTime)
+            return;
+        synchronized (TaskTimeElementDB.class) {
+            if (schemaChecked || System.currentTimeMillis() < schemaRetryTime)
+                return;
+            Dialect dialect = AdminConnectionManager.getDatabaseDialect();
+            String clause = dialect.getUpsertClause("ID", UPSERT_COLUMNS);
+            upsertSql = clause == null ? null : UPSERT_SQL + clause;
+
+            Connection connection = null;
+            String sql = CREATE_TABLE_SQL + dialect.getIdentityColumn() + CREATE_TABLE_COLUMNS;
+            try {
+                connection = AdminConnectionManager.getWriteConnection(ME + ".checkSchema");
+                if (!tableExists(connection)) {
+                    Statement statement = connection.createStatement();
+                    try {
+                        statement.executeUpdate(sql);
+                    }
+                    finally {
+                        statement.close();
+                    }
+                    Trace.info("Created table TaskTimeElement");
+                }
+                checkIndexes(connection);
+                schemaChecked = true;
+            }
+            catch (SQLException e) {
+                Trace.error("sql = " + sql, e);
+                schemaRetryTime = System.currentTimeMillis() + SCHEMA_RETRY_INTERVAL;
+            }
+            finally {
+                if (connection != null)
+                    AdminConnectionManager.releaseConnection(connection);
+            }
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Find out if the TaskTimeElement table exists. Databases that fold
+     * unquoted names to upper or lower case are allowed for. Only the
+     * connection's own catalog is searched.
+     *
+     * @param  connection  the connection to use.
+     *
+     * @return
+     *   boolean - true if the table exists.
+     *
+     * @throws SQLException  if the metadata can not be read.
+     */
+    //-------------------------------------------------------------------------
+    protected static boolean tableExists(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String catalog = connection.getCatalog();
+        String[] names = { "TaskTimeElement", "TASKTIMEELEMENT", "tasktimeelement" };
+        for (int i = 0; i < names.length; i++) {
+            ResultSet rs = metaData.getTables(catalog, null, names[i], new String[] { "TABLE" });
+            try {
+                if (rs.next())
+                    return true;
+            }
+            finally {
+                rs.close();
+            }
+        }
+        return false;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create the (USERNAME, TASKDATE) index if the table does not have it
+     * yet. A failure is traced and otherwise ignored: the queries still
+     * work, only slower.
+     *
+     * @param  connection  the connection to use.
+     */
+    //-------------------------------------------------------------------------
+    protected static void checkIndexes(Connection connection) {
+        ResultSet rs = null;
+        Statement statement = null;
+        try {
+            boolean found = false;
+            rs = connection.getMetaData().getIndexInfo(null, null, "TaskTimeElement", false, true);
+            while (rs.next() && !found)
+                found = USER_DATE_INDEX.equalsIgnoreCase(rs.getString("INDEX_NAME"));
+            if (!found) {
+                statement = connection.createStatement();
+                statement.executeUpdate(CREATE_USER_DATE_INDEX_SQL);
+                Trace.info("Created index " + USER_DATE_INDEX);
+            }
+        }
+        catch (SQLException e) {
+            Trace.error("sql = " + CREATE_USER_DATE_INDEX_SQL, e);
+        }
+        finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                }
+                catch (SQLException e) {}
+            }
+            if (statement != null) {
+                try {
+                    statement.close();
+                }
+                catch (SQLException e) {}
+            }
+        }
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * Database update method. Modifies all attributes of an existing TaskTimeElement
@@ -512,38 +1153,161 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public static boolean update(TaskTimeElement bean) {
+        long queryStart = AdminConnectionManager.startQuery();
         boolean ret = false;
-        String sql = null;
-        Statement theStatement = null;
+        final String key = ME + ".update";
+        String sql = UPDATE_SQL;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".update");
-            theStatement = theConnection.createStatement();
-            sql = "update TaskTimeElement set " +
-                        "DURATION=" + bean.getDuration() +
-                        ",TASKDATE=" + "'" + DatabaseBase.encodeToSql(bean.getTaskDate()) + "'" +
-                        ",TASKNAME=" + "'" + DatabaseBase.encodeToSql(bean.getTaskName()) + "'" +
-                        ",USERNAME=" + "'" + DatabaseBase.encodeToSql(bean.getUserName()) + "'" +
-                        ",ENABLED=" + bean.isEnabled() +
-                        " where ID = " + bean.getId();
-            int rowCount = theStatement.executeUpdate(sql);
+            theConnection = getWriteConnection(key);
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            int i = 1;
+            theStatement.setDouble(i++, bean.getDuration());
+            theStatement.setString(i++, bean.getTaskDate());
+            theStatement.setString(i++, bean.getTaskName());
+            theStatement.setString(i++, bean.getUserName());
+            theStatement.setBoolean(i++, bean.isEnabled());
+            theStatement.setLong(i++, bean.getId());
+            int rowCount = theStatement.executeUpdate();
             ret = rowCount >= 1;
         }
         catch (SQLException e) {
             Trace.error("sql=" + sql, e);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
             ret = false;
         }
         finally {
-            if (theStatement != null) {
+            if (theConnection != null)
+                AdminConnectionManager.releaseConnection(theConnection);
+        }
+        AdminConnectionManager.endQuery(ME + ".update", queryStart);
+        return ret;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save a list of TaskTimeElement objects in one batch and one
+     * transaction. Objects with an id of 0 are inserted, the others are
+     * updated. When the dialect has a native upsert (MySQL's "on duplicate
+     * key update", SQLite's "on conflict") all objects go through that
+     * single statement,
+     * otherwise the updates and inserts are sent as two batches. Either all
+     * of the objects are saved or none are.
+     *<P>
+     * The id of a newly inserted object is not filled in. Use one of the find
+     * methods to read it back.
+     *
+     * @param  beans  the objects to save.
+     *
+     * @return
+     *   boolean - true if the save was successful, false otherwise. If a
+     * failure is detected a message will be written to the Trace file.
+     */
+    // ------------------------------------------------------------------------
+    public static boolean upsertAll(List<TaskTimeElement> beans) {
+        long queryStart = AdminConnectionManager.startQuery();
+        boolean ret = false;
+        String sql = null;
+        PreparedStatement theStatement = null;
+        Connection theConnection = null;
+        boolean autoCommit = true;
+
+        if (beans.isEmpty())
+            return true;
+
+        try {
+            theConnection = getWriteConnection(ME + ".upsertAll");
+            autoCommit = theConnection.getAutoCommit();
+            theConnection.setAutoCommit(false);
+            if (upsertSql != null) {
+                sql = upsertSql;
+                theStatement = AdminConnectionManager.prepareStatement(theConnection, ME + ".upsertAll", sql);
+                for(TaskTimeElement bean: beans) {
+                    int i = 1;
+                    if (bean.getId() == 0)
+                        theStatement.setNull(i++, Types.BIGINT);
+                    else
+                        theStatement.setLong(i++, bean.getId());
+                    theStatement.setDouble(i++, bean.getDuration());
+                    theStatement.setString(i++, bean.getTaskDate());
+                    theStatement.setString(i++, bean.getTaskName());
+                    theStatement.setString(i++, userName == null ? bean.getUserName() : userName);
+                    theStatement.setBoolean(i++, bean.isEnabled());
+                    theStatement.addBatch();
+                }
+                theStatement.executeBatch();
+            }
+            else {
+                PreparedStatement updates = AdminConnectionManager.prepareStatement(theConnection, ME + ".update", UPDATE_SQL);
+                int updateCount = 0;
+                PreparedStatement inserts = AdminConnectionManager.prepareStatement(theConnection, ME + ".upsertAll.insert", BATCH_INSERT_SQL);
+                int insertCount = 0;
+                for(TaskTimeElement bean: beans) {
+                    String beanUserName = userName == null ? bean.getUserName() : userName;
+                    int i = 1;
+                    if (bean.getId() == 0) {
+                        inserts.setDouble(i++, bean.getDuration());
+                        inserts.setString(i++, bean.getTaskDate());
+                        inserts.setString(i++, bean.getTaskName());
+                        inserts.setString(i++, beanUserName);
+                        inserts.setBoolean(i++, bean.isEnabled());
+                        inserts.addBatch();
+                        insertCount++;
+                    }
+                    else {
+                        updates.setDouble(i++, bean.getDuration());
+                        updates.setString(i++, bean.getTaskDate());
+                        updates.setString(i++, bean.getTaskName());
+                        updates.setString(i++, beanUserName);
+                        updates.setBoolean(i++, bean.isEnabled());
+                        updates.setLong(i++, bean.getId());
+                        updates.addBatch();
+                        updateCount++;
+                    }
+                }
+                if (updateCount > 0) {
+                    sql = UPDATE_SQL;
+                    theStatement = updates;
+                    theStatement.executeBatch();
+                }
+                if (insertCount > 0) {
+                    sql = BATCH_INSERT_SQL;
+                    theStatement = inserts;
+                    theStatement.executeBatch();
+                }
+            }
+            theConnection.commit();
+            ret = true;
+        }
+        catch (SQLException e) {
+            Trace.error("sql=" + sql, e);
+            if (theConnection != null) {
                 try {
-                    theStatement.close();
+                    theConnection.rollback();
                 }
-                catch (SQLException e) {}
+                catch (SQLException re) {}
+                // A failed batch may leave entries behind in any of the
+                // statements, so prepare them all again next time.
+                AdminConnectionManager.discardStatement(theConnection, ME + ".upsertAll");
+                AdminConnectionManager.discardStatement(theConnection, ME + ".update");
+                AdminConnectionManager.discardStatement(theConnection, ME + ".upsertAll.insert");
             }
-            if (theConnection != null)
+            ret = false;
+        }
+        finally {
+            if (theConnection != null) {
+                try {
+                    theConnection.setAutoCommit(autoCommit);
+                }
+                catch (SQLException e) {}
                 AdminConnectionManager.releaseConnection(theConnection);
+            }
         }
+        AdminConnectionManager.endQuery(ME + ".upsertAll", queryStart);
         return ret;
     }
 
@@ -561,34 +1325,32 @@ public class TaskTimeElementDB extends DatabaseBase {
      */
     // ------------------------------------------------------------------------
     public static boolean delete(long id) {
-        String sql = null;
+        long queryStart = AdminConnectionManager.startQuery();
+        final String key = ME + ".delete";
+        String sql = DELETE_SQL;
         boolean ret = false;
-        Statement theStatement = null;
+        PreparedStatement theStatement = null;
         Connection theConnection = null;
 
         try {
-            theConnection = AdminConnectionManager.getConnection(ME + ".delete");
-            theStatement = theConnection.createStatement();
-            sql = "delete from TaskTimeElement where " +
-                        "ID = " + id;
-            theStatement.executeUpdate(sql);
+            theConnection = getWriteConnection(key);
+            theStatement = AdminConnectionManager.prepareStatement(theConnection, key, sql);
+            theStatement.setLong(1, id);
+            theStatement.executeUpdate();
             ret = true;
         }
         catch (SQLException e) {
             Trace.error("sql=" + sql, e);
+            if (theConnection != null)
+                AdminConnectionManager.discardStatement(theConnection, key);
         }
         finally {
-            if (theStatement != null) {
-                try {
-                    theStatement.close();
-                }
-                catch (SQLException e) {}
-            }
             if (theConnection != null)
                 AdminConnectionManager.releaseConnection(theConnection);
         }
+        AdminConnectionManager.endQuery(ME + ".delete", queryStart);
         return ret;
     }
 
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+/**
+ * This interface is used by the streaming TaskTimeElementDB.findAll. It is
+ * called once per row, in order, while the query is still being read.
+ */
+public interface TaskTimeElementHandler {
+    // ------------------------------------------------------------------------
+    /**
+     * Process one row. The connection the rows come from is held until the
+     * last row has been handled, so this should not take long. Use the pool
+     * as usual if other queries are needed; the streaming connection can not
+     * run them.
+     *
+     * @param  row  the row. If findAll was asked to reuse the row object,
+     * it is overwritten by the next row, so copy it to keep it.
+     *
+     * @return
+     *   boolean - true to continue with the next row, false to stop.
+     */
+    // ------------------------------------------------------------------------
+    public boolean handle(TaskTimeElement row);
+}
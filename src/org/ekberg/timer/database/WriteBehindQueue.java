@@ -0,0 +1,428 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.database;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.Trace;
+
+
+/**
+ * Saves TaskTimeElement objects in the background. Callers hand beans to
+ * submit, which only stores them in memory and returns, so a slow or missing
+ * database never holds up the caller. A single writer thread takes
+ * everything that is waiting and saves it with one upsertAll.
+ *<P>
+ * Beans are keyed by user name, task date and task name. A bean submitted
+ * while an older one for the same timer is still waiting replaces it, so
+ * only the latest hours are written. At most database.writeBehind.capacity
+ * timers can be waiting. Beyond that, beans for new timers are dropped
+ * (the next save of that timer will bring them back).
+ *<P>
+ * If a save fails, the beans go back in the queue, unless a newer bean for
+ * the same timer has arrived in the meantime, and the writer waits before
+ * trying again. The wait starts at database.writeBehind.retryDelay and
+ * doubles up to database.writeBehind.maxRetryDelay.
+ *<P>
+ * close writes whatever is left before returning, retrying for up to
+ * database.writeBehind.closeTimeout milliseconds.
+ */
+public class WriteBehindQueue {
+    /** The name of this class. */
+    private static final String ME = WriteBehindQueue.class.getName();
+
+    /** Default for the largest number of waiting timers. */
+    protected static final int DEFAULT_CAPACITY = 1000;
+
+    /** Default for the first retry delay, in milliseconds. */
+    protected static final long DEFAULT_RETRY_DELAY = 1000L;
+
+    /** Default for the longest retry delay, in milliseconds. */
+    protected static final long DEFAULT_MAX_RETRY_DELAY = 60L * 1000L;
+
+    /** Default for how long close keeps trying, in milliseconds. */
+    protected static final long DEFAULT_CLOSE_TIMEOUT = 30L * 1000L;
+
+    /** Guards everything below it. */
+    private final Object lock = new Object();
+
+    /** Beans waiting to be written, by key. Oldest first. */
+    private Map<String,TaskTimeElement> pending = new LinkedHashMap<String,TaskTimeElement>();
+
+    /** True while the writer is saving a batch. */
+    private boolean writing;
+
+    /** True once close has been called. */
+    private boolean closed;
+
+    /** The time, from System.currentTimeMillis, when close gives up. */
+    private long closeDeadline;
+
+    /** Largest number of waiting timers. */
+    private final int capacity;
+
+    /** First retry delay. */
+    private final long retryDelay;
+
+    /** Longest retry delay. */
+    private final long maxRetryDelay;
+
+    /** The thread that does the writing. */
+    private final Thread writer;
+
+    /** Number of beans submitted. */
+    private long submitted;
+
+    /** Number of beans that replaced a waiting bean. */
+    private long coalesced;
+
+    /** Number of beans dropped because the queue was full. */
+    private long dropped;
+
+    /** Number of beans written. */
+    private long written;
+
+    /** Number of failed saves. */
+    private long failures;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create a queue using the database.writeBehind.* properties, and start
+     * its writer thread.
+     */
+    //-------------------------------------------------------------------------
+    public WriteBehindQueue() {
+        this(Config.getInt("database.writeBehind.capacity", DEFAULT_CAPACITY),
+             Config.getLong("database.writeBehind.retryDelay", DEFAULT_RETRY_DELAY),
+             Config.getLong("database.writeBehind.maxRetryDelay", DEFAULT_MAX_RETRY_DELAY));
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create a queue and start its writer thread.
+     *
+     * @param  capacity  largest number of waiting timers.
+     *
+     * @param  retryDelay  milliseconds to wait after the first failure.
+     *
+     * @param  maxRetryDelay  longest wait between retries.
+     */
+    //-------------------------------------------------------------------------
+    public WriteBehindQueue(int capacity, long retryDelay, long maxRetryDelay) {
+        this.capacity = Math.max(1, capacity);
+        this.retryDelay = Math.max(1L, retryDelay);
+        this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+        writer = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, ME);
+        // close is what guarantees the last write, not this thread.
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Queue beans to be written. This never waits for the database.
+     *
+     * @param  beans  the beans. The queue keeps them, so the caller must not
+     * change them afterwards.
+     *
+     * @return
+     *   boolean - false if any bean was dropped because the queue was full or
+     * closed.
+     */
+    //-------------------------------------------------------------------------
+    public boolean submit(List<TaskTimeElement> beans) {
+        int lost = 0;
+        synchronized (lock) {
+            for (TaskTimeElement bean: beans) {
+                submitted++;
+                String key = key(bean);
+                if (closed) {
+                    lost++;
+                }
+                else if (pending.containsKey(key)) {
+                    // Keep the original position so old timers are not
+                    // starved by ones that are saved often.
+                    pending.put(key, bean);
+                    coalesced++;
+                }
+                else if (pending.size() >= capacity) {
+                    lost++;
+                }
+                else {
+                    pending.put(key, bean);
+                }
+            }
+            dropped += lost;
+            if (!pending.isEmpty())
+                lock.notifyAll();
+        }
+        if (lost > 0)
+            Trace.error("Write-behind queue full or closed, dropped " + lost + " of " + beans.size() + " beans");
+        return lost == 0;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Wait until everything submitted so far has been written.
+     *
+     * @param  timeout  most milliseconds to wait.
+     *
+     * @return
+     *   boolean - true if the queue emptied in time.
+     */
+    //-------------------------------------------------------------------------
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while (!pending.isEmpty() || writing) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                try {
+                    lock.wait(left);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop taking beans, write everything that is waiting, and stop the
+     * writer. Uses database.writeBehind.closeTimeout.
+     *
+     * @return
+     *   boolean - true if everything was written.
+     */
+    //-------------------------------------------------------------------------
+    public boolean close() {
+        return close(Config.getLong("database.writeBehind.closeTimeout", DEFAULT_CLOSE_TIMEOUT));
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop taking beans, write everything that is waiting, and stop the
+     * writer.
+     *
+     * @param  timeout  most milliseconds to keep trying.
+     *
+     * @return
+     *   boolean - true if everything was written.
+     */
+    //-------------------------------------------------------------------------
+    public boolean close(long timeout) {
+        synchronized (lock) {
+            if (!closed) {
+                closed = true;
+                closeDeadline = System.currentTimeMillis() + timeout;
+            }
+            lock.notifyAll();
+        }
+        try {
+            writer.join(timeout + 1000L);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (!pending.isEmpty() || writing) {
+                Trace.error("Write-behind queue closed without writing: " + pending.values());
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the number of timers waiting to be written.
+     *
+     * @return
+     *   int - the number of waiting beans.
+     */
+    //-------------------------------------------------------------------------
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * The writer thread. Takes everything that is waiting, saves it, and on
+     * failure puts it back and backs off.
+     */
+    //-------------------------------------------------------------------------
+    protected void writeLoop() {
+        long delay = retryDelay;
+        while (true) {
+            List<TaskTimeElement> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        // Only close stops the writer.
+                    }
+                }
+                if (pending.isEmpty())
+                    break;
+                batch = new ArrayList<TaskTimeElement>(pending.values());
+                pending = new LinkedHashMap<String,TaskTimeElement>();
+                writing = true;
+            }
+
+            boolean ok = false;
+            Trace.pmStart("WriteBehindQueue.write");
+            try {
+                ok = write(batch);
+            }
+            catch (RuntimeException e) {
+                Trace.error("Write-behind save failed", e);
+            }
+            finally {
+                Trace.pmStop("WriteBehindQueue.write");
+            }
+
+            synchronized (lock) {
+                writing = false;
+                if (ok) {
+                    written += batch.size();
+                    delay = retryDelay;
+                }
+                else {
+                    failures++;
+                    // Put the batch back in front of anything newer, without
+                    // overwriting newer values for the same timer.
+                    Map<String,TaskTimeElement> retry = new LinkedHashMap<String,TaskTimeElement>();
+                    for (TaskTimeElement bean: batch)
+                        retry.put(key(bean), bean);
+                    retry.putAll(pending);
+                    pending = retry;
+                }
+                lock.notifyAll();
+                if (!ok) {
+                    long wait = delay;
+                    if (closed)
+                        wait = Math.min(wait, closeDeadline - System.currentTimeMillis());
+                    if (wait <= 0) {
+                        Trace.error("Write-behind queue giving up on " + pending.size() + " beans");
+                        break;
+                    }
+                    Trace.info("Write-behind save failed, retrying in " + wait + " ms");
+                    try {
+                        lock.wait(wait);
+                    }
+                    catch (InterruptedException e) {
+                        // Retry now.
+                    }
+                    delay = Math.min(delay * 2, maxRetryDelay);
+                }
+            }
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Save a batch. Beans without an id get the id of the row already saved
+     * for the same user, day and task, if there is one, so that the batch
+     * updates rather than duplicates those rows. Disabled rows count, so a
+     * timer that was deleted and added again gets its old row back. If the
+     * ids can not be read, nothing is saved and the batch is retried later:
+     * inserting without them would duplicate the rows.
+     *
+     * @param  beans  the batch.
+     *
+     * @return
+     *   boolean - true if the save was successful.
+     */
+    //-------------------------------------------------------------------------
+    protected boolean write(List<TaskTimeElement> beans) {
+        Map<String,Map<String,Long>> byDay = new HashMap<String,Map<String,Long>>();
+        for (TaskTimeElement bean: beans) {
+            if (bean.getId() != 0)
+                continue;
+            String day = bean.getUserName() + "\t" + bean.getTaskDate();
+            Map<String,Long> saved = byDay.get(day);
+            if (saved == null) {
+                final Map<String,Long> ids = new HashMap<String,Long>();
+                long count = TaskTimeElementDB.findAllKeys(new TaskTimeElementHandler() {
+                        public boolean handle(TaskTimeElement row) {
+                            ids.put(row.getTaskName(), row.getId());
+                            return true;
+                        }
+                    }, bean.getUserName(), bean.getTaskDate());
+                if (count < 0)
+                    return false;
+                saved = ids;
+                byDay.put(day, saved);
+            }
+            Long id = saved.get(bean.getTaskName());
+            if (id != null)
+                bean.setId(id.longValue());
+        }
+        return TaskTimeElementDB.upsertAll(beans);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the key that identifies a bean's timer.
+     *
+     * @param  bean  the bean.
+     *
+     * @return
+     *   String - user name, task date and task name.
+     */
+    //-------------------------------------------------------------------------
+    protected static String key(TaskTimeElement bean) {
+        return bean.getUserName() + "\t" + bean.getTaskDate() + "\t" + bean.getTaskName();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for WriteBehindQueue.
+     *
+     * @return
+     *   String - the queue's counters.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        synchronized (lock) {
+            return "WriteBehindQueue[pending=" + pending.size() +
+                        ", writing=" + writing +
+                        ", submitted=" + submitted +
+                        ", coalesced=" + coalesced +
+                        ", dropped=" + dropped +
+                        ", written=" + written +
+                        ", failures=" + failures +
+                        ", closed=" + closed +
+                        "]";
+        }
+    }
+}
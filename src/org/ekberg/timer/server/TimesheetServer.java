@@ -0,0 +1,536 @@
+//  @(#) $Id:  $
+
+//  *********************************************************************
+//
+//    Copyright (c) 2008 Tom Ekberg.
+//    All Rights Reserved
+//
+//    The information contained herein is confidential to and the
+//    property of Tom Ekberg. and is not to be disclosed
+//    to any third party without prior express written permission
+//    of Tom Ekberg.  Tom Ekberg., as the
+//    author and owner under 17 U.S.C. Sec. 201(b) of this work made
+//    for hire, claims copyright in this material as an unpublished
+//    work under 17 U.S.C. Sec.s 102 and 104(a)
+//
+//  *******************************************************************
+
+
+package org.ekberg.timer.server;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.ekberg.timer.database.TaskTimeElement;
+import org.ekberg.timer.database.WriteBehindQueue;
+import org.ekberg.timer.utility.Config;
+import org.ekberg.timer.utility.Trace;
+
+
+/**
+ * Headless timesheet server. It keeps a UserTimers object for every user
+ * that has talked to it and offers the same start/pause/switch/save
+ * operations as the Timesheet GUI through a small HTTP/JSON API:
+ * <UL>
+ *   <LI> GET /users/NAME - the user's timers.
+ *   <LI> POST /users/NAME/start?timer=TIMER - start (or switch to) a timer.
+ *        The timer is added if it is new.
+ *   <LI> POST /users/NAME/pause - save, then stop the running timer.
+ *   <LI> POST /users/NAME/save - save the timers to the database, waiting
+ *        up to timesheet.server.saveTimeout milliseconds for the write.
+ * </UL>
+ * Every request answers with the user's timers:
+ * <PRE>
+ * {"user":"NAME","date":"2008-09-09","active":"Lunch",
+ *  "timers":[{"name":"Lunch","seconds":4500,"hours":1.25,"running":true}]}
+ * </PRE>
+ * If a user's saved hours can not be read the request answers 503, and
+ * the next request tries again.
+ * Requests run on virtual threads when the JVM has them and on a cached
+ * thread pool otherwise. Every timesheet.server.saveInterval milliseconds
+ * (three minutes by default, like Timesheet's MinutesChangedListener) all
+ * users are saved, and users whose day has changed are rolled over to the
+ * new day. Everything is saved again when the JVM exits.
+ *<P>
+ * All saves go through one WriteBehindQueue, so neither requests nor the
+ * periodic save wait for the database, except for an explicit save.
+ */
+public class TimesheetServer {
+    /** Property for the port to listen on. */
+    private static final String PORT_CONFIG = "timesheet.server.port";
+
+    /** Property for the number of milliseconds between saves. */
+    private static final String SAVE_INTERVAL_CONFIG = "timesheet.server.saveInterval";
+
+    /** Property for how long an explicit save waits for the database. */
+    private static final String SAVE_TIMEOUT_CONFIG = "timesheet.server.saveTimeout";
+
+    /** Default port. */
+    protected static final int DEFAULT_PORT = 8080;
+
+    /** Default number of milliseconds between saves. */
+    protected static final long DEFAULT_SAVE_INTERVAL = 3L * 60L * 1000L;
+
+    /** Default number of milliseconds an explicit save waits. */
+    protected static final long DEFAULT_SAVE_TIMEOUT = 10L * 1000L;
+
+    /** Path prefix for all requests. */
+    protected static final String USERS = "/users/";
+
+    /** Timers for each user, by login id. */
+    protected Map<String,UserTimers> users = new ConcurrentHashMap<String,UserTimers>();
+
+    /** The HTTP server. */
+    protected HttpServer server;
+
+    /** Runs the requests. */
+    protected ExecutorService requestExecutor;
+
+    /** Runs the periodic save. */
+    protected ScheduledExecutorService saver;
+
+    /** Writes the timers to the database. */
+    protected WriteBehindQueue writer;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create a server listening on a port. Call start to begin serving.
+     *
+     * @param  port  the port.
+     *
+     * @throws IOException  if the port can not be opened.
+     */
+    //-------------------------------------------------------------------------
+    public TimesheetServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(USERS, new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    TimesheetServer.this.handle(exchange);
+                }
+            });
+        requestExecutor = newRequestExecutor();
+        server.setExecutor(requestExecutor);
+        saver = Executors.newSingleThreadScheduledExecutor();
+        writer = new WriteBehindQueue();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Start serving requests and start the periodic save.
+     *
+     * @param  saveInterval  milliseconds between saves.
+     */
+    //-------------------------------------------------------------------------
+    public void start(long saveInterval) {
+        saver.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    saveAll();
+                }
+            }, saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+        server.start();
+        Trace.notice("TimesheetServer listening on " + server.getAddress());
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop serving, save every user and wait for the writes to finish.
+     */
+    //-------------------------------------------------------------------------
+    public void stop() {
+        server.stop(1);
+        saver.shutdown();
+        requestExecutor.shutdown();
+        saveAll();
+        writer.close();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get an executor that runs each request on its own virtual thread. The
+     * factory method is looked up by reflection so this class still runs on
+     * JVMs without virtual threads, where a cached thread pool is used.
+     *
+     * @return
+     *   ExecutorService - the executor.
+     */
+    //-------------------------------------------------------------------------
+    protected static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get today's date in the format used by the TASKDATE column.
+     *
+     * @return
+     *   String - today, formatted as yyyy-MM-dd.
+     */
+    //-------------------------------------------------------------------------
+    protected static String today() {
+        return LocalDate.now().toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get a user's timers, loading them from the database the first time.
+     *
+     * @param  userName  the user's login id.
+     *
+     * @return
+     *   UserTimers - the user's timers, rolled over to today if needed, or
+     * null if they could not be loaded. Nothing is kept then, so the next
+     * request tries again.
+     */
+    //-------------------------------------------------------------------------
+    protected UserTimers getUser(String userName) {
+        UserTimers timers = users.get(userName);
+        if (timers == null) {
+            // Load before publishing, so no request can start a timer whose
+            // saved hours are not in place yet. If two first requests race,
+            // both load and the second copy is dropped. Timers that failed
+            // to load are never published: saving them would write zeros
+            // over the saved hours.
+            UserTimers created = new UserTimers(userName, today());
+            if (!created.load())
+                return null;
+            timers = ((ConcurrentHashMap<String,UserTimers>)users).putIfAbsent(userName, created);
+            if (timers == null)
+                timers = created;
+        }
+        rollOver(timers);
+        return timers;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * If a user's timers are for an earlier day, save them for that day and
+     * start the new day at zero. This is what Timesheet's NewDayListener
+     * does.
+     *
+     * @param  timers  the user's timers.
+     */
+    //-------------------------------------------------------------------------
+    protected void rollOver(UserTimers timers) {
+        String today = today();
+        List<TaskTimeElement> beans = null;
+        synchronized (timers) {
+            if (!today.equals(timers.getTaskDate())) {
+                beans = timers.snapshot();
+                timers.newDay(today);
+            }
+        }
+        if (beans != null)
+            writer.submit(beans);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Queue every user's timers to be saved.
+     */
+    //-------------------------------------------------------------------------
+    protected void saveAll() {
+        for (UserTimers timers: users.values()) {
+            try {
+                rollOver(timers);
+                timers.save(writer);
+            }
+            catch (Exception e) {
+                Trace.error("Unable to save " + timers.getUserName(), e);
+            }
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Handle one request. See the class comment for the API.
+     *
+     * @param  exchange  the request and response.
+     *
+     * @throws IOException
+     */
+    //-------------------------------------------------------------------------
+    protected void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath().substring(USERS.length());
+            int slash = path.indexOf('/');
+            String userName = decode(slash < 0 ? path : path.substring(0, slash));
+            String action = slash < 0 ? "" : path.substring(slash + 1);
+
+            if (userName.length() == 0) {
+                respond(exchange, 404, error("No user"));
+                return;
+            }
+            if (action.length() == 0) {
+                if (!method.equals("GET")) {
+                    respond(exchange, 405, error("Use GET"));
+                    return;
+                }
+            }
+            else if (!method.equals("POST")) {
+                respond(exchange, 405, error("Use POST"));
+                return;
+            }
+
+            UserTimers timers = getUser(userName);
+            if (timers == null) {
+                respond(exchange, 503, error("Unable to load the timers, try again later"));
+                return;
+            }
+            if (action.equals("start")) {
+                String timer = getParameter(exchange, "timer");
+                if (timer == null || timer.length() == 0) {
+                    respond(exchange, 400, error("Missing timer parameter"));
+                    return;
+                }
+                timers.start(timer);
+            }
+            else if (action.equals("pause")) {
+                // The GUI saves before it stops the timer.
+                timers.save(writer);
+                timers.pause();
+            }
+            else if (action.equals("save")) {
+                if (!timers.save(writer) ||
+                            !writer.flush(Config.getLong(SAVE_TIMEOUT_CONFIG, DEFAULT_SAVE_TIMEOUT))) {
+                    respond(exchange, 500, error("Save failed"));
+                    return;
+                }
+            }
+            else if (action.length() > 0) {
+                respond(exchange, 404, error("Unknown action " + action));
+                return;
+            }
+            respond(exchange, 200, toJson(timers));
+        }
+        catch (Exception e) {
+            Trace.error("Request failed: " + exchange.getRequestURI(), e);
+            respond(exchange, 500, error("Internal error"));
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get a parameter from the request's query string.
+     *
+     * @param  exchange  the request.
+     *
+     * @param  name  the parameter name.
+     *
+     * @return
+     *   String - the decoded value, or null if it is not there.
+     */
+    //-------------------------------------------------------------------------
+    protected static String getParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return null;
+        for (String pair: query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && decode(pair.substring(0, equals)).equals(name))
+                return decode(pair.substring(equals + 1));
+        }
+        return null;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Decode a URL-encoded string.
+     *
+     * @param  value  the encoded string.
+     *
+     * @return
+     *   String - the decoded string.
+     */
+    //-------------------------------------------------------------------------
+    protected static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Send a JSON response.
+     *
+     * @param  exchange  the request and response.
+     *
+     * @param  status  the HTTP status code.
+     *
+     * @param  json  the response body.
+     *
+     * @throws IOException
+     */
+    //-------------------------------------------------------------------------
+    protected static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format a user's timers as JSON.
+     *
+     * @param  timers  the user's timers.
+     *
+     * @return
+     *   String - the JSON object.
+     */
+    //-------------------------------------------------------------------------
+    protected static String toJson(UserTimers timers) {
+        String active;
+        String taskDate;
+        Map<String,Long> seconds;
+        synchronized (timers) {
+            active = timers.getActive();
+            taskDate = timers.getTaskDate();
+            seconds = timers.getSeconds();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"user\":");
+        quote(sb, timers.getUserName());
+        sb.append(",\"date\":");
+        quote(sb, taskDate);
+        sb.append(",\"active\":");
+        if (active == null)
+            sb.append("null");
+        else
+            quote(sb, active);
+        sb.append(",\"timers\":[");
+        boolean first = true;
+        for (Map.Entry<String,Long> entry: seconds.entrySet()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append("{\"name\":");
+            quote(sb, entry.getKey());
+            sb.append(",\"seconds\":").append(entry.getValue());
+            sb.append(",\"hours\":").append(entry.getValue() / 3600.0D);
+            sb.append(",\"running\":").append(entry.getKey().equals(active));
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format an error as JSON.
+     *
+     * @param  message  what went wrong.
+     *
+     * @return
+     *   String - the JSON object.
+     */
+    //-------------------------------------------------------------------------
+    protected static String error(String message) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"error\":");
+        quote(sb, message);
+        sb.append('}');
+        return sb.toString();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Append a string as a JSON string literal.
+     *
+     * @param  sb  where to append.
+     *
+     * @param  value  the string.
+     */
+    //-------------------------------------------------------------------------
+    protected static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < ' ')
+                    sb.append(String.format("\\u%04x", (int)c));
+                else
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Main program. Run this to start the server.
+     *
+     * @param  args  optional port, overriding timesheet.server.port.
+     */
+    //-------------------------------------------------------------------------
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0
+                    ? Integer.parseInt(args[0])
+                    : Config.getInt(PORT_CONFIG, DEFAULT_PORT);
+        final TimesheetServer server = new TimesheetServer(port);
+        Runtime.getRuntime().addShutdownHook(new Thread("TimesheetServer shutdown") {
+                public void run() {
+                    server.stop();
+                }
+            });
+        server.start(Config.getLong(SAVE_INTERVAL_CONFIG, DEFAULT_SAVE_INTERVAL));
+    }
+}
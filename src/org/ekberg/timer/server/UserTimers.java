@@ -0,0 +1,290 @@
+//  @(#) $Id:  $
+
+//  *********************************************************************
+//
+//    Copyright (c) 2008 Tom Ekberg.
+//    All Rights Reserved
+//
+//    The information contained herein is confidential to and the
+//    property of Tom Ekberg. and is not to be disclosed
+//    to any third party without prior express written permission
+//    of Tom Ekberg.  Tom Ekberg., as the
+//    author and owner under 17 U.S.C. Sec. 201(b) of this work made
+//    for hire, claims copyright in this material as an unpublished
+//    work under 17 U.S.C. Sec.s 102 and 104(a)
+//
+//  *******************************************************************
+
+
+package org.ekberg.timer.server;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.ekberg.timer.TaskClock;
+import org.ekberg.timer.database.TaskTimeElement;
+import org.ekberg.timer.database.TaskTimeElementDB;
+import org.ekberg.timer.database.TaskTimeElementHandler;
+import org.ekberg.timer.database.WriteBehindQueue;
+
+
+/**
+ * The timers of one user for one day. This is the headless equivalent of the
+ * buttons in Timesheet: at most one timer runs at a time, starting a timer
+ * stops the one that was running, and save writes every timer's hours for
+ * the day to the database.
+ *<P>
+ * All methods except load are synchronized on this object. The database is
+ * only read by load, which must be called before the object is shared. save
+ * hands a snapshot to a WriteBehindQueue, which does the writing.
+ */
+public class UserTimers {
+    /** The user's login id. */
+    protected final String userName;
+
+    /** The day these timers are for, formatted as yyyy-MM-dd. */
+    protected String taskDate;
+
+    /** The clocks, by timer name, in the order the timers were added. */
+    protected Map<String,TaskClock> clocks = new LinkedHashMap<String,TaskClock>();
+
+    /** Name of the running timer, or null if none is running. */
+    protected String active;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create an empty set of timers.
+     *
+     * @param  userName  the user's login id.
+     *
+     * @param  taskDate  the day, formatted as yyyy-MM-dd.
+     */
+    //-------------------------------------------------------------------------
+    public UserTimers(String userName, String taskDate) {
+        this.userName = userName;
+        this.taskDate = taskDate;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Load the saved hours for taskDate from the database, the same way
+     * Timesheet.loadData does. Call this before other threads can see the
+     * object, since setting the saved hours would overwrite a timer that was
+     * already started. The query runs without holding the lock, so a
+     * virtual thread is not pinned while it waits for the database.
+     *
+     * @return
+     *   boolean - true if the hours were loaded, false if the query failed.
+     * The timers must not be used then: saving them would write zeros over
+     * the hours in the database.
+     */
+    //-------------------------------------------------------------------------
+    public boolean load() {
+        final List<TaskTimeElement> beans = new ArrayList<TaskTimeElement>();
+        long count = TaskTimeElementDB.findAllByTaskDate(new TaskTimeElementHandler() {
+                public boolean handle(TaskTimeElement row) {
+                    beans.add(row);
+                    return true;
+                }
+            }, getTaskDate(), userName);
+        if (count < 0)
+            return false;
+        synchronized (this) {
+            for (TaskTimeElement bean: beans) {
+                clock(bean.getTaskName()).setHours(bean.getDuration());
+            }
+        }
+        return true;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the clock for a timer, adding the timer if it is new.
+     *
+     * @param  name  the timer name.
+     *
+     * @return
+     *   TaskClock - the timer's clock.
+     */
+    //-------------------------------------------------------------------------
+    protected synchronized TaskClock clock(String name) {
+        TaskClock clock = clocks.get(name);
+        if (clock == null) {
+            clock = new TaskClock();
+            clocks.put(name, clock);
+        }
+        return clock;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Start a timer. The timer that was running, if any, is stopped. This is
+     * both "start" and "switch" in the GUI.
+     *
+     * @param  name  the timer to start. It is added if it is new.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void start(String name) {
+        if (active != null && !active.equals(name))
+            clocks.get(active).stop();
+        clock(name).start();
+        active = name;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop the running timer, if any.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void pause() {
+        if (active != null) {
+            clocks.get(active).stop();
+            active = null;
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the name of the running timer.
+     *
+     * @return
+     *   String - the running timer, or null if none is running.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized String getActive() {
+        return active;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the day these timers are for.
+     *
+     * @return
+     *   String - the day, formatted as yyyy-MM-dd.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized String getTaskDate() {
+        return taskDate;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the user these timers belong to.
+     *
+     * @return
+     *   String - the user's login id.
+     */
+    //-------------------------------------------------------------------------
+    public String getUserName() {
+        return userName;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get a copy of the timers' elapsed seconds.
+     *
+     * @return
+     *   Map<String,Long> - elapsed seconds by timer name, in the order the
+     * timers were added.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized Map<String,Long> getSeconds() {
+        Map<String,Long> ret = new LinkedHashMap<String,Long>();
+        for (Map.Entry<String,TaskClock> entry: clocks.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue().getElapsedSeconds());
+        }
+        return ret;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Build the beans that save would write: one per timer, for taskDate.
+     * If no timer has any time, the list is empty, just as Timesheet only
+     * writes when it has data.
+     *
+     * @return
+     *   List<TaskTimeElement> - the beans. Their ids are 0.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized List<TaskTimeElement> snapshot() {
+        List<TaskTimeElement> beans = new ArrayList<TaskTimeElement>(clocks.size());
+        boolean haveData = false;
+        for (Map.Entry<String,TaskClock> entry: clocks.entrySet()) {
+            TaskTimeElement bean = new TaskTimeElement();
+            bean.setDuration(entry.getValue().getHours());
+            bean.setTaskDate(taskDate);
+            bean.setTaskName(entry.getKey());
+            bean.setUserName(userName);
+            bean.setEnabled(true);
+            beans.add(bean);
+            haveData |= entry.getValue().getElapsedSeconds() > 0;
+        }
+        if (!haveData)
+            beans.clear();
+        return beans;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Queue the timers' hours for taskDate to be saved. This does not wait
+     * for the database.
+     *
+     * @param  writer  the queue that does the saving.
+     *
+     * @return
+     *   boolean - false if the queue could not take the beans.
+     */
+    //-------------------------------------------------------------------------
+    public boolean save(WriteBehindQueue writer) {
+        return writer.submit(snapshot());
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Move to a new day, like Timesheet's NewDayListener. The running timer
+     * is stopped, and every timer is set back to zero. The caller should
+     * queue the old day's snapshot first, see rollOver in
+     * TimesheetServer.
+     *
+     * @param  newDate  the new day, formatted as yyyy-MM-dd.
+     */
+    //-------------------------------------------------------------------------
+    public synchronized void newDay(String newDate) {
+        pause();
+        for (TaskClock clock: clocks.values()) {
+            clock.reset();
+        }
+        taskDate = newDate;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for UserTimers. Mostly used for debugging.
+     *
+     * @return
+     *   String - nicely formatted UserTimers object.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "UserTimers[userName=" + userName +
+                    ", taskDate=" + getTaskDate() +
+                    ", active=" + getActive() +
+                    ", seconds=" + getSeconds() +
+                    "]";
+    }
+}
@@ -4,14 +4,23 @@
 package org.ekberg.timer.utility;
 
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
 
 
 // ----------------------------------------------------------------------------
@@ -20,8 +29,20 @@ import java.util.Hashtable;
  * written to the file name specified via the constructor. Old log data is
  * located in a file with the same base name, but the base name is prepended
  * with a YYYY-MM-DD timestamp.
- * To prevent rename problems, when a log message is to be written, the log
- * file is opened, the message is written and the log file is closed.
+ * <P>
+ * The log file is kept open. Messages are encoded into a buffer that is
+ * written out (a group commit) when it holds archiveLog.flushSize bytes,
+ * every archiveLog.flushInterval milliseconds, and when flush is called.
+ * archiveLog.fsync says when the data is also forced to the disk: "none"
+ * (leave it to the operating system), "flush" (every group commit) or
+ * "rollover" (only before the file is renamed or closed). To prevent rename
+ * problems, the file is closed before it is renamed and reopened afterwards.
+ * <P>
+ * Besides the day rollover, the file is renamed once it holds
+ * archiveLog.maxSize bytes (0 for no limit). A second or later old file for
+ * the same day is named YYYY-MM-DD.N-base; an existing old file is never
+ * overwritten. After each rename ArchiveLogCleaner compresses and deletes
+ * old files in the background, see that class for the properties.
  * <P>
  * To get an ArchiveLog object call the getInstance method. When a message is
  * to be written to the log file, construct the string and call the
@@ -63,6 +84,58 @@ public class ArchiveLog {
     /** Current day of month. */
     private int dayOfMonth;
 
+    /** System.currentTimeMillis() at the start of the next day. Checking
+     * this is all outputString does until then. */
+    private long nextDayMillis;
+
+    /** The open log file, or null if it is not open. */
+    private FileChannel channel;
+
+    /** Messages waiting to be written. */
+    private ByteBuffer buffer;
+
+    /** Turns messages into bytes in buffer. */
+    private CharsetEncoder encoder;
+
+    /** Write when buffer holds this many bytes. */
+    private int flushSize;
+
+    /** Rename the file when it holds this many bytes. 0 for no limit. */
+    private long maxSize;
+
+    /** Bytes in the file while channel is open. */
+    private long fileSize;
+
+    /** True if the file ends part way through a message. */
+    private boolean midMessage;
+
+    /** Compresses and deletes the old files. */
+    private ArchiveLogCleaner cleaner;
+
+    /** When to force the data to the disk, one of the FSYNC_ values. */
+    private String fsync;
+
+    /** archiveLog.fsync value: never force. */
+    public static final String FSYNC_NONE = "none";
+
+    /** archiveLog.fsync value: force after every write. */
+    public static final String FSYNC_FLUSH = "flush";
+
+    /** archiveLog.fsync value: force before renaming or closing. */
+    public static final String FSYNC_ROLLOVER = "rollover";
+
+    /** Default size of buffer. */
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Default milliseconds between timed flushes. */
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    /** Flushes every ArchiveLog periodically. Created with the first one. */
+    private static Timer flusher = null;
+
+    /** The newline at the end of every message. */
+    private static final byte NEWLINE = (byte)'\n';
+
 
     // ---------------------------------------------------------------------
     /**
@@ -97,6 +170,16 @@ public class ArchiveLog {
 
         setTimestamp();         // Note when "today" is.
 
+        int bufferSize = Config.getInt("archiveLog.bufferSize", DEFAULT_BUFFER_SIZE);
+        buffer = ByteBuffer.allocateDirect(Math.max(1024, bufferSize));
+        flushSize = Math.min(buffer.capacity(),
+                    Config.getInt("archiveLog.flushSize", buffer.capacity()));
+        fsync = Config.getString("archiveLog.fsync", FSYNC_NONE);
+        maxSize = Config.getLong("archiveLog.maxSize", 0L);
+        encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
         currentFileName    = System.getProperty(Config.APP_HOME, "") + File.separator + this.dirName + File.separator + this.baseName;
         File dirNameFile = new File(System.getProperty(Config.APP_HOME, "") + File.separator + this.dirName);
         File currentFile = new File(currentFileName);
@@ -111,10 +194,7 @@ public class ArchiveLog {
                         (new SimpleDateFormat("yyyy-MM-dd")).format(
                                     new Date(currentFile.lastModified()));
             if (!existingTimestamp.equals(buildTimestamp())) {
-                String timestampFileName =
-                            System.getProperty(Config.APP_HOME, "") + File.separator +
-                            (dirName.length() > 0 ? dirName + File.separator : "") +
-                            existingTimestamp + "-" + baseName;
+                String timestampFileName = buildArchiveFileName(existingTimestamp);
                 if (!((new File(currentFileName)).renameTo(new File(timestampFileName)))) {
                     System.err.println("Unable to rename archive log file from " +
                             currentFileName + " to " + timestampFileName);
@@ -129,6 +209,55 @@ public class ArchiveLog {
         }
 
         archiveLogs.put(dirName + File.separator + baseName, this);
+        startFlusher();
+
+        // Catch up on anything left from the last run.
+        cleaner = new ArchiveLogCleaner(dirNameFile, baseName);
+        cleaner.sweepLater();
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Start the timer that flushes every ArchiveLog, and the shutdown hook
+     * that flushes and closes them, if that has not been done yet.
+     **/
+    // ---------------------------------------------------------------------
+    private static synchronized void startFlusher() {
+        if (flusher != null)
+            return;
+        long interval = Config.getLong("archiveLog.flushInterval", DEFAULT_FLUSH_INTERVAL);
+        flusher = new Timer("ArchiveLog flusher", true);
+        if (interval > 0) {
+            flusher.schedule(new TimerTask() {
+                    public void run() {
+                        flushAll(false);
+                    }
+                }, interval, interval);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("ArchiveLog close") {
+                public void run() {
+                    flushAll(true);
+                }
+            });
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Flush every ArchiveLog.
+     *
+     * @param  close  if true, also close them.
+     **/
+    // ---------------------------------------------------------------------
+    private static void flushAll(boolean close) {
+        ArchiveLog[] logs = archiveLogs.values().toArray(new ArchiveLog[0]);
+        for (ArchiveLog log: logs) {
+            if (close)
+                log.close();
+            else
+                log.flush();
+        }
     }
 
 
@@ -163,17 +292,46 @@ public class ArchiveLog {
      * @param  message  the log message to be written.
      **/
     // ---------------------------------------------------------------------
-    public synchronized void outputString(String message) {
+    public void outputString(String message) {
+        outputChars(CharBuffer.wrap(message));
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Write a message to the log file, like outputString, from a buffer.
+     *
+     * @param  chars  the message, from its position to its limit. The
+     * position is moved to the limit; the buffer is not kept.
+     **/
+    // ---------------------------------------------------------------------
+    public synchronized void outputChars(CharBuffer chars) {
+        boolean ended = false;
         try {
-            updateTimestamp();
-            BufferedWriter bufferedWriter = new BufferedWriter(
-                        new FileWriter(currentFileName, true)); // append
-            bufferedWriter.write(message + "\n");
-            bufferedWriter.close();
-            bufferedWriter = null;
+            if (System.currentTimeMillis() >= nextDayMillis)
+                updateTimestamp();
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (!result.isOverflow())
+                    break;
+                // Longer than the space left. Write what we have and go on.
+                write();
+            }
+            if (!buffer.hasRemaining())
+                write();
+            buffer.put(NEWLINE);
+            ended = true;
+            if (buffer.position() >= flushSize)
+                write();
         }
         catch (Exception e) {
-            System.err.println(message);
+            closeChannel();
+            // Whatever was not written goes to System.err: the buffered
+            // lines, then the part of this message not yet in the buffer.
+            echoBuffered();
+            if (!ended)
+                System.err.println(chars);
             if (firstTimeOutputError) {
                 System.err.println("ArchiveLog.outputString: detected an " +
                             "Exception for archive log file " +
@@ -185,6 +343,151 @@ public class ArchiveLog {
     }
 
 
+    // ---------------------------------------------------------------------
+    /**
+     * Write out any buffered messages.
+     **/
+    // ---------------------------------------------------------------------
+    public synchronized void flush() {
+        if (buffer.position() == 0)
+            return;
+        try {
+            write();
+        }
+        catch (IOException e) {
+            closeChannel();
+            echoBuffered();
+            if (firstTimeOutputError) {
+                System.err.println("ArchiveLog.flush: detected an " +
+                            "Exception for archive log file " +
+                            currentFileName);
+                e.printStackTrace();
+                firstTimeOutputError = false;
+            }
+        }
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Write out any buffered messages and close the file. It is opened
+     * again by the next outputString.
+     **/
+    // ---------------------------------------------------------------------
+    public synchronized void close() {
+        flush();
+        closeChannel();
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Write the buffer to the file, opening it if needed. If that would
+     * take the file past maxSize, the file is renamed and a new one is
+     * started. No message is split across files: if the file ends part way
+     * through one, the rest of it is written first. If the write fails the
+     * buffer is left holding just the bytes that were not written.
+     *
+     * @throws IOException  if the file can not be written.
+     **/
+    // ---------------------------------------------------------------------
+    private void write() throws IOException {
+        int end = buffer.position();
+        if (channel != null && maxSize > 0 && fileSize > 0 && fileSize + end > maxSize) {
+            int split = 0;
+            if (midMessage) {
+                split = -1;
+                for (int i = 0; i < end; i++) {
+                    if (buffer.get(i) == NEWLINE) {
+                        split = i + 1;
+                        break;
+                    }
+                }
+            }
+            // split < 0: the message continues past the buffer. Try again
+            // next time.
+            if (split >= 0) {
+                buffer.flip();
+                buffer.limit(split);
+                try {
+                    while (buffer.hasRemaining())
+                        fileSize += channel.write(buffer);
+                }
+                catch (IOException e) {
+                    buffer.limit(end);
+                    buffer.compact();
+                    throw e;
+                }
+                buffer.limit(end);
+                buffer.compact();
+                midMessage = false;
+                closeChannel();
+                renameCurrentToTimestamp();
+                if (buffer.position() == 0)
+                    return;
+            }
+        }
+        if (channel == null) {
+            channel = FileChannel.open(new File(currentFileName).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        }
+        midMessage = buffer.get(buffer.position() - 1) != NEWLINE;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                fileSize += channel.write(buffer);
+        }
+        catch (IOException e) {
+            // Keep only what was not written, ready to add to.
+            buffer.compact();
+            throw e;
+        }
+        buffer.clear();
+        if (FSYNC_FLUSH.equalsIgnoreCase(fsync))
+            channel.force(false);
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Print the buffered bytes that were not written to System.err, so a
+     * failed write does not lose them, and empty the buffer.
+     **/
+    // ---------------------------------------------------------------------
+    private void echoBuffered() {
+        if (buffer.position() > 0) {
+            ByteBuffer unwritten = buffer.duplicate();
+            unwritten.flip();
+            System.err.print(StandardCharsets.UTF_8.decode(unwritten));
+            System.err.flush();
+        }
+        buffer.clear();
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Close the file, forcing it to the disk first if archiveLog.fsync is
+     * rollover. Buffered messages are not written.
+     **/
+    // ---------------------------------------------------------------------
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            if (FSYNC_ROLLOVER.equalsIgnoreCase(fsync))
+                channel.force(false);
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Unable to close archive log file " + currentFileName);
+        }
+        channel = null;
+    }
+
+
     //-------------------------------------------------------------------------
     /**
      * Generate a pretty print string for an ArchiveLog object.
@@ -211,7 +514,7 @@ public class ArchiveLog {
      * Update the timestamp if needed. Handle the transition to a new day.
      **/
     // ---------------------------------------------------------------------
-    private void updateTimestamp() {
+    private void updateTimestamp() throws IOException {
         Calendar now = Calendar.getInstance();
         int aYear       = now.get(Calendar.YEAR);
         int aMonth      = now.get(Calendar.MONTH);
@@ -221,8 +524,16 @@ public class ArchiveLog {
                     (aDayOfMonth != this.dayOfMonth) ||
                     (aMonth      != this.month)      ||
                     (aYear       != this.year)) {
+            // What is buffered belongs to the old day.
+            if (buffer.position() > 0)
+                write();
+            closeChannel();
             renameCurrentToTimestamp();
-            setTimestamp(year, month, dayOfMonth);
+            setTimestamp(aYear, aMonth, aDayOfMonth);
+        }
+        else {
+            // The clock moved back, or setTimestamp was not called.
+            setTimestamp(aYear, aMonth, aDayOfMonth);
         }
     }
 
@@ -255,6 +566,12 @@ public class ArchiveLog {
         this.year       = year;
         this.month      = month;
         this.dayOfMonth = dayOfMonth;
+
+        Calendar next = Calendar.getInstance();
+        next.clear();
+        next.set(year, month, dayOfMonth);
+        next.add(Calendar.DAY_OF_MONTH, 1);
+        nextDayMillis = next.getTimeInMillis();
     }
 
 
@@ -283,24 +600,54 @@ public class ArchiveLog {
     // ---------------------------------------------------------------------
     /**
      * Rename the current log file to a file with the same name and a
-     * timestamp.
+     * timestamp, and have the cleaner deal with the old files.
      **/
     // ---------------------------------------------------------------------
     private void renameCurrentToTimestamp() {
-        String timestampFileName =
-                    System.getProperty(Config.APP_HOME, "") + File.separator +
-                    (dirName.length() > 0 ? dirName + File.separator : "") +
-                    buildTimestamp() + "-" + baseName;
-
-        if (!((new File(currentFileName)).renameTo(new File(timestampFileName)))) {
-            // If we had an error trying to rename the file, check to see if it
-            // already exists. If it does, then we can wait another day and
-            // rename it then.
-            if (!((new File(timestampFileName)).exists())) {
-                System.err.println("Unable to rename archive log file from " +
-                            currentFileName + " to " + timestampFileName);
-            }
+        File currentFile = new File(currentFileName);
+        if (!currentFile.exists())
+            return;             // Nothing was written since the last rename.
+
+        String timestampFileName = buildArchiveFileName(buildTimestamp());
+        if (!(currentFile.renameTo(new File(timestampFileName)))) {
+            System.err.println("Unable to rename archive log file from " +
+                        currentFileName + " to " + timestampFileName);
+        }
+        cleaner.sweepLater();
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Build the name of a new old log file: YYYY-MM-DD-base for the first
+     * one of the day, then YYYY-MM-DD.N-base with N one more than the
+     * highest N so far, compressed or not.
+     *
+     * @param  timestamp  the YYYY-MM-DD timestamp.
+     *
+     * @return
+     *   String - the file name.
+     **/
+    // ---------------------------------------------------------------------
+    private String buildArchiveFileName(String timestamp) {
+        String dir = System.getProperty(Config.APP_HOME, "") + File.separator +
+                    (dirName.length() > 0 ? dirName + File.separator : "");
+        String name = timestamp + "-" + baseName;
+        String[] names = new File(dir).list();
+        if (names == null)
+            return dir + name;
+        int highest = 0;
+        boolean first = true;
+        for (String existing: names) {
+            if (existing.equals(name) || existing.equals(name + ArchiveLogCleaner.GZ))
+                first = false;
+            int n = ArchiveLogCleaner.getSequence(existing, timestamp, baseName);
+            if (n > highest)
+                highest = n;
         }
+        if (first && highest == 0)
+            return dir + name;
+        return dir + timestamp + "." + (highest + 1) + "-" + baseName;
     }
 
 
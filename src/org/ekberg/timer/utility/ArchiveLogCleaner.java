@@ -0,0 +1,291 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * Compresses and deletes the old files of an ArchiveLog. The work is done on
+ * one background thread shared by every ArchiveLog, so the thread writing
+ * the log never waits for it.
+ *<P>
+ * The old files of a log named base are the files in the same directory
+ * named YYYY-MM-DD-base or YYYY-MM-DD.N-base, optionally followed by .gz.
+ * A sweep first gzips the ones that are not compressed yet and then deletes
+ * the oldest ones, by modification time, until the rest are within all of
+ * these limits (0 means no limit):
+ * <UL>
+ *   <LI> archiveLog.maxFiles - number of old files.
+ *   <LI> archiveLog.maxAge - age in days.
+ *   <LI> archiveLog.maxTotalSize - total size in bytes.
+ * </UL>
+ * As in ArchiveLog, errors are written to System.err, not Trace.
+ **/
+// ----------------------------------------------------------------------------
+class ArchiveLogCleaner {
+    /** Suffix of compressed files. */
+    static final String GZ = ".gz";
+
+    /** Milliseconds in a day. */
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+    /** Runs the sweeps. Created by the first sweep. */
+    private static ExecutorService executor = null;
+
+    /** The log directory. */
+    private final File dir;
+
+    /** Matches the names of the old files. */
+    private final Pattern archivePattern;
+
+    /** True to gzip old files. */
+    private final boolean compress;
+
+    /** Most old files to keep. */
+    private final int maxFiles;
+
+    /** Oldest old file to keep, in days. */
+    private final int maxAge;
+
+    /** Most bytes of old files to keep. */
+    private final long maxTotalSize;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a cleaner for one log, using the archiveLog.* properties.
+     *
+     * @param  dir  the log directory.
+     * @param  baseName  base name (no timestamp) of the log file name.
+     **/
+    // ------------------------------------------------------------------------
+    ArchiveLogCleaner(File dir, String baseName) {
+        this.dir = dir;
+        archivePattern = Pattern.compile("\\d{4}-\\d{2}-\\d{2}(\\.\\d+)?-" +
+                    Pattern.quote(baseName) + "(" + Pattern.quote(GZ) + ")?");
+        compress = Config.getBoolean("archiveLog.compress", false);
+        maxFiles = Config.getInt("archiveLog.maxFiles", 0);
+        maxAge = Config.getInt("archiveLog.maxAge", 0);
+        maxTotalSize = Config.getLong("archiveLog.maxTotalSize", 0L);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Determine whether a sweep has anything to do.
+     *
+     * @return
+     *   boolean - false if compression and every limit are turned off.
+     **/
+    // ------------------------------------------------------------------------
+    boolean isEnabled() {
+        return compress || maxFiles > 0 || maxAge > 0 || maxTotalSize > 0;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sweep the old files on the background thread.
+     **/
+    // ------------------------------------------------------------------------
+    void sweepLater() {
+        if (!isEnabled())
+            return;
+        getExecutor().execute(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            });
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the background thread, starting it if needed.
+     *
+     * @return
+     *   ExecutorService - the single thread executor.
+     **/
+    // ------------------------------------------------------------------------
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ArchiveLog cleaner");
+                        // A compression cut short is redone by the next sweep.
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compress the old files, then delete the ones beyond the limits.
+     **/
+    // ------------------------------------------------------------------------
+    void sweep() {
+        if (compress) {
+            for (File file: listArchives()) {
+                if (!file.getName().endsWith(GZ))
+                    gzip(file);
+            }
+        }
+
+        List<File> archives = listArchives();
+        // Newest first.
+        archives.sort(new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+        long oldest = System.currentTimeMillis() - maxAge * DAY_MILLIS;
+        long total = 0;
+        for (int i = 0; i < archives.size(); i++) {
+            File file = archives.get(i);
+            total += file.length();
+            if ((maxFiles > 0 && i >= maxFiles) ||
+                        (maxAge > 0 && file.lastModified() < oldest) ||
+                        (maxTotalSize > 0 && total > maxTotalSize)) {
+                if (!file.delete())
+                    System.err.println("Unable to delete old archive log file " + file);
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the old files of the log.
+     *
+     * @return
+     *   List<File> - the files, in no particular order.
+     **/
+    // ------------------------------------------------------------------------
+    private List<File> listArchives() {
+        List<File> archives = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.isFile() && archivePattern.matcher(file.getName()).matches())
+                    archives.add(file);
+            }
+        }
+        return archives;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get N from the name of an old file named YYYY-MM-DD.N-base, with or
+     * without .gz.
+     *
+     * @param  name  the file name, without a directory.
+     * @param  timestamp  the YYYY-MM-DD timestamp.
+     * @param  baseName  base name (no timestamp) of the log file name.
+     *
+     * @return
+     *   int - N, or 0 if the name is not of that form.
+     **/
+    // ------------------------------------------------------------------------
+    static int getSequence(String name, String timestamp, String baseName) {
+        if (name.endsWith(GZ))
+            name = name.substring(0, name.length() - GZ.length());
+        String suffix = "-" + baseName;
+        if (!name.startsWith(timestamp + ".") || !name.endsWith(suffix))
+            return 0;
+        try {
+            return Integer.parseInt(name.substring(timestamp.length() + 1,
+                        name.length() - suffix.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace a file with a gzipped copy. The copy is written under a
+     * temporary name and renamed when complete, so a partial copy is never
+     * mistaken for an old file.
+     *
+     * @param  file  the file to compress.
+     **/
+    // ------------------------------------------------------------------------
+    private void gzip(File file) {
+        File target = new File(file.getPath() + GZ);
+        File temporary = new File(target.getPath() + ".tmp");
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(temporary), 64 * 1024);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int count;
+                    while ((count = in.read(buffer)) > 0)
+                        out.write(buffer, 0, count);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            finally {
+                in.close();
+            }
+            temporary.setLastModified(file.lastModified());
+            if (!temporary.renameTo(target)) {
+                System.err.println("Unable to rename " + temporary + " to " + target);
+                temporary.delete();
+                return;
+            }
+            target.setLastModified(file.lastModified());
+            if (!file.delete())
+                System.err.println("Unable to delete compressed archive log file " + file);
+        }
+        catch (IOException e) {
+            System.err.println("Unable to compress archive log file " + file + ": " + e);
+            temporary.delete();
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for ArchiveLogCleaner.
+     *
+     * @return
+     *   String - nicely formatted for debugging.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "ArchiveLogCleaner[" +
+                    "dir=" + dir +
+                    ", compress=" + compress +
+                    ", maxFiles=" + maxFiles +
+                    ", maxAge=" + maxAge +
+                    ", maxTotalSize=" + maxTotalSize +
+                    "]";
+    }
+}
@@ -18,16 +18,36 @@ package org.ekberg.timer.utility;
 
 
 import java.io.FileInputStream;
-import java.util.Collection;
-import java.util.Enumeration;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.MissingResourceException;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**************************************************************************
  * System configuration class - front end to get data from a common
  * properties file.
+ *<P>
+ * The values are kept in an immutable snapshot: the properties file, then
+ * the values given to setProperty, then the System properties, each
+ * overriding the one before. A lookup is a read of a volatile reference
+ * and a HashMap get, with no locking. The typed getters parse a value the
+ * first time it is asked for and keep the result in the snapshot.
+ *<P>
+ * When config.watch is true, the properties file is watched. When it
+ * changes, a new snapshot replaces the old one in one step, and each
+ * ConfigListener is called. Values read once at startup keep their old
+ * value; values read each time they are used change at once.
  *************************************************************************/
 public class Config 
 {
@@ -35,11 +55,71 @@ public class Config
 
     private static final String APP_PROPERTY_FILENAME = "timesheet.properties";
 
+    /** Property: true to reload the properties file when it changes. */
+    private static final String WATCH_CONFIG = "config.watch";
+
+    /** Property: milliseconds to wait after a change before reloading, so
+     * an editor can finish writing the file. */
+    private static final String WATCH_DELAY_CONFIG = "config.watchDelay";
+
+    /** Default for WATCH_DELAY_CONFIG. */
+    private static final long DEFAULT_WATCH_DELAY = 500L;
+
+    /** Index of each type in Snapshot.parsed. */
+    private static final int INTEGER = 0;
+    private static final int SHORT = 1;
+    private static final int LONG = 2;
+    private static final int FLOAT = 3;
+    private static final int DOUBLE = 4;
+    private static final int BOOLEAN = 5;
+
+    /** Stands for a value that is missing or does not parse. */
+    private static final Object MISSING = new Object();
+
+    // --------------------------------------------------------------------
+    /**
+     * The parsed values of one type, by property name.
+     */
+    // --------------------------------------------------------------------
+    private static final class Parsed extends ConcurrentHashMap<String,Object>
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // --------------------------------------------------------------------
     /**
-     * This variable refers to the properties list currently being operated
-     * on.
+     * One version of the configuration. values never changes once the
+     * snapshot is published.
      */
-    private static Properties properties;
+    // --------------------------------------------------------------------
+    private static final class Snapshot
+    {
+        /** Value of each property. */
+        final Map<String,String> values;
+
+        /** Parsed values, by type. */
+        final Parsed[] parsed = new Parsed[BOOLEAN + 1];
+
+        Snapshot(Map<String,String> values)
+        {
+            this.values = values;
+            for (int i=0; i<parsed.length; i++)
+                parsed[i] = new Parsed();
+        }
+    }
+
+    /** The current configuration. */
+    private static volatile Snapshot snapshot;
+
+    /** Values given to setProperty. They are kept across reloads. */
+    private static final Properties overrides = new Properties();
+
+    /** Name of the properties file. */
+    private static String propFile;
+
+    /** Called after each reload that changed something. */
+    private static final List<ConfigListener> listeners =
+                new CopyOnWriteArrayList<ConfigListener>();
 
     private static String slash;
 
@@ -49,7 +129,8 @@ public class Config
 
     // --------------------------------------------------------------------
     /**
-     * Adds or sets the value of the property referred to by name.
+     * Adds or sets the value of the property referred to by name. A System
+     * property of the same name still overrides it.
      *
      * @param  name  name of property to set.
      * @param  value  value of property to set.
@@ -60,9 +141,10 @@ public class Config
      * @see java.lang.System#setProperty(String,String)
      */
     // --------------------------------------------------------------------
-    public static void setProperty(String name, String value) 
+    public static synchronized void setProperty(String name, String value) 
     {
-        properties.setProperty(name, value);
+        overrides.setProperty(name, value);
+        snapshot = new Snapshot(merge(snapshot.values, name, value));
     }
 
 
@@ -84,9 +166,8 @@ public class Config
     // --------------------------------------------------------------------
     public static String getString(String name, String defaultValue) 
     {
-        String result = properties.getProperty(name, defaultValue);
-        result = System.getProperty(name, result);
-        return result;
+        String result = snapshot.values.get(name);
+        return result == null ? defaultValue : result;
     }
 
 
@@ -106,12 +187,7 @@ public class Config
     // --------------------------------------------------------------------
     public static String getString(String name) 
     {
-        String result = properties.getProperty(name);
-        if (result == null)
-            result = System.getProperty(name);
-        else
-            result = System.getProperty(name, result);
-        return result;
+        return snapshot.values.get(name);
     }
     
 
@@ -135,7 +211,7 @@ public class Config
     {
         Integer result = getInteger(name);
         if (result == null)
-            result = new Integer(defaultValue);
+            result = Integer.valueOf(defaultValue);
         return result;
     }
     
@@ -157,19 +233,7 @@ public class Config
     // --------------------------------------------------------------------
     public static Integer getInteger(String name)
     {
-        Integer result;
-        String stringValue = getString(name);
-        if (stringValue == null)
-            result = null;
-        else {
-            try {
-                result = Integer.decode(stringValue);
-            }
-            catch (NumberFormatException e) {
-                result = null;
-            }
-        }
-        return result;
+        return (Integer)getParsed(name, INTEGER);
     }
     
 
@@ -192,7 +256,8 @@ public class Config
     // --------------------------------------------------------------------
     public static int getInt(String name, int defaultValue) 
     {
-        return getInteger(name, defaultValue).intValue();
+        Integer result = getInteger(name);
+        return result == null ? defaultValue : result.intValue();
     }
     
 
@@ -212,14 +277,8 @@ public class Config
     // --------------------------------------------------------------------
     public static boolean getBoolean(String name, boolean defaultValue)
     {
-        boolean result;
-        String stringValue = getString(name);
-        if (stringValue == null)
-            result = defaultValue;
-        else {
-            result = Boolean.valueOf(stringValue).booleanValue();
-        }
-        return result;
+        Boolean result = (Boolean)getParsed(name, BOOLEAN);
+        return result == null ? defaultValue : result.booleanValue();
     }
 
     
@@ -239,15 +298,7 @@ public class Config
     // --------------------------------------------------------------------
   public static short getShort(String name, short defaultValue)
     {
-        Short result = null;
-        String stringValue = getString(name);
-        if (stringValue != null)
-        {
-            try {
-                result = Short.decode(stringValue);
-            }
-            catch (NumberFormatException e) {}
-        }
+        Short result = (Short)getParsed(name, SHORT);
         return result == null ? defaultValue : result.shortValue();
     }
 
@@ -268,15 +319,7 @@ public class Config
     // --------------------------------------------------------------------
   public static long getLong(String name, long defaultValue)
     {
-        Long result = null;
-        String stringValue = getString(name);
-        if (stringValue != null)
-        {
-            try {
-                result = Long.decode(stringValue);
-            }
-            catch (NumberFormatException e) {}
-        }
+        Long result = (Long)getParsed(name, LONG);
         return result == null ? defaultValue : result.longValue();
     }
 
@@ -297,15 +340,7 @@ public class Config
     // --------------------------------------------------------------------
   public static float getFloat(String name, float defaultValue)
     {
-        Float result = null;
-        String stringValue = getString(name);
-        if (stringValue != null)
-        {
-            try {
-                result = Float.valueOf(stringValue);
-            }
-            catch (NumberFormatException e) {}
-        }
+        Float result = (Float)getParsed(name, FLOAT);
         return result == null ? defaultValue : result.floatValue();
     }
 
@@ -326,15 +361,7 @@ public class Config
     // --------------------------------------------------------------------
   public static double getDouble(String name, double defaultValue)
     {
-        Double result = null;
-        String stringValue = getString(name);
-        if (stringValue != null)
-        {
-            try {
-                result = Double.valueOf(stringValue);
-            }
-            catch (NumberFormatException e) {}
-        }
+        Double result = (Double)getParsed(name, DOUBLE);
         return result == null ? defaultValue : result.doubleValue();
     }
 
@@ -353,20 +380,78 @@ public class Config
     public static List<String> getMatchingNames(String prefix)
     {
         LinkedList<String> list = new LinkedList<String>();
-        try {
-            Enumeration names = properties.propertyNames();
-            while (names.hasMoreElements()) {
-                String name = (String) names.nextElement();
-                if (name.startsWith(prefix)) {
-                    list.add(name);
-                }
+        for (String name: snapshot.values.keySet()) {
+            if (name.startsWith(prefix)) {
+                list.add(name);
             }
         }
-        catch (Exception ignore) { }
         return list;
     }
 
 
+    // --------------------------------------------------------------------
+    /**
+     * Adds a listener that is called after the configuration changes.
+     *
+     * @param  listener  the listener.
+     */
+    // --------------------------------------------------------------------
+    public static void addListener(ConfigListener listener)
+    {
+        listeners.add(listener);
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     * Removes a listener added with addListener.
+     *
+     * @param  listener  the listener.
+     */
+    // --------------------------------------------------------------------
+    public static void removeListener(ConfigListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     * Reads the properties file and the System properties again. If any
+     * value changed, the new values replace the old ones and the listeners
+     * are called. If the file can not be read, or is empty, as it can be
+     * for a moment while an editor saves it, the current values are kept.
+     *
+     * @return
+     *   boolean - true if anything changed.
+     */
+    // --------------------------------------------------------------------
+    public static boolean reload()
+    {
+        synchronized (Config.class) {
+            Map<String,String> values = load(true);
+            if (values == null) {
+                System.err.println("cannot reload properties file " + propFile +
+                            ", keeping the current values");
+                return false;
+            }
+            if (values.equals(snapshot.values))
+                return false;
+            snapshot = new Snapshot(values);
+        }
+        for (ConfigListener listener: listeners) {
+            try {
+                listener.ConfigChanged();
+            }
+            catch (RuntimeException e) {
+                System.err.println("ConfigListener failed: " + e);
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+
     //=====================================================================
     // Private Methods
     //=====================================================================
@@ -390,7 +475,6 @@ public class Config
         // Don't use System.getProperty("file.separator", "/") since it causes
         // an inconsistency with the slashes.
         slash = "/";
-        properties = new Properties();
 
         
         // First load the application wide properties.
@@ -399,25 +483,165 @@ public class Config
         // Do this just to make sure all of the /'s are the same.
         configBase = configBase.replace("\\", "/");
 
-        String propFile = configBase + APP_PROPERTY_FILENAME;
-        loadFile(propFile);
+        propFile = configBase + APP_PROPERTY_FILENAME;
+        snapshot = new Snapshot(load(false));
+
+        if (getBoolean(WATCH_CONFIG, false))
+            startWatcher();
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Gets a value parsed as a type, parsing it the first time.
+     *
+     *  @param  name  of property to get.
+     *  @param  type  INTEGER, SHORT, LONG, FLOAT, DOUBLE or BOOLEAN.
+     *
+     *  @return
+     *    Object - the parsed value, or null if the property doesn't exist
+     *  or doesn't parse.
+     */
+    // --------------------------------------------------------------------
+    private static Object getParsed(String name, int type)
+    {
+        Snapshot current = snapshot;
+        Parsed parsed = current.parsed[type];
+        Object result = parsed.get(name);
+        if (result == null) {
+            result = parse(current.values.get(name), type);
+            parsed.put(name, result);
+        }
+        return result == MISSING ? null : result;
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Parses a value.
+     *
+     *  @param  value  the string, may be null.
+     *  @param  type  INTEGER, SHORT, LONG, FLOAT, DOUBLE or BOOLEAN.
+     *
+     *  @return
+     *    Object - the parsed value, or MISSING.
+     */
+    // --------------------------------------------------------------------
+    private static Object parse(String value, int type)
+    {
+        if (value == null)
+            return MISSING;
+        try {
+            switch (type) {
+            case INTEGER:
+                return Integer.decode(value);
+            case SHORT:
+                return Short.decode(value);
+            case LONG:
+                return Long.decode(value);
+            case FLOAT:
+                return Float.valueOf(value);
+            case DOUBLE:
+                return Double.valueOf(value);
+            default:
+                return Boolean.valueOf(value);
+            }
+        }
+        catch (NumberFormatException e) {
+            return MISSING;
+        }
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Builds the values: the properties file, then the setProperty values,
+     *  then the System properties.
+     *
+     *  @param  needFile  if true, fail when the properties file can not be
+     *  read or has no properties.
+     *
+     *  @return
+     *    Map - the values, or null if needFile is true and the file was not
+     *  read.
+     */
+    // --------------------------------------------------------------------
+    private static Map<String,String> load(boolean needFile)
+    {
+        Properties file = new Properties();
+        if (!loadFile(file, propFile) && needFile)
+            return null;
+        if (file.isEmpty() && needFile)
+            return null;
+        Map<String,String> values = new HashMap<String,String>();
+        put(values, file);
+        put(values, overrides);
+        put(values, System.getProperties());
+        return Collections.unmodifiableMap(values);
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Copies properties into a map.
+     *
+     *  @param  values  the map.
+     *  @param  properties  the properties to copy.
+     */
+    // --------------------------------------------------------------------
+    private static void put(Map<String,String> values, Properties properties)
+    {
+        for (String name: properties.stringPropertyNames())
+            values.put(name, properties.getProperty(name));
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Copies the values with one more set, unless a System property
+     *  overrides it.
+     *
+     *  @param  values  the current values.
+     *  @param  name  name of the property.
+     *  @param  value  its value.
+     *
+     *  @return
+     *    Map - the new values.
+     */
+    // --------------------------------------------------------------------
+    private static Map<String,String> merge(Map<String,String> values, String name, String value)
+    {
+        Map<String,String> merged = new HashMap<String,String>(values);
+        String system = System.getProperty(name);
+        merged.put(name, system == null ? value : system);
+        return Collections.unmodifiableMap(merged);
     }
 
 
     // --------------------------------------------------------------------
     /**
-     *  Reads properties from the given file into this list.
+     *  Reads properties from the given file into a list.
      *
+     *  @param properties  where to put them.
      *  @param propertyFilename
+     *
+     *  @return
+     *    boolean - true if the file was read, false if it is missing or
+     *  could not be read.
      */
     // --------------------------------------------------------------------
-    private static void loadFile(String propertyFilename) 
+    private static boolean loadFile(Properties properties, String propertyFilename) 
     {
         FileInputStream file;
         try {
             file = new FileInputStream(propertyFilename);
-            properties.load(file);
-            file.close();
+            try {
+                properties.load(file);
+            }
+            finally {
+                file.close();
+            }
+            return true;
         }
         catch (SecurityException ignore) {}
         catch (java.io.FileNotFoundException ignore) {}
@@ -425,6 +649,76 @@ public class Config
             System.err.println("cannot load properties file " +
                         propertyFilename + ": " + e);
         }
+        return false;
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Starts a daemon thread that reloads the properties file when it
+     *  changes.
+     */
+    // --------------------------------------------------------------------
+    private static void startWatcher()
+    {
+        final Path file = Paths.get(propFile).toAbsolutePath();
+        final long delay = getLong(WATCH_DELAY_CONFIG, DEFAULT_WATCH_DELAY);
+        try {
+            final WatchService watcher = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread thread = new Thread("Config watcher") {
+                    public void run() {
+                        watch(watcher, file.getFileName(), delay);
+                    }
+                };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        catch (Exception e) {
+            System.err.println("cannot watch properties file " +
+                        propFile + ": " + e);
+        }
+    }
+
+
+    // --------------------------------------------------------------------
+    /**
+     *  Waits for changes to the properties file and reloads it.
+     *
+     *  @param  watcher  watches the directory of the file.
+     *  @param  name  the file name, without the directory.
+     *  @param  delay  milliseconds to wait for more changes first.
+     */
+    // --------------------------------------------------------------------
+    private static void watch(WatchService watcher, Path name, long delay)
+    {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                                name.equals(event.context()))
+                        changed = true;
+                }
+                key.reset();
+                if (!changed)
+                    continue;
+                // Editors often write a file in several steps. Let them
+                // finish, then forget the events they caused.
+                Thread.sleep(delay);
+                while ((key = watcher.poll()) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                reload();
+            }
+        }
+        catch (InterruptedException e) {
+            // Stop watching.
+        }
     }
 
 
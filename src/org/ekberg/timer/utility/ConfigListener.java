@@ -4,14 +4,15 @@
 package org.ekberg.timer.utility;
 
 /**
- * A value related to the meth.properties has changed. Use this listener to determine
- * what was changed to perform some action.
+ * A value in timesheet.properties has changed. Use this listener to determine
+ * what was changed to perform some action. Register it with
+ * Config.addListener.
  */
 public interface ConfigListener {
     // ------------------------------------------------------------------------
     /**
-     * Invoked when a dynamically configurable value in Config.properties has changed.
-     *
+     * Invoked after Config.reload has replaced the values. It is called on
+     * the thread that watches the file, so it should return quickly.
      */
     // ------------------------------------------------------------------------
     public void ConfigChanged();
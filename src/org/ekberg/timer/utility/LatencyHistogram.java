@@ -0,0 +1,184 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * Collects elapsed times into power of two buckets. Bucket i counts samples
+ * of less than 2^i microseconds, and the last bucket counts everything
+ * longer. Recording a sample is a few atomic adds with no allocation, so
+ * many threads can record into the same histogram.
+ **/
+// ----------------------------------------------------------------------------
+public class LatencyHistogram {
+    /** Number of buckets. The last one starts at about 18 minutes. */
+    public static final int BUCKETS = 32;
+
+    /** Sample count for each bucket. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** Number of samples. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of all samples, in nanoseconds. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** Largest sample, in nanoseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add one sample.
+     *
+     * @param  nanos  the elapsed time in nanoseconds.
+     **/
+    // ------------------------------------------------------------------------
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        long micros = nanos / 1000L;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKETS)
+            bucket = BUCKETS - 1;
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, nanos))
+                break;
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the number of samples.
+     *
+     * @return
+     *   long - the sample count.
+     */
+    //-------------------------------------------------------------------------
+    public long getCount() {
+        return count.get();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the sum of all samples.
+     *
+     * @return
+     *   long - the total in nanoseconds.
+     */
+    //-------------------------------------------------------------------------
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the largest sample.
+     *
+     * @return
+     *   long - the maximum in microseconds.
+     */
+    //-------------------------------------------------------------------------
+    public long getMaxMicros() {
+        return max.get() / 1000L;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the average sample.
+     *
+     * @return
+     *   long - the mean in microseconds, or 0 if there are no samples.
+     */
+    //-------------------------------------------------------------------------
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n / 1000L;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get an upper bound for a percentile. The result is the top of the
+     * bucket that holds the percentile, so it is accurate to a factor of two.
+     *
+     * @param  percent  the percentile wanted, for example 99.0.
+     *
+     * @return
+     *   long - the percentile in microseconds, or 0 if there are no samples.
+     */
+    //-------------------------------------------------------------------------
+    public long getPercentileMicros(double percent) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long wanted = (long)Math.ceil(n * percent / 100.0D);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted)
+                return i == BUCKETS - 1 ? getMaxMicros() : (1L << i);
+        }
+        return getMaxMicros();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the sample count of one bucket.
+     *
+     * @param  bucket  the bucket number, 0 to BUCKETS - 1.
+     *
+     * @return
+     *   long - the number of samples in that bucket.
+     */
+    //-------------------------------------------------------------------------
+    public long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Throw away all samples.
+     */
+    //-------------------------------------------------------------------------
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for LatencyHistogram.
+     *
+     * @return
+     *   String - the count, mean, percentiles and maximum.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "count=" + getCount() +
+                    ", meanUs=" + getMeanMicros() +
+                    ", p50Us=" + getPercentileMicros(50.0D) +
+                    ", p99Us=" + getPercentileMicros(99.0D) +
+                    ", maxUs=" + getMaxMicros();
+    }
+}
@@ -0,0 +1,347 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+
+
+/**
+ * Collects the times measured by Trace.pmStart and Trace.pmStop.
+ *<P>
+ * Each thread keeps its open pmStart calls on a stack of primitive arrays:
+ * the System.nanoTime of the start and the call path it belongs to. A call
+ * path is the list of pmStart messages that were open, outermost first, so
+ * "outputTimes" called from "allDone" and from "save" are timed separately.
+ * pmStop adds the elapsed time to the LatencyHistogram of its path, which
+ * keeps the count, total, maximum and distribution without locking. After
+ * the first time a path is seen, pmStart and pmStop allocate nothing.
+ *<P>
+ * At most trace.profile.maxPaths paths are kept; later new paths are counted
+ * under a "(other)" path of their parent, so messages with changing text
+ * can not use up memory. The timings are registered with the platform
+ * MBeanServer and, if trace.profile.dumpInterval is set, written with
+ * Trace.notice every dumpInterval milliseconds.
+ */
+public class Profiler implements ProfilerMBean {
+    /** Property for the largest number of call paths. */
+    private static final String MAX_PATHS_CONFIG = "trace.profile.maxPaths";
+
+    /** Property for the number of milliseconds between Trace dumps. */
+    private static final String DUMP_INTERVAL_CONFIG = "trace.profile.dumpInterval";
+
+    /** Default for the largest number of call paths. */
+    private static final int DEFAULT_MAX_PATHS = 1000;
+
+    /** Name of the path new paths go to once there are maxPaths. */
+    private static final String OTHER = "(other)";
+
+    // ------------------------------------------------------------------------
+    /**
+     * One call path: a pmStart message and the path it was called in.
+     */
+    // ------------------------------------------------------------------------
+    private static final class Path {
+        /** The pmStart message. */
+        final String name;
+
+        /** The enclosing path, null for the root. */
+        final Path parent;
+
+        /** Paths started while this one was open, by message. */
+        final ConcurrentHashMap<String,Path> children = new ConcurrentHashMap<String,Path>();
+
+        /** The times of this path. */
+        final LatencyHistogram times = new LatencyHistogram();
+
+        Path(String name, Path parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The open pmStart calls of one thread.
+     */
+    // ------------------------------------------------------------------------
+    private static final class Stack {
+        /** System.nanoTime of each open pmStart. */
+        long[] starts = new long[16];
+
+        /** The path of each open pmStart. */
+        Path[] paths = new Path[16];
+
+        /** Number of open pmStart calls. */
+        int depth;
+    }
+
+    /** The only Profiler. */
+    private static final Profiler instance = new Profiler();
+
+    /** The open pmStart calls of each thread. */
+    private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+            protected Stack initialValue() {
+                return new Stack();
+            }
+        };
+
+    /** Root of the call paths. Not itself timed. */
+    private final Path root = new Path("", null);
+
+    /** Number of paths. */
+    private final AtomicInteger pathCount = new AtomicInteger();
+
+    /** Largest number of paths. */
+    private final int maxPaths;
+
+    /** True once registered with JMX and the dump is started. */
+    private volatile boolean started;
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Create the profiler.
+     */
+    //-------------------------------------------------------------------------
+    private Profiler() {
+        maxPaths = Config.getInt(MAX_PATHS_CONFIG, DEFAULT_MAX_PATHS);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the profiler.
+     *
+     * @return
+     *   Profiler - the only instance.
+     */
+    //-------------------------------------------------------------------------
+    public static Profiler getInstance() {
+        return instance;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Start timing on this thread.
+     *
+     * @param  name  the pmStart message. It names the call path.
+     *
+     * @return
+     *   int - the number of open starts on this thread, including this one.
+     */
+    //-------------------------------------------------------------------------
+    int start(String name) {
+        if (!started)
+            startReporting();
+        Stack stack = stacks.get();
+        int depth = stack.depth;
+        if (depth == stack.starts.length) {
+            stack.starts = Arrays.copyOf(stack.starts, depth * 2);
+            stack.paths = Arrays.copyOf(stack.paths, depth * 2);
+        }
+        Path parent = depth == 0 ? root : stack.paths[depth - 1];
+        stack.paths[depth] = child(parent, name);
+        stack.depth = depth + 1;
+        // Last, so that finding the path is not timed.
+        stack.starts[depth] = System.nanoTime();
+        return depth + 1;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Stop the most recent timing on this thread and record it.
+     *
+     * @return
+     *   long - the elapsed nanoseconds, or -1 if nothing was started.
+     */
+    //-------------------------------------------------------------------------
+    long stop() {
+        long now = System.nanoTime();
+        Stack stack = stacks.get();
+        if (stack.depth == 0)
+            return -1;
+        int depth = --stack.depth;
+        long nanos = now - stack.starts[depth];
+        stack.paths[depth].times.record(nanos);
+        stack.paths[depth] = null;
+        return nanos;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the number of open starts on this thread.
+     *
+     * @return
+     *   int - the depth of this thread's stack.
+     */
+    //-------------------------------------------------------------------------
+    int getDepth() {
+        return stacks.get().depth;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the path for a name within a parent, creating it the first time.
+     *
+     * @param  parent  the enclosing path.
+     *
+     * @param  name  the pmStart message.
+     *
+     * @return
+     *   Path - the path.
+     */
+    //-------------------------------------------------------------------------
+    private Path child(Path parent, String name) {
+        Path path = parent.children.get(name);
+        if (path != null)
+            return path;
+        if (pathCount.get() >= maxPaths && !name.equals(OTHER))
+            return child(parent, OTHER);
+        path = new Path(name, parent);
+        Path existing = parent.children.putIfAbsent(name, path);
+        if (existing != null)
+            return existing;
+        pathCount.incrementAndGet();
+        return path;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Register with JMX and start the periodic dump. Done on the first
+     * pmStart, so programs that never profile start nothing.
+     */
+    //-------------------------------------------------------------------------
+    private synchronized void startReporting() {
+        if (started)
+            return;
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        new ObjectName("org.ekberg.timer.utility:type=Profiler"));
+        }
+        catch (Exception e) {
+            Trace.warning("Unable to register the profiler", e);
+        }
+
+        long interval = Config.getLong(DUMP_INTERVAL_CONFIG, 0L);
+        if (interval > 0) {
+            Timer dumper = new Timer("Profiler", true);
+            dumper.schedule(new TimerTask() {
+                    public void run() {
+                        dump();
+                    }
+                }, interval, interval);
+        }
+    }
+
+
+    public int getPathCount() {
+        return pathCount.get();
+    }
+
+
+    public String[] getPaths() {
+        List<String> lines = new ArrayList<String>();
+        addLines(root, "", lines);
+        return lines.toArray(new String[lines.size()]);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format the paths below a path, sorted by name, each followed by the
+     * paths below it.
+     *
+     * @param  parent  the path.
+     *
+     * @param  indent  put in front of each line.
+     *
+     * @param  lines  where to add the lines.
+     */
+    //-------------------------------------------------------------------------
+    private static void addLines(Path parent, String indent, List<String> lines) {
+        Map<String,Path> sorted = new TreeMap<String,Path>(parent.children);
+        for (Path path: sorted.values()) {
+            lines.add(indent + path.name + ": " + path.times);
+            addLines(path, indent + "  ", lines);
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Format all of the timings.
+     *
+     * @return
+     *   String - one call path per line, indented under its parent.
+     */
+    //-------------------------------------------------------------------------
+    public String getReport() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("paths=").append(getPathCount());
+        for (String line: getPaths())
+            sb.append("\n").append(line);
+        return sb.toString();
+    }
+
+
+    public void dump() {
+        Trace.notice("Profile\n" + getReport());
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Throw away all collected timings. The paths themselves are kept, since
+     * running threads may be in them.
+     */
+    //-------------------------------------------------------------------------
+    public void reset() {
+        reset(root);
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Reset the times of the paths below a path.
+     *
+     * @param  parent  the path.
+     */
+    //-------------------------------------------------------------------------
+    private static void reset(Path parent) {
+        for (Path path: parent.children.values()) {
+            path.times.reset();
+            reset(path);
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for Profiler.
+     *
+     * @return
+     *   String - the number of paths.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "Profiler[paths=" + getPathCount() + ", maxPaths=" + maxPaths + "]";
+    }
+}
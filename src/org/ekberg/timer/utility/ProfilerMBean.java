@@ -0,0 +1,25 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+/**
+ * JMX view of the Trace.pmStart/pmStop timings. See Profiler.
+ */
+public interface ProfilerMBean {
+    /** @return the number of call paths timed. */
+    public int getPathCount();
+
+    /** @return the timings of each call path, one line per path. */
+    public String[] getPaths();
+
+    /** @return everything above as one multi-line string. */
+    public String getReport();
+
+    /** Write the report with Trace.notice. */
+    public void dump();
+
+    /** Throw away all collected timings. */
+    public void reset();
+}
@@ -7,11 +7,13 @@ package org.ekberg.timer.utility;
 import org.ekberg.utility.Tracer;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Date;
-import java.util.EmptyStackException;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 
 // ----------------------------------------------------------------------------
@@ -66,18 +68,53 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     /** This is the list of trace output device objects. **/
     private LinkedList<TraceDevice> deviceList = null;
 
-    /** Queue of trace events from application contexts. */
-    private LinkedList eventList = null; 
+    /** Queue of trace events from application contexts. Only used in
+     * threaded mode. */
+    private TraceRing ring = null; 
     
     /** The thread the Trace object runs on for dispatching events to devices.
      **/
     private Thread thread;
 
+    /** In threaded mode, the most events written before the devices are
+     * flushed. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Default number of events the ring holds. */
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** Default number of milliseconds flush waits for the ring to empty. */
+    private static final long DEFAULT_FLUSH_TIMEOUT = 5000L;
+
     /** Flag to indicate whether to use threaded mode. **/
     private boolean threadMode;
+
+    /** The highest level any device takes. Events above it are dropped
+     * before anything is built. Updated whenever a device level changes. */
+    private volatile int maxLevel = 0;
     
-    /** Thread local storage for the profiling stack. */
-    private static ThreadLocal<Stack<Date>> stackLocal = new ThreadLocal<Stack<Date>>();
+    /** True to log each pmStart and pmStop as well as time it. */
+    private static final boolean pmLog = Config.getBoolean(CONFIG_PREFIX + CONFIG_PROFILE_LOG, true);
+
+    /** Walks the stack to find the caller of a trace method. */
+    private static final StackWalker walker =
+                StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    /** Returns the first frame that is not in this class, which is the
+     * caller of Trace.info, Trace.getInstance().Info and so on. Frames are
+     * only read up to that one. */
+    private static final Function<Stream<StackWalker.StackFrame>,StackWalker.StackFrame> findCaller =
+                new Function<Stream<StackWalker.StackFrame>,StackWalker.StackFrame>() {
+                    public StackWalker.StackFrame apply(Stream<StackWalker.StackFrame> frames) {
+                        Iterator<StackWalker.StackFrame> it = frames.iterator();
+                        while (it.hasNext()) {
+                            StackWalker.StackFrame frame = it.next();
+                            if (frame.getDeclaringClass() != Trace.class)
+                                return frame;
+                        }
+                        return null;
+                    }
+                };
 
 
     //==================================================================
@@ -132,6 +169,123 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Determine whether any device takes events of a trace level. Use this
+     * to skip building an expensive message:
+     * <PRE>
+     *   if (Trace.isEnabled(Trace.INFO))
+     *       Trace.info("beans=" + beans);
+     * </PRE>
+     * This is a single comparison with a cached value.
+     *
+     * @param  traceLevel  the trace level, for example INFO.
+     *
+     * @return
+     *   boolean - true if a trace call at that level would be output.
+     **/
+    // ------------------------------------------------------------------------
+    public static boolean isEnabled(int traceLevel) {
+        return traceLevel <= instance.maxLevel;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a message that is only built if some device takes the level.
+     *
+     * @param  traceLevel  user defined classification of log message.
+     * @param  message  supplies the message. Not called if the level is
+     * disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void trace(int traceLevel, Supplier<String> message) {
+        if (traceLevel <= instance.maxLevel)
+            instance.logTrace(traceLevel, message.get(), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a message with one argument. Each "{}" in pattern is replaced by
+     * the next argument, and the message is only formatted if some device
+     * takes the level, so a disabled call does not allocate anything.
+     *
+     * @param  traceLevel  user defined classification of log message.
+     * @param  pattern  the message, with a "{}" for the argument.
+     * @param  arg  the argument.
+     **/
+    // ------------------------------------------------------------------------
+    public static void tracef(int traceLevel, String pattern, Object arg) {
+        if (traceLevel <= instance.maxLevel)
+            instance.logTrace(traceLevel, format(pattern, arg), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a message with two arguments. See {@link #tracef(int, String,
+     * Object)}.
+     *
+     * @param  traceLevel  user defined classification of log message.
+     * @param  pattern  the message, with a "{}" for each argument.
+     * @param  arg1  the first argument.
+     * @param  arg2  the second argument.
+     **/
+    // ------------------------------------------------------------------------
+    public static void tracef(int traceLevel, String pattern, Object arg1, Object arg2) {
+        if (traceLevel <= instance.maxLevel)
+            instance.logTrace(traceLevel, format(pattern, arg1, arg2), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a message with any number of arguments. See {@link #tracef(int,
+     * String, Object)}. The argument array is built by the caller, so guard
+     * this with isEnabled where that matters.
+     *
+     * @param  traceLevel  user defined classification of log message.
+     * @param  pattern  the message, with a "{}" for each argument.
+     * @param  args  the arguments.
+     **/
+    // ------------------------------------------------------------------------
+    public static void tracef(int traceLevel, String pattern, Object... args) {
+        if (traceLevel <= instance.maxLevel)
+            instance.logTrace(traceLevel, format(pattern, args), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace each "{}" in a pattern by the next argument. Placeholders
+     * without an argument are left as they are, and extra arguments are
+     * ignored.
+     *
+     * @param  pattern  the message pattern.
+     * @param  args  the arguments.
+     *
+     * @return
+     *   String - the formatted message.
+     **/
+    // ------------------------------------------------------------------------
+    static String format(String pattern, Object... args) {
+        if (pattern == null)
+            return null;
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg: args) {
+            int at = pattern.indexOf("{}", start);
+            if (at < 0)
+                break;
+            sb.append(pattern, start, at).append(arg);
+            start = at + 2;
+        }
+        sb.append(pattern, start, pattern.length());
+        return sb.toString();
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated fatal error message and the object to the
@@ -167,6 +321,19 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a fatal message that is only built if some device takes FATAL.
+     *
+     * @param  message  supplies the message. Not called if FATAL is disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void fatal(Supplier<String> message) {
+        if (FATAL <= instance.maxLevel)
+            instance.logTrace(FATAL, message.get(), null);
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated error message and the object to the configured
@@ -202,6 +369,19 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a error message that is only built if some device takes ERROR.
+     *
+     * @param  message  supplies the message. Not called if ERROR is disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void error(Supplier<String> message) {
+        if (ERROR <= instance.maxLevel)
+            instance.logTrace(ERROR, message.get(), null);
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated warning message and the object to the configured
@@ -237,6 +417,19 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a warning message that is only built if some device takes WARNING.
+     *
+     * @param  message  supplies the message. Not called if WARNING is disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void warning(Supplier<String> message) {
+        if (WARNING <= instance.maxLevel)
+            instance.logTrace(WARNING, message.get(), null);
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated notice message and the object to the configured
@@ -272,6 +465,19 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a notice message that is only built if some device takes NOTICE.
+     *
+     * @param  message  supplies the message. Not called if NOTICE is disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void notice(Supplier<String> message) {
+        if (NOTICE <= instance.maxLevel)
+            instance.logTrace(NOTICE, message.get(), null);
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated message text to the configured log device.
@@ -287,53 +493,42 @@ public class Trace implements TraceConstants, Runnable, Tracer {
 
     // ------------------------------------------------------------------------
     /**
-     * This logs the indicated message text to the configured log device.
+     * Start timing. The time until the matching pmStop is added to the
+     * Profiler, under the call path made of this message and those of the
+     * enclosing pmStart calls on this thread. If trace.profile.log is true,
+     * this also logs the message at the PM level.
      *
-     * @param  message  to be logged to the log device.
+     * @param  message  names what is timed. Use a fixed string: each
+     * different message is a separate path.
      **/
     // ------------------------------------------------------------------------
     public static void pmStart(String message) {
-        Date timestamp = new Date();
-
-        Stack<Date> stack = (Stack<Date>)stackLocal.get();
-        if (stack == null) {
-            stack = new Stack<Date>();
-            stackLocal.set(stack);
-        }
-        stack.push(timestamp);
-        
-        instance.logTrace(PM, "[PM START " + stack.size() + "] " 
-                    + message, null);
+        int depth = Profiler.getInstance().start(message);
+        if (pmLog && PM <= instance.maxLevel)
+            instance.logTrace(PM, "[PM START " + depth + "] " + message, null);
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * This logs the indicated message text to the configured log device.
+     * Stop the most recent pmStart on this thread. If trace.profile.log is
+     * true, this also logs the message and the elapsed milliseconds at the
+     * PM level.
      *
      * @param  message  to be logged to the log device.
      **/
     // ------------------------------------------------------------------------
     public static void pmStop(String message) {
-        Date stopTimestamp = new Date();
-        String timeDiff = "?";
-        
-        Stack stack = (Stack)stackLocal.get();
-        if (stack == null) {
+        long nanos = Profiler.getInstance().stop();
+        if (nanos < 0) {
             instance.logTrace(ERROR, 
                         "### PROFILE STACK UNDERFLOW !! ###", null);
         }
-        try {
-            Date startTimestamp = (Date)stack.pop();
-            timeDiff = "" + (stopTimestamp.getTime() - 
-                        startTimestamp.getTime());
-        }
-        catch (EmptyStackException e) {
-            instance.logTrace(ERROR, 
-                        "### PROFILE STACK UNDERFLOW !! ###", null);
+        if (pmLog && PM <= instance.maxLevel) {
+            String timeDiff = nanos < 0 ? "?" : "" + nanos / 1000000L;
+            instance.logTrace(PM, "[PM STOP " + (Profiler.getInstance().getDepth() + 1) +
+                        "(" + timeDiff + ")] " + message, null);
         }
-        instance.logTrace(PM, "[PM STOP " + (stack.size() + 1) + "(" + timeDiff
-                    + ")] " + message, null);
     }
 
 
@@ -372,6 +567,50 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Logs an informational message with one argument. See {@link
+     * #tracef(int, String, Object)}.
+     *
+     * @param  pattern  the message, with a "{}" for the argument.
+     * @param  arg  the argument.
+     **/
+    // ------------------------------------------------------------------------
+    public static void infof(String pattern, Object arg) {
+        if (INFO <= instance.maxLevel)
+            instance.logTrace(INFO, format(pattern, arg), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs an informational message with two arguments. See {@link
+     * #tracef(int, String, Object)}.
+     *
+     * @param  pattern  the message, with a "{}" for each argument.
+     * @param  arg1  the first argument.
+     * @param  arg2  the second argument.
+     **/
+    // ------------------------------------------------------------------------
+    public static void infof(String pattern, Object arg1, Object arg2) {
+        if (INFO <= instance.maxLevel)
+            instance.logTrace(INFO, format(pattern, arg1, arg2), null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Logs a info message that is only built if some device takes INFO.
+     *
+     * @param  message  supplies the message. Not called if INFO is disabled.
+     **/
+    // ------------------------------------------------------------------------
+    public static void info(Supplier<String> message) {
+        if (INFO <= instance.maxLevel)
+            instance.logTrace(INFO, message.get(), null);
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This logs the indicated informational message and the object to the
@@ -401,45 +640,91 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     
     // ------------------------------------------------------------------------
     /**
-     * This is the method called when the trace thread is started.  It waits
-     * for a trace event to be queued and then removes it and dispatches it to
-     * all registered devices.
+     * This is the method called when the trace thread is started. It takes
+     * trace events off the ring and dispatches them to all registered
+     * devices. The devices are flushed after each batch, that is when the
+     * ring is empty or BATCH_SIZE events have been written.
      */
     // ------------------------------------------------------------------------
     public void run() {
         TraceEvent event = null;
-        TraceDevice device = null;
+        int batch = 0;
+        long reportedDrops = 0;
         
         while(true) {
-            do {
-                event = null;
-                // remove the new trace event from the event list
-                synchronized(eventList) {
-                    try {
-                        event = (TraceEvent)eventList.removeFirst();
-                    }
-                    catch (Exception ignore) {}
-                }
-                if (event != null) {
-                    for (int i = 0; i < deviceList.size(); i++) {
-                        device = (TraceDevice)deviceList.get(i);
-                        device.outputEvent(event);
-                    }
-                }
-            } while (event != null); 
-
-            // wait for a trace event to be added to the event list
-            synchronized(this) {
+            event = ring.next();
+            if (event != null) {
                 try {
-                    wait(); 
+                    traceOutput(event);
                 }
-                catch (InterruptedException e) {
-                    continue;
+                catch (RuntimeException e) {
+                    e.printStackTrace();
                 }
+                ring.release(event);
+                if (++batch < BATCH_SIZE)
+                    continue;
+            }
+
+            long drops = ring.getDropped();
+            if (drops != reportedDrops) {
+                traceOutput(new TraceEvent(WARNING, "Trace dropped " +
+                            (drops - reportedDrops) + " events, " + drops + " in all",
+                            (String)null));
+                reportedDrops = drops;
+                batch++;
             }
+            if (batch > 0) {
+                flushDevices();
+                batch = 0;
+            }
+            if (event == null)
+                ring.await();
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write out everything that has been traced so far. In threaded mode this
+     * waits, up to trace.flushTimeout milliseconds, for the trace thread to
+     * catch up. This is called when the JVM exits.
+     */
+    // ------------------------------------------------------------------------
+    public static void flush() {
+        instance.flushAll(Config.getLong(CONFIG_PREFIX + CONFIG_FLUSH_TIMEOUT, DEFAULT_FLUSH_TIMEOUT));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait for the ring to empty, then flush the devices.
+     *
+     * @param  timeout  most milliseconds to wait.
+     */
+    // ------------------------------------------------------------------------
+    private void flushAll(long timeout) {
+        if (ring != null && Thread.currentThread() != thread) {
+            long deadline = System.currentTimeMillis() + timeout;
+            ring.wakeConsumer();
+            while (!ring.isEmpty() && System.currentTimeMillis() < deadline) {
+                LockSupport.parkNanos(1000000L);
+            }
+        }
+        flushDevices();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flush every device.
+     */
+    // ------------------------------------------------------------------------
+    private void flushDevices() {
+        for (int i = 0; i < deviceList.size(); i++) {
+            deviceList.get(i).flush();
         }
     }
-    
+
 
     // ------------------------------------------------------------------------
     /**
@@ -449,11 +734,26 @@ public class Trace implements TraceConstants, Runnable, Tracer {
     private Trace() {
         initialize();
         if (threadMode) {
+            ring = new TraceRing(
+                        Config.getInt(CONFIG_PREFIX + CONFIG_BUFFER_SIZE, DEFAULT_BUFFER_SIZE),
+                        Config.getString(CONFIG_PREFIX + CONFIG_OVERFLOW, TraceRing.BLOCK));
             thread = new Thread(this, "Trace");
             thread.setDaemon(true);
             thread.setPriority(Thread.NORM_PRIORITY + 2);
+            ring.setConsumer(thread);
             thread.start();
         }
+        Runtime.getRuntime().addShutdownHook(new Thread("Trace flush") {
+                public void run() {
+                    flush();
+                }
+            });
+        // Pick up new device levels when timesheet.properties changes.
+        Config.addListener(new ConfigListener() {
+                public void ConfigChanged() {
+                    reloadLevels();
+                }
+            });
     }
 
 
@@ -470,13 +770,13 @@ public class Trace implements TraceConstants, Runnable, Tracer {
      **/
     // ------------------------------------------------------------------------
     private void logTrace(int traceLevel, String message, Object object) {
-        String stackTraceLine;
+        // Nobody wants this level. Do not build anything.
+        if (traceLevel > maxLevel)
+            return;
+
         Throwable throwableToTrace = null;
 
-        // Get a Throwable for the stack traceback to get class, function,
-        // line.
-        Throwable throwable = new Throwable();
-        if (object != null && throwable.getClass().isInstance(object)) {
+        if (object instanceof Throwable) {
             // The object being traced is a Throwable (probably an exception).
             throwableToTrace = (Throwable)object;
             
@@ -521,26 +821,15 @@ public class Trace implements TraceConstants, Runnable, Tracer {
         }
             
         
-        // Collect the stack traceback (for the class, function & line) from
-        // the Throwable into a StringWriter.
-        StringWriter stackTrace = new StringWriter();
-        PrintWriter printWriter = new PrintWriter(stackTrace);
-        throwable.printStackTrace(printWriter);
-        
-        // Since the Throwable outputs the stack trace in multiple lines, we
-        // need to separate out the line we want, which is 3 calls into the
-        // stack.
-        stackTraceLine = getStackLine(stackTrace.toString(), 3);
-        if (stackTraceLine.indexOf(".utility.Trace.") >= 0)
-            if ((stackTraceLine.indexOf(".utility.Trace.fatal(Trace.java:") >= 0) ||
-                        (stackTraceLine.indexOf(".utility.Trace.error(Trace.java:") >= 0) ||
-                        (stackTraceLine.indexOf(".utility.Trace.warning(Trace.java:") >= 0) ||
-                        (stackTraceLine.indexOf(".utility.Trace.notice(Trace.java:") >= 0) ||
-                        (stackTraceLine.indexOf(".utility.Trace.info(Trace.java:") >= 0))
-                // The user called Trace.info (which called Trace.Info), or similar
-                // for the other methods.
-                stackTraceLine = getStackLine(stackTrace.toString(), 4);
-        instance.traceOutput(traceLevel, msgString + objString, stackTraceLine);
+        // Find the caller (for the class, function & line), but only if a
+        // device that takes this level is going to use it. Only the frames
+        // up to the caller are walked, and nothing is turned into strings
+        // until a device asks for it.
+        StackWalker.StackFrame caller = null;
+        if (isCallerNeeded(traceLevel))
+            caller = walker.walk(findCaller);
+        if (hasDevice(traceLevel))
+            dispatch(traceLevel, msgString + objString, caller);
         
         // Now check to see if this trace call included an exception, and if
         // so, log the exception separately.
@@ -576,76 +865,103 @@ public class Trace implements TraceConstants, Runnable, Tracer {
         }
 
         String stackTrace = stackTraceBuffer.toString();
-        // Since the Throwable outputs the stack trace in multiple lines, we
-        // need to separate out the line we want in order to trace the function
-        // where the exception occurred. This is always the first call into the
-        // stack.
-        String stackTraceLine = getStackLine(stackTrace, 1);
-        instance.traceOutput(traceLevel, "EXCEPTION: " + stackTrace, stackTraceLine);
+        // Trace the function where the exception occurred. This is always the
+        // first call in the stack.
+        StackTraceElement[] elements = exception.getStackTrace();
+        StackTraceElement where = elements.length > 0 ? elements[0] : null;
+        if (hasDevice(traceLevel))
+            dispatch(traceLevel, "EXCEPTION: " + stackTrace, where);
     }
 
 
-    // ------------------------------------------------------------------------
+    //-------------------------------------------------------------------------
     /**
-     * Parses the given string into the line needed for extracting the caller's
-     * info.  Since the Throwable outputs the stack trace in multiple lines, we
-     * need to separate out the line we want and return it.
+     * Hand a trace event to the devices: in threaded mode by putting it on
+     * the ring for the trace thread, otherwise by writing it right away.
+     * Trace calls made by the trace thread itself are written right away, so
+     * a full ring can not block it.
      *
-     * @param  stackTrace  output from a Throwable's printStackTrace.
-     * @param  depth  depth to dig back into the stackTrace.
-     **/
-    // ------------------------------------------------------------------------
-    private String getStackLine(String stackTrace, int depth) {
-        // Since the Throwable outputs the stack trace in multiple lines, we
-        // need to separate out the line we want.
-        String stackTraceLine = "";
-        StringTokenizer st = new StringTokenizer(stackTrace, "\n\r");
-        try {
-            for (int i = 0; i <= depth; i++) {
-                stackTraceLine = st.nextToken();
-
-                // Get rid of the extra spaces and the "at " prefix.
-                stackTraceLine = stackTraceLine.trim().substring(3);
-            }
-        }
-        catch (Exception e) {
-            // Ignore exceptions, line will be empty or last valid line.
-        }
-        return (stackTraceLine);
+     * @param  traceLevel  defines the nature of the message.
+     *
+     * @param  message  the message to output.
+     *
+     * @param  caller  the caller's StackWalker.StackFrame or
+     * StackTraceElement, or null.
+     */
+    //-------------------------------------------------------------------------
+    private void dispatch(int traceLevel, String message, Object caller) {
+        if (ring != null && Thread.currentThread() != thread)
+            ring.publish(traceLevel, message, caller);
+        else
+            traceOutput(new TraceEvent(traceLevel, message, caller));
     }
-        
+
 
     //-------------------------------------------------------------------------
     /**
      * Send the trace event to trace output devices.
      *
-     * @param  traceLevel  defines the nature of the message. For example, this
-     * could be FATAL, ERROR, WARNING, etc.
-     *
-     * @param  msgString  the message to output. Parts of this may have been
-     * specified by the user.
-     *
-     * @param  stackTraceLine  stack line extracted from a Throwable.
+     * @param  event  the event. Devices whose level is below the event's level
+     * do not get it.
      */
     //-------------------------------------------------------------------------
-    private void traceOutput(int traceLevel, String msgString, String stackTraceLine) {
-        TraceEvent event = null;
+    private void traceOutput(TraceEvent event) {
         TraceDevice device = null;
         int deviceListSize = deviceList.size();
             
         for (int i = 0; i < deviceListSize; i++) {
             device = (TraceDevice)deviceList.get(i);
             int deviceLevel = device.getLevel();
-            if (traceLevel <= deviceLevel) {
-                if (event == null) {
-                    event = new TraceEvent(traceLevel, msgString, stackTraceLine);
-                }
+            if (event.traceLevel <= deviceLevel) {
                 device.outputEvent(event);
             }
         }
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether any device takes events of a trace level.
+     *
+     * @param  traceLevel  the trace level.
+     *
+     * @return
+     *   boolean - true if at least one device takes the level.
+     */
+    //-------------------------------------------------------------------------
+    private boolean hasDevice(int traceLevel) {
+        int deviceListSize = deviceList.size();
+        for (int i = 0; i < deviceListSize; i++) {
+            if (traceLevel <= deviceList.get(i).getLevel())
+                return true;
+        }
+        return false;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether any device that takes events of a trace level uses
+     * the caller. Devices whose field list has no caller fields, and that do
+     * not filter by package or class, do not.
+     *
+     * @param  traceLevel  the trace level.
+     *
+     * @return
+     *   boolean - true if the caller has to be found.
+     */
+    //-------------------------------------------------------------------------
+    private boolean isCallerNeeded(int traceLevel) {
+        int deviceListSize = deviceList.size();
+        for (int i = 0; i < deviceListSize; i++) {
+            TraceDevice device = deviceList.get(i);
+            if (traceLevel <= device.getLevel() && device.needsCaller())
+                return true;
+        }
+        return false;
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * Initialize the trace output device objects from the config file.
@@ -662,7 +978,6 @@ public class Trace implements TraceConstants, Runnable, Tracer {
         String deviceType;
 
         deviceList = new LinkedList<TraceDevice>();
-        eventList = new LinkedList();
 
         // Get trace device names.
         StringTokenizer st = null;
@@ -694,6 +1009,7 @@ public class Trace implements TraceConstants, Runnable, Tracer {
             
             deviceList.addLast(device);
         }
+        updateMaxLevel();
         
          // Get and set the thread mode.
         if (Config.getInt(CONFIG_PREFIX + CONFIG_THREAD_MODE, 0) == 1)
@@ -821,11 +1137,45 @@ public class Trace implements TraceConstants, Runnable, Tracer {
             device = (TraceDevice)deviceList.get(i);
             if (device.getName().equals(name)) {
                 device.setLevel(level);
+                updateMaxLevel();
                 return;
             }
         }
     }
 
+
+    // ------------------------------------------------------------------------
+    /**
+     * Recompute maxLevel from the devices.
+     */
+    // ------------------------------------------------------------------------
+    private void updateMaxLevel() {
+        int level = 0;
+        for (int i = 0; i < deviceList.size(); i++)
+            level = Math.max(level, deviceList.get(i).getLevel());
+        maxLevel = level;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Re-read the device levels after timesheet.properties changes. A device
+     * with no level configured gets RUNTIME_LEVEL, as when it was created,
+     * and only the devices whose level changed are updated and noted.
+     */
+    // ------------------------------------------------------------------------
+    private void reloadLevels() {
+        for (int i = 0; i < deviceList.size(); i++) {
+            TraceDevice device = deviceList.get(i);
+            int level = Config.getInt(CONFIG_PREFIX + device.getName() + "." + CONFIG_LEVEL,
+                                      RUNTIME_LEVEL);
+            if (level != device.getLevel()) {
+                device.setLevel(level);
+                updateMaxLevel();
+                Trace.notice("loglevel " + device.getName() + "=" + level);
+            }
+        }
+    }
+
     // ------------------------------------------------------------------------
     /**
      * This is to set the log level for the devices
@@ -0,0 +1,153 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.nio.ByteBuffer;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * The layout of the segment files written by TraceDeviceBinary and read by
+ * TraceBinaryReader.
+ *<P>
+ * A segment starts with a header:
+ * <UL>
+ *   <LI> MAGIC, 4 bytes.
+ *   <LI> the time of the first event, 8 bytes, in milliseconds since 1970.
+ *   <LI> the sequence number of the first event, 8 bytes.
+ * </UL>
+ * Records follow, each starting with a type byte:
+ * <UL>
+ *   <LI> RECORD_END - there are no more records. A segment cut short by
+ *        a crash has none; it ends at the end of the file, possibly in
+ *        the middle of a record.
+ *   <LI> RECORD_STRING - a name used by the events after it: its id, its
+ *        length in bytes and its UTF-8 bytes. Ids start at 1 in each
+ *        segment; 0 means the field was not recorded.
+ *   <LI> RECORD_EVENT - the length of the rest of the record, so a reader
+ *        can skip it, then: the trace level, the time and the sequence
+ *        number as differences from the previous event (or the header),
+ *        the string ids of the thread, package, class, function and file,
+ *        the line number, and the message's length and UTF-8 bytes.
+ * </UL>
+ * Numbers are written as varints: 7 bits per byte, low bits first, the high
+ * bit set on all but the last byte. Differences are zigzag encoded first, so
+ * small negative numbers stay short too.
+ **/
+// ----------------------------------------------------------------------------
+final class TraceBinaryFormat {
+    /** First 4 bytes of a segment: "TRB1". */
+    static final int MAGIC = 0x54524231;
+
+    /** Bytes in the segment header. */
+    static final int HEADER_SIZE = 4 + 8 + 8;
+
+    /** Record type: end of the segment. */
+    static final byte RECORD_END = 0;
+
+    /** Record type: a string definition. */
+    static final byte RECORD_STRING = 1;
+
+    /** Record type: a trace event. */
+    static final byte RECORD_EVENT = 2;
+
+    /** Most bytes in a varint. */
+    static final int MAX_VARINT_SIZE = 10;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * No instances.
+     **/
+    // ------------------------------------------------------------------------
+    private TraceBinaryFormat() {
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an unsigned varint.
+     *
+     * @param  buffer  where to write it.
+     * @param  value  the number, taken as unsigned.
+     **/
+    // ------------------------------------------------------------------------
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a signed number as a zigzag varint.
+     *
+     * @param  buffer  where to write it.
+     * @param  value  the number.
+     **/
+    // ------------------------------------------------------------------------
+    static void putSignedVarLong(ByteBuffer buffer, long value) {
+        putVarLong(buffer, (value << 1) ^ (value >> 63));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an unsigned varint.
+     *
+     * @param  buffer  where to read it.
+     *
+     * @return
+     *   long - the number.
+     **/
+    // ------------------------------------------------------------------------
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint at " + buffer.position());
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a zigzag varint.
+     *
+     * @param  buffer  where to read it.
+     *
+     * @return
+     *   long - the number.
+     **/
+    // ------------------------------------------------------------------------
+    static long getSignedVarLong(ByteBuffer buffer) {
+        long value = getVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an unsigned varint that must fit in an int.
+     *
+     * @param  buffer  where to read it.
+     *
+     * @return
+     *   int - the number.
+     **/
+    // ------------------------------------------------------------------------
+    static int getVarInt(ByteBuffer buffer) {
+        long value = getVarLong(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Varint out of range at " + buffer.position());
+        return (int)value;
+    }
+}
@@ -0,0 +1,492 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * Reads the segment files written by TraceDeviceBinary and prints the
+ * events that match in the same layout as a text trace device printing all
+ * fields, one line for each line of the message:
+ * timeStamp|seqNumber|packageName|threadName|basePackageName|className|
+ * fileName|function|lineNumber|traceLevel|message. Names the device did not
+ * record are printed as null, as a text device prints a missing package.
+ *<P>
+ * Usage: TraceBinaryReader [options] file...
+ * <UL>
+ *   <LI> -level N - only events with a trace level of N or less.
+ *   <LI> -class NAME - only events from the class, named with or without
+ *        its package.
+ *   <LI> -from TIME, -to TIME - only events in the time range. TIME is
+ *        yyyy-MM-dd, yyyy-MM-dd HH:mm:ss or yyyy-MM-ddTHH:mm:ss[.SSS].
+ *   <LI> -grep REGEX - only events whose message contains a match.
+ * </UL>
+ * A file is either one segment or the trace.&lt;device&gt;.filename of a
+ * binary device, which stands for all of its segments in order.
+ *<P>
+ * Events that do not match on level, class or time are skipped without
+ * reading their messages, and a segment that starts after the -to time is
+ * not read at all.
+ **/
+// ----------------------------------------------------------------------------
+public class TraceBinaryReader {
+    /** Formats tried, in order, for -from and -to. */
+    private static final String[] TIME_FORMATS = {
+        "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss",
+        "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd"
+    };
+
+    /** Printed for names that were not recorded. */
+    private static final String NONE = "null";
+
+    /** Largest trace level printed. */
+    private int maxLevel = Integer.MAX_VALUE;
+
+    /** Class to print, with or without its package, or null for all. */
+    private String className = null;
+
+    /** Earliest time printed. */
+    private long from = Long.MIN_VALUE;
+
+    /** Latest time printed. */
+    private long to = Long.MAX_VALUE;
+
+    /** Pattern the message must contain, or null. */
+    private Pattern grep = null;
+
+    /** Where to print. */
+    private final PrintStream out;
+
+    /** Number of events printed. */
+    private long printed;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a reader that prints every event.
+     *
+     * @param  out  where to print.
+     **/
+    // ------------------------------------------------------------------------
+    public TraceBinaryReader(PrintStream out) {
+        this.out = out;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print only events with a trace level of this or less.
+     *
+     * @param  maxLevel  the largest level.
+     **/
+    // ------------------------------------------------------------------------
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print only events from a class.
+     *
+     * @param  className  the class, with or without its package.
+     **/
+    // ------------------------------------------------------------------------
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print only events in a time range.
+     *
+     * @param  from  the earliest time, in milliseconds since 1970.
+     * @param  to  the latest time.
+     **/
+    // ------------------------------------------------------------------------
+    public void setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print only events whose message contains a match for a pattern.
+     *
+     * @param  grep  the pattern, or null for all.
+     **/
+    // ------------------------------------------------------------------------
+    public void setGrep(Pattern grep) {
+        this.grep = grep;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the number of events printed so far.
+     *
+     * @return
+     *   long - the count.
+     **/
+    // ------------------------------------------------------------------------
+    public long getPrinted() {
+        return printed;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the segment files of a binary device.
+     *
+     * @param  base  the device's file name, without a segment number.
+     *
+     * @return
+     *   TreeMap<Integer,File> - the files by segment number.
+     **/
+    // ------------------------------------------------------------------------
+    static TreeMap<Integer,File> listSegments(File base) {
+        TreeMap<Integer,File> segments = new TreeMap<Integer,File>();
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files == null)
+            return segments;
+        for (File file: files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                String number = name.substring(prefix.length());
+                boolean digits = true;
+                for (int i = 0; i < number.length(); i++)
+                    digits &= Character.isDigit(number.charAt(i));
+                if (digits && number.length() < 10)
+                    segments.put(Integer.valueOf(number), file);
+            }
+        }
+        return segments;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the matching events of a segment file, or of all the segments
+     * of a device.
+     *
+     * @param  file  a segment, or a device's file name.
+     *
+     * @throws IOException  if the file can not be read or is not a segment.
+     **/
+    // ------------------------------------------------------------------------
+    public void read(File file) throws IOException {
+        if (file.isFile()) {
+            readSegment(file);
+            return;
+        }
+        TreeMap<Integer,File> segments = listSegments(file);
+        if (segments.isEmpty())
+            throw new IOException("No trace segments for " + file);
+        for (File segment: segments.values())
+            readSegment(segment);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the matching events of a segment.
+     *
+     * @param  file  the segment file.
+     *
+     * @throws IOException  if the file can not be read or is not a segment.
+     **/
+    // ------------------------------------------------------------------------
+    private void readSegment(File file) throws IOException {
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            channel.close();
+        }
+        if (buffer.remaining() < TraceBinaryFormat.HEADER_SIZE ||
+                    buffer.getInt() != TraceBinaryFormat.MAGIC)
+            throw new IOException(file + " is not a trace segment");
+        long time = buffer.getLong();
+        long seqNumber = buffer.getLong();
+        if (time > to)
+            return;
+
+        List<String> strings = new ArrayList<String>();
+        StringBuilder line = new StringBuilder(256);
+        int recordStart = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                recordStart = buffer.position();
+                byte type = buffer.get();
+                if (type == TraceBinaryFormat.RECORD_END)
+                    break;
+                if (type == TraceBinaryFormat.RECORD_STRING) {
+                    int id = TraceBinaryFormat.getVarInt(buffer);
+                    String value = getString(buffer, TraceBinaryFormat.getVarInt(buffer));
+                    while (strings.size() < id)
+                        strings.add(null);
+                    strings.set(id - 1, value);
+                    continue;
+                }
+                if (type != TraceBinaryFormat.RECORD_EVENT)
+                    throw new IOException(file + ": unknown record type " + type +
+                                " at " + (buffer.position() - 1));
+
+                int length = TraceBinaryFormat.getVarInt(buffer);
+                int end = buffer.position() + length;
+                int level = TraceBinaryFormat.getVarInt(buffer);
+                time += TraceBinaryFormat.getSignedVarLong(buffer);
+                seqNumber += TraceBinaryFormat.getSignedVarLong(buffer);
+                String thread = lookup(strings, TraceBinaryFormat.getVarInt(buffer));
+                String packageName = lookup(strings, TraceBinaryFormat.getVarInt(buffer));
+                String simpleName = lookup(strings, TraceBinaryFormat.getVarInt(buffer));
+                String function = lookup(strings, TraceBinaryFormat.getVarInt(buffer));
+                String fileName = lookup(strings, TraceBinaryFormat.getVarInt(buffer));
+                long lineNumber = TraceBinaryFormat.getVarLong(buffer);
+                if (level > maxLevel || time < from || time > to ||
+                            !isClassWanted(packageName, simpleName)) {
+                    buffer.position(end);
+                    continue;
+                }
+                String message = getString(buffer, TraceBinaryFormat.getVarInt(buffer));
+                buffer.position(end);
+                if (grep != null && !grep.matcher(message).find())
+                    continue;
+
+                String basePackageName = packageName.equals(NONE) ? NONE :
+                            packageName.substring(packageName.lastIndexOf('.') + 1);
+                line.setLength(0);
+                line.append(TraceTimeStamp.format(time)).append('|')
+                    .append(seqNumber).append('|')
+                    .append(packageName).append('|')
+                    .append(thread).append('|')
+                    .append(basePackageName).append('|')
+                    .append(simpleName).append('|')
+                    .append(fileName).append('|')
+                    .append(function).append('|')
+                    .append(lineNumber).append('|')
+                    .append(level).append('|');
+                printLines(line, message);
+                printed++;
+            }
+        }
+        catch (BufferUnderflowException e) {
+            // The last record was cut short. Keep what was read.
+        }
+        catch (IllegalArgumentException e) {
+            // A varint or record length that makes no sense.
+            throw new IOException(file + ": corrupt record at " + recordStart +
+                        ": " + e.getMessage(), e);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print each non-empty line of a message after the prefix, or just the
+     * prefix if there are none, as TraceDevice does.
+     *
+     * @param  line  the prefix. Changed.
+     * @param  message  the message.
+     **/
+    // ------------------------------------------------------------------------
+    private void printLines(StringBuilder line, String message) {
+        int prefixLength = line.length();
+        int length = message.length();
+        boolean output = false;
+        for (int start = 0; start < length; ) {
+            int end = message.indexOf('\n', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                line.setLength(prefixLength);
+                line.append(message, start, end);
+                out.println(line);
+                output = true;
+            }
+            start = end + 1;
+        }
+        if (!output)
+            out.println(line);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the class of an event against -class.
+     *
+     * @param  packageName  the event's package, NONE if not recorded.
+     * @param  simpleName  the event's class, NONE if not recorded.
+     *
+     * @return
+     *   boolean - true if the event is wanted.
+     **/
+    // ------------------------------------------------------------------------
+    private boolean isClassWanted(String packageName, String simpleName) {
+        if (className == null)
+            return true;
+        if (className.equals(simpleName))
+            return true;
+        return className.length() == packageName.length() + 1 + simpleName.length() &&
+                    className.startsWith(packageName) &&
+                    className.charAt(packageName.length()) == '.' &&
+                    className.endsWith(simpleName);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a UTF-8 string.
+     *
+     * @param  buffer  where to read it.
+     * @param  length  its length in bytes.
+     *
+     * @return
+     *   String - the string.
+     **/
+    // ------------------------------------------------------------------------
+    private static String getString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a string id.
+     *
+     * @param  strings  the strings of the segment, by id - 1.
+     * @param  id  the id, 0 for none.
+     *
+     * @return
+     *   String - the string, NONE if none.
+     **/
+    // ------------------------------------------------------------------------
+    private static String lookup(List<String> strings, int id) {
+        if (id <= 0 || id > strings.size() || strings.get(id - 1) == null)
+            return NONE;
+        return strings.get(id - 1);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a -from or -to time.
+     *
+     * @param  text  the time.
+     *
+     * @return
+     *   long - milliseconds since 1970.
+     *
+     * @throws ParseException  if the time is not in any TIME_FORMATS.
+     **/
+    // ------------------------------------------------------------------------
+    static long parseTime(String text) throws ParseException {
+        for (String format: TIME_FORMATS) {
+            SimpleDateFormat parser = new SimpleDateFormat(format);
+            parser.setLenient(false);
+            try {
+                if (text.length() == format.replace("'", "").length())
+                    return parser.parse(text).getTime();
+            }
+            catch (ParseException e) {
+                // Try the next format.
+            }
+        }
+        throw new ParseException("Unrecognized time: " + text, 0);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the usage message and exit.
+     **/
+    // ------------------------------------------------------------------------
+    private static void usage() {
+        System.err.println("Usage: TraceBinaryReader [-level N] [-class NAME] " +
+                    "[-from TIME] [-to TIME] [-grep REGEX] file...");
+        System.err.println("  TIME is yyyy-MM-dd, yyyy-MM-dd HH:mm:ss or " +
+                    "yyyy-MM-ddTHH:mm:ss[.SSS]");
+        System.exit(1);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the events of binary trace files. See the class comment.
+     *
+     * @param  args  the options and files.
+     **/
+    // ------------------------------------------------------------------------
+    public static void main(String[] args) {
+        TraceBinaryReader reader = new TraceBinaryReader(System.out);
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("-") && i + 1 >= args.length)
+                    usage();
+                if (arg.equals("-level"))
+                    reader.setMaxLevel(Integer.parseInt(args[++i]));
+                else if (arg.equals("-class"))
+                    reader.setClassName(args[++i]);
+                else if (arg.equals("-from"))
+                    from = parseTime(args[++i]);
+                else if (arg.equals("-to"))
+                    to = parseTime(args[++i]);
+                else if (arg.equals("-grep"))
+                    reader.setGrep(Pattern.compile(args[++i]));
+                else if (arg.startsWith("-"))
+                    usage();
+                else
+                    files.add(new File(arg));
+            }
+        }
+        catch (Exception e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        if (files.isEmpty())
+            usage();
+        reader.setTimeRange(from, to);
+
+        int status = 0;
+        for (File file: files) {
+            try {
+                reader.read(file);
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+                status = 1;
+            }
+        }
+        System.out.flush();
+        System.exit(status);
+    }
+}
@@ -28,6 +28,17 @@ interface TraceConstants {
     /** Trace config string for level to output. */
     static final String CONFIG_THREAD_MODE = "threaded";
     
+    /** Trace config string for the number of events threaded mode can
+     * hold. */
+    static final String CONFIG_BUFFER_SIZE = "bufferSize";
+    
+    /** Trace config string for what threaded mode does when it is full:
+     * block, dropOldest or drop. */
+    static final String CONFIG_OVERFLOW = "overflow";
+    
+    /** Trace config string for how long Trace.flush waits. */
+    static final String CONFIG_FLUSH_TIMEOUT = "flushTimeout";
+    
     /** Trace config string for packages to include in log. */
     static final String CONFIG_INCL_PACKAGE = "include.package";
     
@@ -48,7 +59,19 @@ interface TraceConstants {
 
     /** Trace config string for file device type. */
     static final String CONFIG_DEVICE_TYPE_FILE = "file";
+
+    /** Trace config string for binary device type. */
+    static final String CONFIG_DEVICE_TYPE_BINARY = "binary";
     
     /** Trace config string for file name. */
     static final String CONFIG_FILE_NAME = "filename";
+
+    /** Trace config string for the bytes per binary segment file. */
+    static final String CONFIG_SEGMENT_SIZE = "segmentSize";
+
+    /** Trace config string for the most binary segment files to keep. */
+    static final String CONFIG_MAX_SEGMENTS = "maxSegments";
+
+    /** Trace config string: true to log each pmStart and pmStop at the PM level. */
+    static final String CONFIG_PROFILE_LOG = "profile.log";
 }
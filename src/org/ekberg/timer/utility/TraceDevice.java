@@ -4,7 +4,7 @@
 package org.ekberg.timer.utility;
 
 
-import java.util.StringTokenizer;
+import java.nio.CharBuffer;
 
 // ----------------------------------------------------------------------------
 /**
@@ -24,6 +24,15 @@ abstract class TraceDevice implements TraceConstants {
     /** Config prefix for this device. **/
     protected String configPrefix;
 
+    /** Writes the fields in front of each line. **/
+    private final TraceLayout layout;
+
+    /** The line being output. Reused for every event. **/
+    private final StringBuilder line = new StringBuilder(256);
+
+    /** line, as passed to outputChars. Reused for every event. **/
+    private CharBuffer lineBuffer = CharBuffer.allocate(256);
+
 
     // ------------------------------------------------------------------------
     /**
@@ -40,6 +49,7 @@ abstract class TraceDevice implements TraceConstants {
         this.name = name;
         this.filter = filter;
         configPrefix = CONFIG_PREFIX + name + ".";
+        layout = new TraceLayout(getFields());
     }
 
 
@@ -48,7 +58,8 @@ abstract class TraceDevice implements TraceConstants {
      * Creates a particular TraceDevice depending on the type.
      *
      * @param  type  the type of TraceDevice needed. Values are
-     * CONFIG_DEVICE_TYPE_STDOUT and CONFIG_DEVICE_TYPE_FILE.
+     * CONFIG_DEVICE_TYPE_STDOUT, CONFIG_DEVICE_TYPE_FILE and
+     * CONFIG_DEVICE_TYPE_BINARY.
      *
      * @param  name  user assigned name of the device.
      * @param  filter  TraceFilter object to filter events through.
@@ -63,6 +74,9 @@ abstract class TraceDevice implements TraceConstants {
         else if (type.equalsIgnoreCase(CONFIG_DEVICE_TYPE_FILE)) {
             traceDevice = new TraceDeviceFile(name, filter);
         }
+        else if (type.equalsIgnoreCase(CONFIG_DEVICE_TYPE_BINARY)) {
+            traceDevice = new TraceDeviceBinary(name, filter);
+        }
         else {
             // Default is to return a file type.
             traceDevice = new TraceDeviceFile(name, filter);
@@ -84,70 +98,120 @@ abstract class TraceDevice implements TraceConstants {
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * Determine whether this device uses the caller of a trace call, either
+     * to print it or to filter on it. If no device does, Trace does not look
+     * for the caller at all.
+     *
+     * @return
+     *   boolean - true if the caller is needed.
+     */
+    //-------------------------------------------------------------------------
+    boolean needsCaller() {
+        return filter == null || filter.needsCaller();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Go through the filter with the trace event.
+     *
+     *  @param  event  TraceEvent object.
+     *
+     * @return
+     *   boolean - true if the device should output the event.
+     */
+    // ------------------------------------------------------------------------
+    boolean isWanted(TraceEvent event) {
+        return filter == null || filter.isEventWanted(event);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the fields this device outputs. By default print all fields.
+     *
+     * @return
+     *   int - the TraceFilter.FIELD_ bits of the fields.
+     */
+    // ------------------------------------------------------------------------
+    int getFields() {
+        return filter == null ? TraceFilter.ALL_FIELDS : filter.getFields();
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * Sends the trace event output through the filter and if it passed the
-     * filter, calls the abstract outputString method.
+     * filter, calls outputChars once for each line of the message, with the
+     * layout's prefix in front. The line is built in a buffer that is reused
+     * for every event, so devices must not keep it.
      *
      *  @param  event  TraceEvent object.
      *
      *  @see TraceEvent
      */
     // ------------------------------------------------------------------------
-    void outputEvent(TraceEvent event) {
+    synchronized void outputEvent(TraceEvent event) {
         // Go through the filter.
-        if (filter != null) {
-            if (!filter.isEventWanted(event)) {
-                return;
-            }
-        }
-            
-        StringBuffer tracePrefix = new StringBuffer();
-        if (filter != null) {
-            if (filter.isFieldToPrint("timeStamp"))
-                tracePrefix.append(event.timeStamp + "|");
-            if (filter.isFieldToPrint("seqNumber"))
-                tracePrefix.append(event.seqNumber + "|");
-            if (filter.isFieldToPrint("packageName"))
-                tracePrefix.append(event.packageName + "|");
-            if (filter.isFieldToPrint("threadName"))
-                tracePrefix.append(event.threadName + "|");
-            if (filter.isFieldToPrint("basePackageName"))
-                tracePrefix.append(event.basePackageName + "|");
-            if (filter.isFieldToPrint("className"))
-                tracePrefix.append(event.className + "|");
-            if (filter.isFieldToPrint("fileName"))
-                tracePrefix.append(event.fileName + "|");
-            if (filter.isFieldToPrint("function"))
-                tracePrefix.append(event.function + "|");
-            if (filter.isFieldToPrint("lineNumber"))
-                tracePrefix.append(event.lineNumber + "|");
-            if (filter.isFieldToPrint("traceLevel"))
-                tracePrefix.append(event.traceLevel + "|");
-        }
-        else {
-            // By default print all fields.
-            tracePrefix.append(event.timeStamp + "|");
-            tracePrefix.append(event.seqNumber + "|");
-            tracePrefix.append(event.packageName + "|");
-            tracePrefix.append(event.threadName + "|");
-            tracePrefix.append(event.basePackageName + "|");
-            tracePrefix.append(event.className + "|");
-            tracePrefix.append(event.fileName + "|");
-            tracePrefix.append(event.function + "|");
-            tracePrefix.append(event.lineNumber + "|");
-            tracePrefix.append(event.traceLevel + "|");
-        }
-        
-        StringTokenizer st = new StringTokenizer(event.message, "\n");
-        if (!st.hasMoreTokens()) {
-            outputString(tracePrefix.toString());
-        }
-        else {
-            while (st.hasMoreTokens()) {
-                outputString(tracePrefix.toString() + st.nextToken());
+        if (!isWanted(event))
+            return;
+
+        line.setLength(0);
+        layout.appendPrefix(event, line);
+        int prefixLength = line.length();
+
+        // One line per non-empty piece of the message, or just the prefix.
+        String message = event.message;
+        int length = message.length();
+        boolean output = false;
+        for (int start = 0; start < length; ) {
+            int end = message.indexOf('\n', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                line.setLength(prefixLength);
+                line.append(message, start, end);
+                outputLine();
+                output = true;
             }
+            start = end + 1;
         }
+        if (!output)
+            outputLine();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy line to lineBuffer, growing it if needed, and pass it to
+     * outputChars.
+     */
+    // ------------------------------------------------------------------------
+    private void outputLine() {
+        int length = line.length();
+        if (lineBuffer.capacity() < length)
+            lineBuffer = CharBuffer.allocate(Math.max(length, lineBuffer.capacity() * 2));
+        lineBuffer.clear();
+        line.getChars(0, length, lineBuffer.array(), 0);
+        lineBuffer.limit(length);
+        outputChars(lineBuffer);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Output one line of trace to the physical device. By default this
+     * passes it to outputString; devices that can write the characters
+     * directly override it to save making a String.
+     *
+     *  @param  traceChars  the line, from its position to its limit. The
+     * buffer is reused after this returns.
+     */
+    // ------------------------------------------------------------------------
+    protected void outputChars(CharBuffer traceChars) {
+        outputString(traceChars.toString());
     }
 
 
@@ -160,6 +224,15 @@ abstract class TraceDevice implements TraceConstants {
      */
     protected abstract void outputString(String traceString);
 
+    // ------------------------------------------------------------------------
+    /**
+     * Write out anything the device is holding. Trace calls this after a
+     * batch of events and when the JVM exits. The default does nothing.
+     */
+    // ------------------------------------------------------------------------
+    void flush() {
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Returns the device name
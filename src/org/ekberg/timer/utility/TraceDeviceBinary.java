@@ -0,0 +1,556 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * This class implements a trace device that writes events in the binary
+ * format described in TraceBinaryFormat, to be read back with
+ * TraceBinaryReader. Names are written once per segment and then referred
+ * to by number, and times and sequence numbers are written as differences,
+ * so an event takes a fraction of the space of a line of text.
+ *<P>
+ * The events go to segment files named after trace.&lt;device&gt;.filename
+ * with a 6 digit segment number added: logs/timesheet.trb.000001,
+ * logs/timesheet.trb.000002 and so on. A new segment is started when the
+ * current one, trace.&lt;device&gt;.segmentSize bytes, is full, and only the
+ * newest trace.&lt;device&gt;.maxSegments segments are kept (0 keeps them
+ * all).
+ *<P>
+ * The records are collected in a buffer and written through the file's
+ * channel when it fills and when Trace flushes the device, after every
+ * batch of events. The files are not memory mapped: a mapping can not be
+ * released on demand, and Windows will not delete a mapped file.
+ *<P>
+ * The fields in trace.&lt;device&gt;.fields say which names are recorded;
+ * the time, sequence number, level and message always are.
+ *<P>
+ * As in ArchiveLog, errors are written to System.err, not Trace.
+ **/
+// ----------------------------------------------------------------------------
+class TraceDeviceBinary extends TraceDevice {
+    /** Default bytes per segment. */
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Smallest segment size. */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    /** Start a new segment once this many names have been written to one. */
+    private static final int MAX_STRINGS = 64 * 1024;
+
+    /** Bytes collected before they are written to the file. */
+    private static final int OUTPUT_SIZE = 64 * 1024;
+
+    /** Segment file names, without the segment number. */
+    private final String fileName;
+
+    /** Bytes per segment. */
+    private final int segmentSize;
+
+    /** Most segments to keep, 0 for all. */
+    private final int maxSegments;
+
+    /** The TraceFilter.FIELD_ bits of the names to record. */
+    private final int fields;
+
+    /** Number of the current segment, or of the last one if none is open. */
+    private int segmentNumber;
+
+    /** The current segment file, or null if none is open. */
+    private FileChannel channel;
+
+    /** Bytes of the current segment not yet written to the file. */
+    private final ByteBuffer out = ByteBuffer.allocate(OUTPUT_SIZE);
+
+    /** Bytes in the current segment, written or not. */
+    private int segmentUsed;
+
+    /** Ids of the names written to the current segment. */
+    private final HashMap<String,Integer> strings = new HashMap<String,Integer>();
+
+    /** Time of the previous event in the segment. */
+    private long lastTime;
+
+    /** Sequence number of the previous event in the segment. */
+    private long lastSeqNumber;
+
+    /** The record being built. */
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+
+    /** The message being encoded. */
+    private ByteBuffer text = ByteBuffer.allocate(1024);
+
+    /** Encodes the messages. */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** Set to false after the first error, to report only that one. */
+    private boolean firstTimeOutputError = true;
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * This constructor passes its arguments to its base class and then gets
+     * the config data for this specific type of trace device.
+     *
+     * @param  name  user assigned name of the device.
+     * @param  filter  TraceFilter object to filter events through.
+     *
+     * @see TraceDevice
+     */
+    // ---------------------------------------------------------------------
+    TraceDeviceBinary(String name, TraceFilter filter) {
+        super(name, filter);
+
+        fileName = System.getProperty(Config.APP_HOME, "") + File.separator +
+                    Config.getString(configPrefix + CONFIG_FILE_NAME, name + ".trb");
+        segmentSize = Math.max(MIN_SEGMENT_SIZE,
+                    Config.getInt(configPrefix + CONFIG_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE));
+        maxSegments = Config.getInt(configPrefix + CONFIG_MAX_SEGMENTS, 0);
+        fields = getFields();
+
+        File dir = new File(fileName).getParentFile();
+        if (dir != null && !dir.isDirectory())
+            dir.mkdirs();
+        // Carry on after the segments of earlier runs.
+        TreeMap<Integer,File> segments = listSegments();
+        segmentNumber = segments.isEmpty() ? 0 : segments.lastKey().intValue();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("Trace binary close") {
+                public void run() {
+                    close();
+                }
+            });
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the event if it passes the filter.
+     *
+     *  @param  event  TraceEvent object.
+     */
+    // ------------------------------------------------------------------------
+    synchronized void outputEvent(TraceEvent event) {
+        if (!isWanted(event))
+            return;
+        try {
+            write(event);
+        }
+        catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the collected records to the file.
+     */
+    // ------------------------------------------------------------------------
+    synchronized void flush() {
+        if (channel == null)
+            return;
+        try {
+            writeOut();
+        }
+        catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Give up on the current segment after a write failed. The next event
+     * starts a new one.
+     *
+     * @param  e  the failure.
+     */
+    // ------------------------------------------------------------------------
+    private void writeFailed(IOException e) {
+        closeSegment();
+        if (firstTimeOutputError) {
+            System.err.println("TraceDeviceBinary: unable to write to " +
+                        fileName + ": " + e);
+            firstTimeOutputError = false;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a string as the message of an event at the runtime level.
+     *
+     *  @param  traceString  the message.
+     */
+    // ------------------------------------------------------------------------
+    protected void outputString(String traceString) {
+        outputEvent(new TraceEvent(RUNTIME_LEVEL, traceString, (String)null));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write out the segment and close it. The next event starts a new one.
+     */
+    // ------------------------------------------------------------------------
+    synchronized void close() {
+        closeSegment();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an event, with the names it uses that are new to the segment.
+     * If it does not fit, the segment is finished and the event goes at the
+     * start of a new one.
+     *
+     * @param  event  the event.
+     *
+     * @throws IOException  if the segment can not be written.
+     */
+    // ------------------------------------------------------------------------
+    private void write(TraceEvent event) throws IOException {
+        encodeMessage(event.message);
+        // Keep every event well within an empty segment.
+        if (text.remaining() > segmentSize / 2)
+            text.limit(segmentSize / 2);
+        if (channel == null || strings.size() >= MAX_STRINGS)
+            openSegment(event);
+        encodeEvent(event);
+        if (record.position() >= segmentSize - segmentUsed) {
+            // No room for the record and the end marker. Start again in a
+            // new segment, which also forgets the names just added.
+            openSegment(event);
+            encodeEvent(event);
+        }
+        record.flip();
+        put(record);
+        lastTime = event.time;
+        lastSeqNumber = event.seqNumber;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add bytes to the current segment. They are collected in out, except
+     * for a record too big for it, which is written straight to the file.
+     *
+     * @param  bytes  the bytes, from position to limit.
+     *
+     * @throws IOException  if the segment can not be written.
+     */
+    // ------------------------------------------------------------------------
+    private void put(ByteBuffer bytes) throws IOException {
+        segmentUsed += bytes.remaining();
+        if (bytes.remaining() > out.remaining()) {
+            writeOut();
+            if (bytes.remaining() > out.remaining()) {
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+                return;
+            }
+        }
+        out.put(bytes);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the bytes collected in out to the file. If that fails, out keeps
+     * the bytes that were not written.
+     *
+     * @throws IOException  if the segment can not be written.
+     */
+    // ------------------------------------------------------------------------
+    private void writeOut() throws IOException {
+        out.flip();
+        try {
+            while (out.hasRemaining())
+                channel.write(out);
+        }
+        finally {
+            out.compact();
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Build the record for an event in record, including the string records
+     * for any names that are new to the segment.
+     *
+     * @param  event  the event; its message is already in text.
+     */
+    // ------------------------------------------------------------------------
+    private void encodeEvent(TraceEvent event) {
+        record.clear();
+        long thread = 0;
+        long packageName = 0;
+        long className = 0;
+        long function = 0;
+        long file = 0;
+        long line = 0;
+        if ((fields & TraceFilter.FIELD_THREAD_NAME) != 0)
+            thread = intern(event.threadName);
+        if ((fields & (TraceFilter.FIELD_PACKAGE_NAME | TraceFilter.FIELD_BASE_PACKAGE_NAME)) != 0)
+            packageName = intern(event.getPackageName());
+        if ((fields & TraceFilter.FIELD_CLASS_NAME) != 0)
+            className = intern(event.getClassName());
+        if ((fields & TraceFilter.FIELD_FUNCTION) != 0)
+            function = intern(event.getFunction());
+        if ((fields & TraceFilter.FIELD_FILE_NAME) != 0)
+            file = intern(event.getFileName());
+        if ((fields & TraceFilter.FIELD_LINE_NUMBER) != 0)
+            line = event.getLineNumber();
+
+        int length = text.remaining();
+        ensureRoom(8 * TraceBinaryFormat.MAX_VARINT_SIZE + length);
+        record.put(TraceBinaryFormat.RECORD_EVENT);
+        // The body length goes in front, once it is known. Leave room for a
+        // two byte varint, which is enough for most events.
+        int lengthAt = record.position();
+        record.position(lengthAt + 2);
+        int bodyAt = record.position();
+        TraceBinaryFormat.putVarLong(record, event.traceLevel);
+        TraceBinaryFormat.putSignedVarLong(record, event.time - lastTime);
+        TraceBinaryFormat.putSignedVarLong(record, event.seqNumber - lastSeqNumber);
+        TraceBinaryFormat.putVarLong(record, thread);
+        TraceBinaryFormat.putVarLong(record, packageName);
+        TraceBinaryFormat.putVarLong(record, className);
+        TraceBinaryFormat.putVarLong(record, function);
+        TraceBinaryFormat.putVarLong(record, file);
+        TraceBinaryFormat.putVarLong(record, line);
+        TraceBinaryFormat.putVarLong(record, length);
+        record.put(text.array(), text.position(), length);
+        int end = record.position();
+
+        int bodyLength = end - bodyAt;
+        if (bodyLength < 0x4000) {
+            record.put(lengthAt, (byte)((bodyLength & 0x7F) | 0x80));
+            record.put(lengthAt + 1, (byte)(bodyLength >>> 7));
+        }
+        else {
+            // Longer than two bytes can say: move the body along.
+            ByteBuffer header = ByteBuffer.allocate(TraceBinaryFormat.MAX_VARINT_SIZE);
+            TraceBinaryFormat.putVarLong(header, bodyLength);
+            int shift = header.position() - 2;
+            System.arraycopy(record.array(), bodyAt, record.array(), bodyAt + shift, bodyLength);
+            System.arraycopy(header.array(), 0, record.array(), lengthAt, header.position());
+            end += shift;
+        }
+        record.position(end);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the id of a name in the current segment, adding a string record to
+     * record if the name is new.
+     *
+     * @param  value  the name, may be null.
+     *
+     * @return
+     *   int - the id, 0 for null.
+     */
+    // ------------------------------------------------------------------------
+    private int intern(String value) {
+        if (value == null)
+            return 0;
+        Integer id = strings.get(value);
+        if (id != null)
+            return id.intValue();
+        int newId = strings.size() + 1;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRoom(1 + 2 * TraceBinaryFormat.MAX_VARINT_SIZE + bytes.length);
+        record.put(TraceBinaryFormat.RECORD_STRING);
+        TraceBinaryFormat.putVarLong(record, newId);
+        TraceBinaryFormat.putVarLong(record, bytes.length);
+        record.put(bytes);
+        strings.put(value, Integer.valueOf(newId));
+        return newId;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode a message into text, growing it as needed.
+     *
+     * @param  message  the message.
+     */
+    // ------------------------------------------------------------------------
+    private void encodeMessage(String message) {
+        CharBuffer chars = CharBuffer.wrap(message);
+        text.clear();
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, text, true);
+            if (!result.isOverflow())
+                break;
+            ByteBuffer bigger = ByteBuffer.allocate(text.capacity() * 2);
+            text.flip();
+            bigger.put(text);
+            text = bigger;
+        }
+        text.flip();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Make room in record.
+     *
+     * @param  bytes  the number of bytes that are about to be added.
+     */
+    // ------------------------------------------------------------------------
+    private void ensureRoom(int bytes) {
+        if (record.remaining() >= bytes)
+            return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2,
+                    record.position() + bytes));
+        record.flip();
+        bigger.put(record);
+        record = bigger;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start the next segment, with the event as its first.
+     *
+     * @param  event  the first event.
+     *
+     * @throws IOException  if the segment can not be created.
+     */
+    // ------------------------------------------------------------------------
+    private void openSegment(TraceEvent event) throws IOException {
+        closeSegment();
+        segmentNumber++;
+        File file = segmentFile(segmentNumber);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        out.clear();
+        out.putInt(TraceBinaryFormat.MAGIC);
+        out.putLong(event.time);
+        out.putLong(event.seqNumber);
+        segmentUsed = TraceBinaryFormat.HEADER_SIZE;
+        lastTime = event.time;
+        lastSeqNumber = event.seqNumber;
+        strings.clear();
+        deleteOldSegments();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish the current segment, if there is one: write out the rest of
+     * it and the end marker, force it to the disk and close it.
+     */
+    // ------------------------------------------------------------------------
+    private void closeSegment() {
+        if (channel == null)
+            return;
+        try {
+            // write left room in the segment for the end marker.
+            if (!out.hasRemaining())
+                writeOut();
+            out.put(TraceBinaryFormat.RECORD_END);
+            writeOut();
+            channel.force(false);
+        }
+        catch (IOException e) {
+            System.err.println("TraceDeviceBinary: unable to close " +
+                        segmentFile(segmentNumber) + ": " + e);
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {}
+        }
+        channel = null;
+        out.clear();
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the oldest segments, keeping maxSegments.
+     */
+    // ------------------------------------------------------------------------
+    private void deleteOldSegments() {
+        if (maxSegments <= 0)
+            return;
+        TreeMap<Integer,File> segments = listSegments();
+        while (segments.size() > maxSegments) {
+            File oldest = segments.pollFirstEntry().getValue();
+            if (!oldest.delete())
+                System.err.println("TraceDeviceBinary: unable to delete " + oldest);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the segment files.
+     *
+     * @return
+     *   TreeMap<Integer,File> - the files by segment number.
+     */
+    // ------------------------------------------------------------------------
+    private TreeMap<Integer,File> listSegments() {
+        return TraceBinaryReader.listSegments(new File(fileName));
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the file of a segment.
+     *
+     * @param  number  the segment number.
+     *
+     * @return
+     *   File - the file.
+     */
+    // ------------------------------------------------------------------------
+    private File segmentFile(int number) {
+        return new File(fileName + "." + String.format("%06d", Integer.valueOf(number)));
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for TraceDeviceBinary.
+     *
+     * @return
+     *   String - nicely formatted for debugging.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "TraceDeviceBinary[" +
+                    "name=" + name +
+                    ", fileName=" + fileName +
+                    ", segmentNumber=" + segmentNumber +
+                    ", segmentSize=" + segmentSize +
+                    ", maxSegments=" + maxSegments +
+                    "]";
+    }
+}
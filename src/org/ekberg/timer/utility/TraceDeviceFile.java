@@ -5,6 +5,7 @@ package org.ekberg.timer.utility;
 
 
 import java.io.File;
+import java.nio.CharBuffer;
 
 
 // ----------------------------------------------------------------------------
@@ -55,4 +56,26 @@ class TraceDeviceFile extends TraceDevice {
     public void outputString(String traceStr) {
         archive.outputString(traceStr);
     }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Send the trace characters to the file without making a String.
+     *
+     * @param traceChars  the trace line to be written.
+     **/
+    // ---------------------------------------------------------------------
+    protected void outputChars(CharBuffer traceChars) {
+        archive.outputChars(traceChars);
+    }
+
+
+    // ---------------------------------------------------------------------
+    /**
+     * Write out anything the archive log is holding.
+     **/
+    // ---------------------------------------------------------------------
+    void flush() {
+        archive.flush();
+    }
 }
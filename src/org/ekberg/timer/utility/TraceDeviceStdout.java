@@ -36,4 +36,14 @@ class TraceDeviceStdout extends TraceDevice {
     public void outputString(String traceStr) {
         System.out.println(traceStr);
     }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Flush standard out.
+     */
+    //-------------------------------------------------------------------------
+    void flush() {
+        System.out.flush();
+    }
 }
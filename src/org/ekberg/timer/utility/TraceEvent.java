@@ -4,15 +4,20 @@
 package org.ekberg.timer.utility;
 
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 // ----------------------------------------------------------------------------
 /**
  * This class contains the data associated with one occurrence of a trace call
  * in a program.
+ *<P>
+ * The caller (class, function, file and line) is kept as the stack frame it
+ * came from and only turned into strings the first time a device asks for
+ * one of them. Events created without a caller have empty caller fields.
  **/
 // ----------------------------------------------------------------------------
 public class TraceEvent implements Serializable {
@@ -24,6 +29,9 @@ public class TraceEvent implements Serializable {
 
     /** Time when this event was created. */
     String timeStamp;
+
+    /** Time when this event was created, in milliseconds since 1970. */
+    long time;
     
     /** Name of the current thread. */
     String threadName;
@@ -36,29 +44,33 @@ public class TraceEvent implements Serializable {
     String message;
 
     /** A line number from a stack trace. */
-    int lineNumber;
+    private int lineNumber;
 
     /** A Java file name from a stack trace.*/
-    String fileName;
+    private String fileName;
 
     /** A Java function (method) name from a stack trace. */
-    String function;
+    private String function;
 
     /** A Java Class name from a stack trace. */
-    String className;
+    private String className;
 
     /** The full package name from a stack trace. */
-    String packageName;
+    private String packageName;
 
     /** Same as packageName, except one level up. */
-    String basePackageName;
+    private String basePackageName;
     
-    /** Used to initialize SeqNumber to a unique value. */
-    private static long nextSeqNumber = 1;
+    /** Where the caller fields come from: a StackWalker.StackFrame, a
+     * StackTraceElement, a stack line String or null. Cleared once the
+     * fields have been filled in. */
+    private transient Object caller;
 
-    private static final String dateFormatString = "MM/dd|HH:mm:ss.SSS";
-    
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat(dateFormatString);
+    /** True once the caller fields have been filled in. */
+    private volatile boolean resolved;
+
+    /** Used to initialize SeqNumber to a unique value. */
+    private static final AtomicLong nextSeqNumber = new AtomicLong(1);
 
 
     // ------------------------------------------------------------------------
@@ -71,17 +83,149 @@ public class TraceEvent implements Serializable {
      **/
     // ------------------------------------------------------------------------
     public TraceEvent(int traceLevel, String message, String stackLine) {
+        this(traceLevel, message, (Object)stackLine);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a TraceEvent whose caller is a stack frame.
+     *
+     * @param  traceLevel  trace level for this trace event.
+     * @param  message  string to trace.
+     * @param  frame  the caller's frame, or null if no device needs it.
+     **/
+    // ------------------------------------------------------------------------
+    public TraceEvent(int traceLevel, String message, StackWalker.StackFrame frame) {
+        this(traceLevel, message, (Object)frame);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a TraceEvent whose caller is an element of an exception's stack
+     * trace.
+     *
+     * @param  traceLevel  trace level for this trace event.
+     * @param  message  string to trace.
+     * @param  element  the caller's stack trace element, or null.
+     **/
+    // ------------------------------------------------------------------------
+    public TraceEvent(int traceLevel, String message, StackTraceElement element) {
+        this(traceLevel, message, (Object)element);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Common part of the constructors.
+     *
+     * @param  traceLevel  trace level for this trace event.
+     * @param  message  string to trace.
+     * @param  caller  see the caller field.
+     **/
+    // ------------------------------------------------------------------------
+    TraceEvent(int traceLevel, String message, Object caller) {
+        set(traceLevel, message, caller);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create an empty event, to be filled in by set. Used by TraceRing,
+     * which reuses its events.
+     **/
+    // ------------------------------------------------------------------------
+    TraceEvent() {
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Fill in this event, replacing anything it held before. A null message
+     * clears the event without stamping it.
+     *
+     * @param  traceLevel  trace level for this trace event.
+     * @param  message  string to trace.
+     * @param  caller  see the caller field.
+     **/
+    // ------------------------------------------------------------------------
+    void set(int traceLevel, String message, Object caller) {
         this.traceLevel = traceLevel;
         this.message = message;
-        timeStamp = dateFormat.format(new Date());
-        if (timeStamp.length() > dateFormatString.length())
-            timeStamp = timeStamp.substring(0, dateFormatString.length());
-        seqNumber = nextSeqNumber++;
-        parseStackLine(stackLine);
+        this.caller = caller;
+        packageName = null;
+        basePackageName = null;
+        resolved = false;
+        if (message == null) {
+            threadName = null;
+            return;
+        }
+        time = System.currentTimeMillis();
+        timeStamp = TraceTimeStamp.format(time);
+        seqNumber = nextSeqNumber.getAndIncrement();
         threadName = Thread.currentThread().getName();
     }
 
 
+    // ------------------------------------------------------------------------
+    /**
+     * Fill in the caller fields from the caller, if that has not been done
+     * yet.
+     **/
+    // ------------------------------------------------------------------------
+    private void resolve() {
+        if (resolved)
+            return;
+        synchronized (this) {
+            if (resolved)
+                return;
+            lineNumber = 0;
+            fileName   = "";
+            function   = "";
+            className  = "";
+            if (caller instanceof StackWalker.StackFrame) {
+                StackWalker.StackFrame frame = (StackWalker.StackFrame)caller;
+                setCaller(frame.getClassName(), frame.getMethodName(),
+                            frame.getFileName(), frame.getLineNumber());
+            }
+            else if (caller instanceof StackTraceElement) {
+                StackTraceElement element = (StackTraceElement)caller;
+                setCaller(element.getClassName(), element.getMethodName(),
+                            element.getFileName(), element.getLineNumber());
+            }
+            else if (caller instanceof String) {
+                parseStackLine((String)caller);
+            }
+            caller = null;
+            resolved = true;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the caller fields from the parts of a stack frame.
+     *
+     * @param  fullClassName  the class name, including the package.
+     * @param  method  the method name.
+     * @param  file  the source file name, or null if unknown.
+     * @param  line  the line number, or a negative number if unknown.
+     **/
+    // ------------------------------------------------------------------------
+    private void setCaller(String fullClassName, String method, String file, int line) {
+        function = method;
+        fileName = file == null ? "" : file;
+        lineNumber = line < 0 ? 0 : line;
+        int startClassName = fullClassName.lastIndexOf('.');
+        className = fullClassName.substring(startClassName + 1);
+        if (startClassName > 0) {
+            packageName = fullClassName.substring(0, startClassName);
+            basePackageName = packageName.substring(packageName.lastIndexOf('.') + 1);
+        }
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * Breaks the given line into a class name, line number, function, etc.
@@ -96,11 +240,6 @@ public class TraceEvent implements Serializable {
         // indexing exceptions on the string class rather than handling every
         // error.
 
-        lineNumber = 0;
-        fileName   = "";
-        function   = "";
-        className  = "";
-        
         try {
             // First, start at the end of the string and search
             // backwards to capture the line number.
@@ -154,6 +293,106 @@ public class TraceEvent implements Serializable {
     }
 
 
+    //-------------------------------------------------------------------------
+    /**
+     * Get the caller's line number.
+     *
+     * @return
+     *   int - the line number, 0 if unknown.
+     */
+    //-------------------------------------------------------------------------
+    int getLineNumber() {
+        resolve();
+        return lineNumber;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the caller's source file name.
+     *
+     * @return
+     *   String - the file name, empty if unknown.
+     */
+    //-------------------------------------------------------------------------
+    String getFileName() {
+        resolve();
+        return fileName;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the caller's function (method) name.
+     *
+     * @return
+     *   String - the function name, empty if unknown.
+     */
+    //-------------------------------------------------------------------------
+    String getFunction() {
+        resolve();
+        return function;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the caller's class name, without the package.
+     *
+     * @return
+     *   String - the class name, empty if unknown.
+     */
+    //-------------------------------------------------------------------------
+    String getClassName() {
+        resolve();
+        return className;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the caller's package name.
+     *
+     * @return
+     *   String - the package name, null if unknown.
+     */
+    //-------------------------------------------------------------------------
+    String getPackageName() {
+        resolve();
+        return packageName;
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Get the last part of the caller's package name.
+     *
+     * @return
+     *   String - the base package name, null if unknown.
+     */
+    //-------------------------------------------------------------------------
+    String getBasePackageName() {
+        resolve();
+        return basePackageName;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Fill in the caller fields before writing, since the stack frame can
+     * not be serialized.
+     *
+     * @param  out  the stream to write to.
+     *
+     * @throws IOException
+     **/
+    // ------------------------------------------------------------------------
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        resolve();
+        out.defaultWriteObject();
+    }
+
+
     // ------------------------------------------------------------------------
     /**
      * This main acts as a little test program.
@@ -5,28 +5,91 @@ package org.ekberg.timer.utility;
 
 
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 
 // ----------------------------------------------------------------------------
 /**
  * This class contains the trace filter.
+ *<P>
+ * The include and exclude lists are read once, into hash sets, and the
+ * fields to print into a bit mask, so that filtering an event takes a few
+ * hash lookups and printing a field is a bit test. Packages are matched by
+ * their last part (the basePackageName), classes by their name without the
+ * package.
  *
  * @see org.ekberg.meth.utility.Trace
  **/
 // ----------------------------------------------------------------------------
 class TraceFilter implements TraceConstants {
+    /** Field bit: the time the event was created. */
+    static final int FIELD_TIME_STAMP = 1 << 0;
 
-    private static final String PACKAGE  = "Package";
-    private static final String CLASS  = "Class";
-    private static final String FIELD  = "Field";
+    /** Field bit: the event's sequence number. */
+    static final int FIELD_SEQ_NUMBER = 1 << 1;
 
-    /** Collection of included names. */
-    private HashMap<String,LinkedList<String>> includeMap = null;
+    /** Field bit: the caller's package. */
+    static final int FIELD_PACKAGE_NAME = 1 << 2;
 
-    /** Collection of excluded names. */
-    private HashMap<String,LinkedList<String>> excludeMap = null;
+    /** Field bit: the calling thread. */
+    static final int FIELD_THREAD_NAME = 1 << 3;
+
+    /** Field bit: the last part of the caller's package. */
+    static final int FIELD_BASE_PACKAGE_NAME = 1 << 4;
+
+    /** Field bit: the caller's class. */
+    static final int FIELD_CLASS_NAME = 1 << 5;
+
+    /** Field bit: the caller's source file. */
+    static final int FIELD_FILE_NAME = 1 << 6;
+
+    /** Field bit: the caller's method. */
+    static final int FIELD_FUNCTION = 1 << 7;
+
+    /** Field bit: the caller's line number. */
+    static final int FIELD_LINE_NUMBER = 1 << 8;
+
+    /** Field bit: the event's trace level. */
+    static final int FIELD_TRACE_LEVEL = 1 << 9;
+
+    /** Every field, in the order they are printed. */
+    static final int ALL_FIELDS = (1 << 10) - 1;
+
+    /** The fields that come from the caller of a trace call. */
+    static final int CALLER_FIELDS = FIELD_PACKAGE_NAME | FIELD_BASE_PACKAGE_NAME |
+                FIELD_CLASS_NAME | FIELD_FILE_NAME | FIELD_FUNCTION | FIELD_LINE_NUMBER;
+
+    /** Field names, as used in the trace.*.fields property, and their bits. */
+    private static final Map<String,Integer> FIELD_BITS = new HashMap<String,Integer>();
+    static {
+        FIELD_BITS.put("timeStamp", FIELD_TIME_STAMP);
+        FIELD_BITS.put("seqNumber", FIELD_SEQ_NUMBER);
+        FIELD_BITS.put("packageName", FIELD_PACKAGE_NAME);
+        FIELD_BITS.put("threadName", FIELD_THREAD_NAME);
+        FIELD_BITS.put("basePackageName", FIELD_BASE_PACKAGE_NAME);
+        FIELD_BITS.put("className", FIELD_CLASS_NAME);
+        FIELD_BITS.put("fileName", FIELD_FILE_NAME);
+        FIELD_BITS.put("function", FIELD_FUNCTION);
+        FIELD_BITS.put("lineNumber", FIELD_LINE_NUMBER);
+        FIELD_BITS.put("traceLevel", FIELD_TRACE_LEVEL);
+    }
+
+    /** Included base package names, null if none. */
+    private HashSet<String> includePackages = null;
+
+    /** Included class names, null if none. */
+    private HashSet<String> includeClasses = null;
+
+    /** Excluded base package names, null if none. */
+    private HashSet<String> excludePackages = null;
+
+    /** Excluded class names, null if none. */
+    private HashSet<String> excludeClasses = null;
+
+    /** The FIELD_ bits of the fields to print. */
+    private int fields = ALL_FIELDS;
 
     /** Trace level. */
     private int level = 0;
@@ -44,34 +107,27 @@ class TraceFilter implements TraceConstants {
      **/
     // ------------------------------------------------------------------------
     TraceFilter(String destToken) {
-        includeMap = new HashMap<String,LinkedList<String>>();
-        excludeMap = new HashMap<String,LinkedList<String>>();
-        
         String prefix = CONFIG_PREFIX + destToken + ".";
-        String workStr;
         
         // Get and set the trace level.
         level = Config.getInt(prefix + CONFIG_LEVEL, RUNTIME_LEVEL);
 
-        // Get and set the included packages.
-        workStr = Config.getString(prefix + CONFIG_INCL_PACKAGE);
-        setIncludeContain(workStr, PACKAGE);
+        includePackages = getNames(Config.getString(prefix + CONFIG_INCL_PACKAGE));
+        includeClasses = getNames(Config.getString(prefix + CONFIG_INCL_CLASS));
+        excludePackages = getNames(Config.getString(prefix + CONFIG_EXCL_PACKAGE));
+        excludeClasses = getNames(Config.getString(prefix + CONFIG_EXCL_CLASS));
 
-        // Get and set the included classes.
-        workStr = Config.getString(prefix + CONFIG_INCL_CLASS);
-        setIncludeContain(workStr, CLASS);
-
-        // Get and set the excluded packages.
-        workStr = Config.getString(prefix + CONFIG_EXCL_PACKAGE);
-        setExcludeContain(workStr, PACKAGE);
-
-        // Get and set the excluded classes.
-        workStr = Config.getString(prefix + CONFIG_EXCL_CLASS);
-        setExcludeContain(workStr, CLASS);
-
-        // Get and set the included fields.
-        workStr = Config.getString(prefix + CONFIG_INCL_FIELD);
-        setIncludeContain(workStr, FIELD);
+        // Get and set the included fields. No list means all of them.
+        String workStr = Config.getString(prefix + CONFIG_INCL_FIELD);
+        if (workStr != null) {
+            fields = 0;
+            StringTokenizer stName = new StringTokenizer(workStr, " ");
+            while (stName.hasMoreTokens()) {
+                Integer bit = FIELD_BITS.get(stName.nextToken());
+                if (bit != null)
+                    fields |= bit.intValue();
+            }
+        }
     }
 
 
@@ -107,320 +163,124 @@ class TraceFilter implements TraceConstants {
         // Next, override filtering for error cases.
         if (event.traceLevel <= Trace.ERROR)
             return true;
-        
-        // Now check for include/exclude lists.
-        boolean outputFlag      = true;
-        boolean packageExcluded = false;
-        boolean classExcluded   = false;
-        boolean packageIncluded = true;
-
-        if ((getExclude(PACKAGE) != null) && (isInExcludePackage(event))) {
-            // The package is excluded.
-            packageExcluded = true;
-        }
 
-        if ((getExclude(CLASS) != null) && (isInExcludeClass(event))) {
-            // The class is excluded.
-            classExcluded = true;
-        }
-
-        if ((getInclude(PACKAGE) != null) && (getInclude(PACKAGE).size() > 0)) {
-            if (!isInIncludePackage(event)) {
-                // The package is not included.
-                packageIncluded = false;
-            }
-        }
-
-        if ((getInclude(CLASS) == null) || 
-                ((getInclude(CLASS) != null) && (getInclude(CLASS).size() == 0))) {
+        if (includeClasses == null) {
             // The include list is empty, all classes are included except
             // packages/classes specified in the excluding list.
-            if (classExcluded || packageExcluded)
-                outputFlag = false;
-            else
-                outputFlag = true;
-        }
-        else {
-            if (isInIncludeClass(event) || packageIncluded) {
-                // The class is included.
-                outputFlag = true;
-            }
-            else {
-                // The class is not included.
-                outputFlag = false;
-            }
-        }
-
-        return outputFlag;
-    }
-
-
-    // ------------------------------------------------------------------------
-    /**
-     * Go through the filter with the field name.
-     *
-     * @param  field  field name
-     *
-     * @return 
-     *   boolean - true if the field name is in the list, false otherwise.
-     **/
-    // ------------------------------------------------------------------------
-    boolean isFieldToPrint(String field) {
-        LinkedList nameList;
-        int i;
-        String name;
-        boolean flag;
-
-        flag = false;
-
-        // Check the FIELD include list.
-        nameList = getInclude(FIELD);
-        if (nameList != null) {
-            for (i = 0; i < nameList.size(); i++) {
-                name = (String)nameList.get(i);
-                if (name.equals(field)) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        else {
-            // Null field list -- include them all.
-            flag = true;
+            return !(contains(excludePackages, event.getBasePackageName()) ||
+                        contains(excludeClasses, event.getClassName()));
         }
 
-        return flag;
-    }
-
-
-    // ------------------------------------------------------------------------
-    /**
-     * Set the trace level.
-     *
-     * @param  traceLevel  the new trace level.
-     **/
-    // ------------------------------------------------------------------------
-    void setTraceLevel(int traceLevel) {
-        level = traceLevel;
+        // An included class, or any class when no packages are included.
+        return includeClasses.contains(event.getClassName()) ||
+                    includePackages == null ||
+                    includePackages.contains(event.getBasePackageName());
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Get the trace level.
+     * Get the fields to print.
      *
-     * @return  level  trace level.
+     * @return
+     *   int - the FIELD_ bits of the fields.
      **/
     // ------------------------------------------------------------------------
-    int getTraceLevel() {
-        return (level);
+    int getFields() {
+        return fields;
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Put all included class/package names in the linked list.
+     * Go through the filter with the field name.
      *
-     * @param  nameStr  class/package names.
-     * @param  typeStr  class/package.
-     **/
-    // ------------------------------------------------------------------------
-    private void setIncludeContain(String nameStr, String typeStr) {
-        String nameToken;
-
-        if (nameStr != null) {
-            StringTokenizer stName = new StringTokenizer(nameStr, " ");
-            LinkedList<String> nameList = new LinkedList<String>();
-            while (stName.hasMoreTokens()) {
-                nameToken = stName.nextToken();
-                nameList.addLast(nameToken);
-            }
-            includeMap.put(typeStr, nameList);
-        }
-    }
-
-
-    // ------------------------------------------------------------------------
-    /**
-     * Put all excluded class/package names in the linked list.
+     * @param  field  field name
      *
-     * @param  nameStr  class/package names.
-     * @param  typeStr  class/package.
+     * @return 
+     *   boolean - true if the field name is in the list, false otherwise.
      **/
     // ------------------------------------------------------------------------
-    private void setExcludeContain(String nameStr, String typeStr) {
-        String nameToken;
-
-        if (nameStr != null) {
-            StringTokenizer stName = new StringTokenizer(nameStr, " ");
-            LinkedList<String> nameList = new LinkedList<String>();
-            while (stName.hasMoreTokens()) {
-                nameToken = stName.nextToken();
-                nameList.addLast(nameToken);
-            }
-            excludeMap.put(typeStr, nameList);
-        }
+    boolean isFieldToPrint(String field) {
+        Integer bit = FIELD_BITS.get(field);
+        return bit != null && (fields & bit.intValue()) != 0;
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Get included names from include map
-     *
-     * @param  type  type associated with this list.
+     * Determine whether the caller of a trace call is needed: either one of
+     * the caller fields is printed, or events are filtered by package or
+     * class.
      *
      * @return
-     *   nameList - list of included specified type.
+     *   boolean - true if the caller is needed.
      **/
     // ------------------------------------------------------------------------
-    private LinkedList getInclude(String type) {
-        return ((LinkedList)includeMap.get(type));
+    boolean needsCaller() {
+        return includePackages != null || includeClasses != null ||
+                    excludePackages != null || excludeClasses != null ||
+                    (fields & CALLER_FIELDS) != 0;
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Get excluded names from exclude map.
-     *
-     * @param  type  type associated with this list.
-     *
-     * @return 
-     *   nameList - list of excluded specified type.
-     **/
-    // ------------------------------------------------------------------------
-    private LinkedList getExclude(String type) {
-        return ((LinkedList)excludeMap.get(type));
-    }
-
-
-    // ------------------------------------------------------------------------
-    /**
-     * Go through the filter with the trace event.
-     *
-     * @param  event  trace event.
+     * Set the trace level.
      *
-     * @return
-     *   boolean - true if the name is in the list, false otherwise.
+     * @param  traceLevel  the new trace level.
      **/
     // ------------------------------------------------------------------------
-    private boolean isInIncludePackage(TraceEvent event) {
-        LinkedList nameList;
-        int i;
-        String name;
-        boolean flag;
-
-        flag = false;
-
-        // Check the PACKAGE include list.
-        nameList = getInclude(PACKAGE);
-        if (nameList != null) {
-            for (i = 0; i < nameList.size(); i++) {
-                name = (String)nameList.get(i);
-                if (name.equals(event.basePackageName)) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        return flag;
+    void setTraceLevel(int traceLevel) {
+        level = traceLevel;
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Go through the filter with the trace event.
-     *
-     * @param  event  trace event.
+     * Get the trace level.
      *
-     * @return
-     *   boolean - true if the name is in the list, false otherwise.
+     * @return  level  trace level.
      **/
     // ------------------------------------------------------------------------
-    private boolean isInIncludeClass(TraceEvent event) {
-        LinkedList nameList;
-        int i;
-        String name;
-        boolean flag;
-
-        flag = false;
-
-        // Check the CLASS include list.
-        nameList = getInclude(CLASS);
-        if (nameList != null) {
-            for (i = 0; i < nameList.size(); i++) {
-                name = (String)nameList.get(i);
-                if (name.equals(event.className)) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        return flag;
+    int getTraceLevel() {
+        return (level);
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Go through the filter with the trace event.
+     * Split a list of class/package names.
      *
-     * @param  event  trace event.
+     * @param  nameStr  class/package names, separated by spaces.
      *
      * @return
-     *   boolean - true if the name is in the list, false otherwise.
+     *   HashSet<String> - the names, or null if there are none.
      **/
     // ------------------------------------------------------------------------
-    private boolean isInExcludePackage(TraceEvent event) {
-        LinkedList nameList;
-        int i;
-        String name;
-        boolean flag;
-
-        flag = false;
-
-        // Check the PACKAGE exclude list.
-        nameList = getExclude(PACKAGE);
-        if (nameList != null) {
-            for (i = 0; i < nameList.size(); i++) {
-                name = (String)nameList.get(i);
-                if (name.equals(event.basePackageName)) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        return flag;
+    private static HashSet<String> getNames(String nameStr) {
+        if (nameStr == null)
+            return null;
+        HashSet<String> names = new HashSet<String>();
+        StringTokenizer stName = new StringTokenizer(nameStr, " ");
+        while (stName.hasMoreTokens())
+            names.add(stName.nextToken());
+        return names.isEmpty() ? null : names;
     }
 
 
     // ------------------------------------------------------------------------
     /**
-     * Go through the filter with the trace event.
+     * Look a name up in a set.
      *
-     * @param  event  trace event.
+     * @param  names  the set, may be null.
+     * @param  name  the name, may be null.
      *
      * @return
-     *   boolean - true if the name is in the list, false otherwise.
+     *   boolean - true if the name is in the set.
      **/
     // ------------------------------------------------------------------------
-    private boolean isInExcludeClass(TraceEvent event) {
-        LinkedList nameList;
-        int i;
-        String name;
-        boolean flag;
-
-        flag = false;
-
-        // Check the CLASS include list.
-        nameList = getExclude(CLASS);
-        if (nameList != null) {
-            for (i = 0; i < nameList.size(); i++) {
-                name = (String)nameList.get(i);
-                if (name.equals(event.className)) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        return flag;
+    private static boolean contains(HashSet<String> names, String name) {
+        return names != null && names.contains(name);
     }
 }
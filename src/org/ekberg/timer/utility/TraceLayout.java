@@ -0,0 +1,158 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * The prefix a trace device puts in front of each line of a trace message:
+ * the fields from trace.&lt;device&gt;.fields, each followed by a "|". The
+ * field list is turned into a list of field writers once, when the device is
+ * created, and each event is then written by running them in turn. They
+ * append to a StringBuilder the device reuses, so no Strings are built for
+ * the fields.
+ *
+ * @see TraceDevice
+ **/
+// ----------------------------------------------------------------------------
+class TraceLayout {
+    // ------------------------------------------------------------------------
+    /**
+     * Writes one field of an event.
+     **/
+    // ------------------------------------------------------------------------
+    private abstract static class FieldWriter {
+        // --------------------------------------------------------------------
+        /**
+         * Append the field, without the separator.
+         *
+         * @param  event  the event.
+         * @param  out  where to append it.
+         **/
+        // --------------------------------------------------------------------
+        abstract void append(TraceEvent event, StringBuilder out);
+    }
+
+    /** The separator after each field. */
+    private static final char SEPARATOR = '|';
+
+    /** The writers of the printed fields, in order. */
+    private final FieldWriter[] writers;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a layout.
+     *
+     * @param  fields  the TraceFilter.FIELD_ bits of the fields to print.
+     **/
+    // ------------------------------------------------------------------------
+    TraceLayout(int fields) {
+        List<FieldWriter> list = new ArrayList<FieldWriter>();
+        if ((fields & TraceFilter.FIELD_TIME_STAMP) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.timeStamp);
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_SEQ_NUMBER) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.seqNumber);
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_PACKAGE_NAME) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getPackageName());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_THREAD_NAME) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.threadName);
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_BASE_PACKAGE_NAME) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getBasePackageName());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_CLASS_NAME) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getClassName());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_FILE_NAME) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getFileName());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_FUNCTION) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getFunction());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_LINE_NUMBER) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.getLineNumber());
+                    }
+                });
+        }
+        if ((fields & TraceFilter.FIELD_TRACE_LEVEL) != 0) {
+            list.add(new FieldWriter() {
+                    void append(TraceEvent event, StringBuilder out) {
+                        out.append(event.traceLevel);
+                    }
+                });
+        }
+        writers = list.toArray(new FieldWriter[list.size()]);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the prefix for an event.
+     *
+     * @param  event  the event.
+     * @param  out  where to append it.
+     **/
+    // ------------------------------------------------------------------------
+    void appendPrefix(TraceEvent event, StringBuilder out) {
+        for (FieldWriter writer: writers) {
+            writer.append(event, out);
+            out.append(SEPARATOR);
+        }
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for TraceLayout.
+     *
+     * @return
+     *   String - nicely formatted for debugging.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "TraceLayout[fields=" + writers.length + "]";
+    }
+}
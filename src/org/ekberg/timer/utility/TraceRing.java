@@ -0,0 +1,308 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * A bounded queue of trace events between the threads that call Trace and
+ * the one thread that writes to the devices. The events are allocated once
+ * and reused, and neither side takes a lock.
+ *<P>
+ * Each slot has a sequence number that says whose turn it is. A producer
+ * owns a slot once it has advanced the tail past it, fills in the event and
+ * then publishes it by setting the slot's sequence. The consumer does the
+ * same with the head, and hands the slot back to the producers by setting
+ * the sequence one lap ahead. (This is D. Vyukov's bounded queue.)
+ *<P>
+ * When the ring is full a producer does one of three things, depending on
+ * trace.overflow:
+ * <UL>
+ *   <LI> block - wait for the consumer to make room. Nothing is lost.
+ *   <LI> dropOldest - throw away the oldest waiting event to make room.
+ *   <LI> drop - throw away the new event.
+ * </UL>
+ * Thrown away events are counted, see getDropped.
+ **/
+// ----------------------------------------------------------------------------
+class TraceRing {
+    /** trace.overflow value: wait for room. */
+    static final String BLOCK = "block";
+
+    /** trace.overflow value: drop the oldest event. */
+    static final String DROP_OLDEST = "dropOldest";
+
+    /** trace.overflow value: drop the new event. */
+    static final String DROP = "drop";
+
+    /** How long a blocked producer or an idle consumer parks, in
+     * nanoseconds, before looking again. */
+    private static final long PARK_NANOS = 100000L;
+
+    /** The events. */
+    private final TraceEvent[] events;
+
+    /** The sequence of each slot. See the class comment. */
+    private final AtomicLongArray sequences;
+
+    /** events.length - 1. events.length is a power of two. */
+    private final int mask;
+
+    /** Next position to fill. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next position to read. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Number of events thrown away. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** One of BLOCK, DROP_OLDEST or DROP. */
+    private final String overflow;
+
+    /** The consumer thread, unparked when an event is published. */
+    private volatile Thread consumer;
+
+    /** True while the consumer is parked waiting for events. */
+    private volatile boolean consumerWaiting;
+
+    /** Position of the event the consumer is working on. Only used by the
+     * consumer. */
+    private long reading;
+
+    /** True from next until release. */
+    private volatile boolean holding;
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a ring.
+     *
+     * @param  size  the number of slots. Rounded up to a power of two.
+     * @param  overflow  BLOCK, DROP_OLDEST or DROP. Anything else is BLOCK.
+     **/
+    // ------------------------------------------------------------------------
+    TraceRing(int size, String overflow) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        events = new TraceEvent[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            events[i] = new TraceEvent();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        if (DROP_OLDEST.equalsIgnoreCase(overflow))
+            this.overflow = DROP_OLDEST;
+        else if (DROP.equalsIgnoreCase(overflow))
+            this.overflow = DROP;
+        else
+            this.overflow = BLOCK;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the thread that reads the ring.
+     *
+     * @param  consumer  the consumer thread.
+     **/
+    // ------------------------------------------------------------------------
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an event. The event is filled in on the calling thread, so its
+     * time stamp and thread name are the caller's.
+     *
+     * @param  traceLevel  trace level for this trace event.
+     * @param  message  string to trace.
+     * @param  caller  the caller's StackWalker.StackFrame or
+     * StackTraceElement, or null.
+     *
+     * @return
+     *   boolean - false if the event was dropped.
+     **/
+    // ------------------------------------------------------------------------
+    boolean publish(int traceLevel, String message, Object caller) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long dif = sequences.get((int)pos & mask) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            }
+            else if (dif < 0) {
+                // Full.
+                if (overflow == DROP) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (overflow == DROP_OLDEST && discardOldest(pos)) {
+                    dropped.incrementAndGet();
+                }
+                else {
+                    // Blocking, or the slot is held by the consumer or still
+                    // being filled in: wait for it.
+                    wakeConsumer();
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            // else another producer took pos; try the next one.
+        }
+        int slot = (int)pos & mask;
+        events[slot].set(traceLevel, message, caller);
+        sequences.set(slot, pos + 1);
+        if (consumerWaiting)
+            wakeConsumer();
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the oldest waiting event. The caller must call release when it is
+     * done with the event. Only the consumer thread may call this.
+     *
+     * @return
+     *   TraceEvent - the event, or null if there is none.
+     **/
+    // ------------------------------------------------------------------------
+    TraceEvent next() {
+        // Set first, so that isEmpty never sees the head moved and the
+        // event not yet held.
+        holding = true;
+        while (true) {
+            long pos = head.get();
+            long dif = sequences.get((int)pos & mask) - (pos + 1);
+            if (dif < 0) {
+                holding = false;
+                return null;
+            }
+            // dif > 0 means a producer dropped it under us; look again.
+            if (dif == 0 && head.compareAndSet(pos, pos + 1)) {
+                reading = pos;
+                return events[(int)pos & mask];
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Give the slot of an event returned by next back to the producers.
+     *
+     * @param  event  the event from next.
+     **/
+    // ------------------------------------------------------------------------
+    void release(TraceEvent event) {
+        event.set(0, null, null);
+        sequences.set((int)reading & mask, reading + mask + 1);
+        holding = false;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Throw away the oldest waiting event, for DROP_OLDEST, but only if it is
+     * in the slot a producer needs for pos, that is one lap behind it. If
+     * the consumer holds that slot, or a producer is still filling it in,
+     * nothing is thrown away: freeing some other slot would not help, so at
+     * most one event is thrown away per event published.
+     *
+     * @param  pos  the position the producer wants to fill.
+     *
+     * @return
+     *   boolean - true if an event was thrown away.
+     **/
+    // ------------------------------------------------------------------------
+    private boolean discardOldest(long pos) {
+        long oldest = pos - events.length;
+        int slot = (int)oldest & mask;
+        if (head.get() == oldest && sequences.get(slot) == oldest + 1 &&
+                    head.compareAndSet(oldest, oldest + 1)) {
+            sequences.set(slot, pos);
+            return true;
+        }
+        return false;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait for an event to be published, or for a short time to pass. Only
+     * the consumer thread may call this.
+     **/
+    // ------------------------------------------------------------------------
+    void await() {
+        consumerWaiting = true;
+        if (isEmpty())
+            LockSupport.parkNanos(this, PARK_NANOS * 10);
+        consumerWaiting = false;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wake the consumer if it is parked.
+     **/
+    // ------------------------------------------------------------------------
+    void wakeConsumer() {
+        Thread thread = consumer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Determine whether every event has been read and handled.
+     *
+     * @return
+     *   boolean - true if the consumer has nothing to do.
+     **/
+    // ------------------------------------------------------------------------
+    boolean isEmpty() {
+        return head.get() == tail.get() && !holding;
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get the number of events thrown away so far.
+     *
+     * @return
+     *   long - the count.
+     **/
+    // ------------------------------------------------------------------------
+    long getDropped() {
+        return dropped.get();
+    }
+
+
+    //-------------------------------------------------------------------------
+    /**
+     * Pretty printer for TraceRing.
+     *
+     * @return
+     *   String - nicely formatted for debugging.
+     */
+    //-------------------------------------------------------------------------
+    public String toString() {
+        return "TraceRing[" +
+                    "size=" + events.length +
+                    ", overflow=" + overflow +
+                    ", waiting=" + (tail.get() - head.get()) +
+                    ", dropped=" + dropped.get() +
+                    "]";
+    }
+}
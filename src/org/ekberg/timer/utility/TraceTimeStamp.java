@@ -0,0 +1,102 @@
+//  @(#) $Id:  $
+
+
+package org.ekberg.timer.utility;
+
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+// ----------------------------------------------------------------------------
+/**
+ * Formats the time stamps of trace events as MM/dd|HH:mm:ss.SSS. Any number
+ * of threads may call format at once.
+ *<P>
+ * Everything up to the seconds is only formatted once a second, with a
+ * SimpleDateFormat that is only used under a lock; the milliseconds are
+ * added to it by hand. Events in the same millisecond share one String. The
+ * cached values are kept in immutable objects that are swapped in through
+ * volatile fields, so reading them takes no lock.
+ **/
+// ----------------------------------------------------------------------------
+class TraceTimeStamp {
+    /** The format of a time stamp. */
+    static final String FORMAT = "MM/dd|HH:mm:ss.SSS";
+
+    // ------------------------------------------------------------------------
+    /**
+     * A time and its formatted text.
+     **/
+    // ------------------------------------------------------------------------
+    private static final class Stamp {
+        /** The time, in seconds or milliseconds since 1970. */
+        final long time;
+
+        /** The formatted time. */
+        final String text;
+
+        Stamp(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    /** Formats the seconds. Guarded by itself. */
+    private static final SimpleDateFormat secondFormat =
+                new SimpleDateFormat(FORMAT.substring(0, FORMAT.indexOf('.') + 1));
+
+    /** The last second formatted, as MM/dd|HH:mm:ss. */
+    private static volatile Stamp second = new Stamp(Long.MIN_VALUE, "");
+
+    /** The last millisecond formatted. */
+    private static volatile Stamp millisecond = new Stamp(Long.MIN_VALUE, "");
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * No instances.
+     **/
+    // ------------------------------------------------------------------------
+    private TraceTimeStamp() {
+    }
+
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a time.
+     *
+     * @param  millis  the time, as from System.currentTimeMillis.
+     *
+     * @return
+     *   String - the time as MM/dd|HH:mm:ss.SSS.
+     **/
+    // ------------------------------------------------------------------------
+    static String format(long millis) {
+        Stamp last = millisecond;
+        if (last.time == millis)
+            return last.text;
+
+        long seconds = Math.floorDiv(millis, 1000L);
+        Stamp prefix = second;
+        if (prefix.time != seconds) {
+            String text;
+            synchronized (secondFormat) {
+                text = secondFormat.format(new Date(seconds * 1000L));
+            }
+            prefix = new Stamp(seconds, text);
+            second = prefix;
+        }
+
+        int ms = (int)Math.floorMod(millis, 1000L);
+        int length = prefix.text.length();
+        char[] chars = new char[length + 3];
+        prefix.text.getChars(0, length, chars, 0);
+        chars[length] = (char)('0' + ms / 100);
+        chars[length + 1] = (char)('0' + ms / 10 % 10);
+        chars[length + 2] = (char)('0' + ms % 10);
+        String text = new String(chars);
+        millisecond = new Stamp(millis, text);
+        return text;
+    }
+}